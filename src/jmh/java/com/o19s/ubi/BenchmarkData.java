@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import com.o19s.ubi.ext.UbiParametersExtBuilder;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.internal.support.AbstractClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the searches, responses and documents used by the benchmarks.
+ */
+final class BenchmarkData {
+
+    static final String OBJECT_ID_FIELD = "product_id";
+
+    private BenchmarkData() {}
+
+    /**
+     * Builds a product document with a number of fields and the object ID field either first or last.
+     */
+    static BytesReference source(final int id, final int fieldCount, final boolean objectIdFirst) {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startObject();
+            if (objectIdFirst) {
+                builder.field(OBJECT_ID_FIELD, "P-" + id);
+            }
+            for (int i = 0; i < fieldCount; i++) {
+                builder.field("field_" + i, "Some product text for field " + i + " of document " + id);
+            }
+            if (!objectIdFirst) {
+                builder.field(OBJECT_ID_FIELD, "P-" + id);
+            }
+            builder.endObject();
+            return BytesReference.bytes(builder);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static BytesReference[] sources(final int hitCount, final int fieldCount, final boolean objectIdFirst) {
+        final BytesReference[] sources = new BytesReference[hitCount];
+        for (int i = 0; i < hitCount; i++) {
+            sources[i] = source(i, fieldCount, objectIdFirst);
+        }
+        return sources;
+    }
+
+    static SearchResponse searchResponse(final int hitCount, final int fieldCount) {
+
+        final SearchHit[] hits = new SearchHit[hitCount];
+        for (int i = 0; i < hitCount; i++) {
+            hits[i] = SearchHit.unpooled(i, String.valueOf(i)).sourceRef(source(i, fieldCount, false));
+        }
+
+        final SearchHits searchHits = SearchHits.unpooled(hits, new TotalHits(hitCount, TotalHits.Relation.EQUAL_TO), 1.0f);
+
+        return new SearchResponse(searchHits, null, null, false, null, null, 1, null, 1, 1, 0, 10,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+    }
+
+    static Map<String, String> queryAttributes(final int attributeCount) {
+        final Map<String, String> queryAttributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            queryAttributes.put("attribute_" + i, "value_" + i);
+        }
+        return queryAttributes;
+    }
+
+    static SearchRequest searchRequest(final String objectIdField, final int attributeCount) {
+
+        final UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
+        extBuilder.setParams(new UbiParameters("query-id", "red shoes", "client-id", objectIdField, queryAttributes(attributeCount)));
+
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.multiMatchQuery("red shoes", "title", "description"))
+                        .filter(QueryBuilders.termsQuery("category", "shoes", "sneakers", "boots")))
+                .size(100)
+                .ext(List.of(extBuilder));
+
+        return new SearchRequest("ecommerce").source(source);
+
+    }
+
+    /**
+     * A client that fails every request so the benchmarks never leave the node.
+     */
+    static class NoOpClient extends AbstractClient {
+
+        NoOpClient(final ThreadPool threadPool) {
+            super(Settings.EMPTY, threadPool);
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(
+                ActionType<Response> action,
+                Request request,
+                ActionListener<Response> listener
+        ) {
+            listener.onFailure(new UnsupportedOperationException("benchmarks do not execute actions"));
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of reading the object ID of every hit of a page of results.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ObjectIdExtractionBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int hitCount;
+
+    @Param({"10", "200"})
+    public int sourceFields;
+
+    @Param({"true", "false"})
+    public boolean objectIdFirst;
+
+    private BytesReference[] sources;
+    private SearchHit[] hitsWithFields;
+
+    @Setup
+    public void setUp() {
+
+        sources = BenchmarkData.sources(hitCount, sourceFields, objectIdFirst);
+
+        hitsWithFields = new SearchHit[hitCount];
+        for (int i = 0; i < hitCount; i++) {
+            hitsWithFields[i] = SearchHit.unpooled(i, String.valueOf(i));
+            hitsWithFields[i].setDocumentField(BenchmarkData.OBJECT_ID_FIELD,
+                    new DocumentField(BenchmarkData.OBJECT_ID_FIELD, List.of("P-" + i)));
+        }
+
+    }
+
+    /**
+     * What the filter used to do: parse the whole source into a map, as <code>SearchHit.getSourceAsMap()</code> does.
+     */
+    @Benchmark
+    public void sourceAsMap(final Blackhole blackhole) {
+        for (final BytesReference source : sources) {
+            final Map<String, Object> map = XContentHelper.convertToMap(source, false, XContentType.JSON).v2();
+            blackhole.consume(map.get(BenchmarkData.OBJECT_ID_FIELD));
+        }
+    }
+
+    /**
+     * Stream the source until the object ID field, for searches that do not ask for it in <code>fields</code>.
+     */
+    @Benchmark
+    public void filteredSource(final Blackhole blackhole) {
+        for (final BytesReference source : sources) {
+            blackhole.consume(ObjectIdExtractor.extractFromSource(source, BenchmarkData.OBJECT_ID_FIELD));
+        }
+    }
+
+    /**
+     * Read the object ID loaded by the data nodes, for searches that ask for it in <code>fields</code>.
+     */
+    @Benchmark
+    public void fields(final Blackhole blackhole) {
+        for (final SearchHit hit : hitsWithFields) {
+            blackhole.consume(ObjectIdExtractor.extract(hit, BenchmarkData.OBJECT_ID_FIELD));
+        }
+    }
+
+}
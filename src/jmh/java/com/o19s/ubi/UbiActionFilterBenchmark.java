@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.telemetry.metric.MeterRegistry;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work {@link UbiActionFilter} adds to a search that carries the UBI ext.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class UbiActionFilterBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int hitCount;
+
+    @Param({"10", "200"})
+    public int sourceFields;
+
+    @Param({"", BenchmarkData.OBJECT_ID_FIELD})
+    public String objectIdField;
+
+    @Param({"0", "50"})
+    public int attributeCount;
+
+    private ThreadPool threadPool;
+    private ClusterService clusterService;
+    private UbiActionFilter filter;
+
+    private SearchRequest searchRequest;
+    private UbiActionFilter.PreparedSearch preparedSearch;
+    private SearchResponse searchResponse;
+    private QueryRequest queryRequest;
+
+    @Setup
+    public void setUp() {
+
+        final Settings settings = Settings.builder().put("node.name", "benchmark").build();
+
+        final Set<Setting<?>> clusterSettings = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        clusterSettings.addAll(UbiSettings.getSettings());
+
+        threadPool = new ThreadPool(settings, MeterRegistry.NOOP);
+        clusterService = new ClusterService(settings, new ClusterSettings(settings, clusterSettings), threadPool,
+                new TaskManager(settings, threadPool, Set.of()));
+
+        final UbiStats stats = new UbiStats();
+        final UbiDocumentWriter writer = new UbiDocumentWriter(new BenchmarkData.NoOpClient(threadPool), threadPool, settings, stats);
+        final CaptureSampler sampler = new CaptureSampler(settings, clusterService.getClusterSettings());
+        final UbiQueryRollup rollup = new UbiQueryRollup(writer, threadPool, clusterService, "node-id");
+        final UbiTrending trending = new UbiTrending(threadPool, clusterService);
+        filter = new UbiActionFilter(writer, sampler, new CaptureIndexAllowlist(clusterService),
+                new UbiIndexDefaults(clusterService), stats, rollup, trending, new UbiImpressionCache(settings), clusterService);
+
+        searchRequest = BenchmarkData.searchRequest(objectIdField, attributeCount);
+        preparedSearch = filter.prepareSearchRequest(searchRequest);
+        searchResponse = BenchmarkData.searchResponse(hitCount, sourceFields);
+        queryRequest = queryRequest();
+
+    }
+
+    @TearDown
+    public void tearDown() {
+        clusterService.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    private QueryRequest queryRequest() {
+
+        final List<String> hitIds = new ArrayList<>(hitCount);
+        for (final SearchHit hit : searchResponse.getHits()) {
+            hitIds.add(hit.getId());
+        }
+
+        final QueryResponse queryResponse = new QueryResponse("query-id", "query-response-id", hitIds);
+        return new QueryRequest("query-id", "red shoes", "client-id", searchRequest.source(),
+                BenchmarkData.queryAttributes(attributeCount), queryResponse);
+
+    }
+
+    /**
+     * The capture of a search on the search thread: hit ID extraction, building and queueing the document.
+     */
+    @Benchmark
+    public void handleSearchRequest(final Blackhole blackhole) {
+        final ActionResponse response = filter.handleSearchRequest(searchRequest, preparedSearch, searchResponse);
+        blackhole.consume(response);
+        // The UBI response holds a reference to the shared search response until it is released.
+        response.decRef();
+    }
+
+    /**
+     * Rendering the query DSL that is stored with the captured query.
+     */
+    @Benchmark
+    public BytesReference renderQuery() throws IOException {
+        return QueryDocument.renderQuery(searchRequest.source());
+    }
+
+    /**
+     * Building the {@link QueryRequest} and {@link QueryResponse} from the hit IDs.
+     */
+    @Benchmark
+    public QueryRequest buildQueryRequest() {
+        final QueryResponse queryResponse = new QueryResponse("query-id", "query-response-id",
+                queryRequest.getQueryResponse().getQueryResponseObjectIds());
+        return new QueryRequest("query-id", "red shoes", "client-id", queryRequest.getQuery(),
+                queryRequest.getQueryAttributes(), queryResponse);
+    }
+
+    /**
+     * Serializing the document that is written to the UBI queries index, which happens when the writer flushes.
+     */
+    @Benchmark
+    public BulkRequest serializeQueryDocument() throws IOException {
+        final BulkRequest bulkRequest = new BulkRequest();
+        filter.toQueryDocument(queryRequest).addTo(bulkRequest);
+        return bulkRequest;
+    }
+
+}
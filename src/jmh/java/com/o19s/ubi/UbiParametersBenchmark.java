@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentParserConfiguration;
+import org.elasticsearch.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing and transport serialization of the UBI ext parameters.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class UbiParametersBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int attributeCount;
+
+    private UbiParameters parameters;
+    private BytesReference json;
+    private BytesReference serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        parameters = new UbiParameters("query-id", "red shoes", "client-id", BenchmarkData.OBJECT_ID_FIELD,
+                BenchmarkData.queryAttributes(attributeCount));
+
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startObject();
+            parameters.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+            json = BytesReference.bytes(builder);
+        }
+
+        serialized = writeTo();
+
+    }
+
+    @Benchmark
+    public UbiParameters parse() throws IOException {
+        try (XContentParser parser = XContentHelper.createParserNotCompressed(XContentParserConfiguration.EMPTY, json, XContentType.JSON)) {
+            return UbiParameters.parse(parser);
+        }
+    }
+
+    @Benchmark
+    public BytesReference writeTo() throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            parameters.writeTo(out);
+            return out.bytes();
+        }
+    }
+
+    @Benchmark
+    public UbiParameters read() throws IOException {
+        return new UbiParameters(serialized.streamInput());
+    }
+
+    @Benchmark
+    public UbiParameters roundTrip() throws IOException {
+        return new UbiParameters(writeTo().streamInput());
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexAbstraction;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.index.Index;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Decides which searches may be captured by the indexes they target, from the patterns of
+ * <code>ubi.capture.indices</code>.
+ * <p>
+ * The patterns are resolved against the cluster state whenever its indexes or aliases change,
+ * into the set of index, alias and data stream names that match a pattern or that point to an
+ * index that does. Checking a search is then a set lookup per index it names, so that searches
+ * of other indexes, such as those of dashboards and monitoring, cost next to nothing.
+ */
+public class CaptureIndexAllowlist implements ClusterStateListener {
+
+    private volatile List<String> patterns;
+
+    // Whether the patterns changed since they were last resolved.
+    private volatile boolean stale = true;
+
+    // The names that may be captured, or null when every search may be.
+    private volatile Set<String> allowedNames;
+
+    /**
+     * Creates the allowlist.
+     * @param clusterService The {@link ClusterService} to listen to for changes of the indexes and the setting.
+     */
+    public CaptureIndexAllowlist(final ClusterService clusterService) {
+        this.patterns = UbiSettings.CAPTURE_INDICES.get(clusterService.getSettings());
+        this.allowedNames = patterns.isEmpty() ? null : Set.of();
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_INDICES, this::setPatterns);
+        clusterService.addListener(this);
+    }
+
+    /**
+     * Decides whether a search may be captured.
+     * @param indices The index expressions of the search.
+     * @return <code>true</code> if one of the expressions names an allowed index, alias or data stream.
+     */
+    public boolean allows(final String[] indices) {
+
+        final Set<String> names = allowedNames;
+
+        if (names == null) {
+            return true;
+        }
+
+        // A search of every index is never one of the searches the allowlist is for.
+        if (indices == null) {
+            return false;
+        }
+
+        // Until new patterns are resolved, the names of the search are matched against them directly.
+        final List<String> unresolved = stale ? patterns : null;
+
+        for (final String index : indices) {
+            if (names.contains(index)) {
+                return true;
+            }
+            if (unresolved != null && Regex.simpleMatch(unresolved, index)) {
+                return true;
+            }
+            if (Regex.isSimpleMatchPattern(index) && matchesAny(index, names)) {
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+
+        final List<String> current = patterns;
+
+        if (current.isEmpty()) {
+            return;
+        }
+
+        if (stale || event.state().metadata().sameIndicesLookup(event.previousState().metadata()) == false) {
+            stale = false;
+            allowedNames = resolve(current, event.state().metadata());
+        }
+
+    }
+
+    private void setPatterns(final List<String> patterns) {
+
+        this.patterns = patterns;
+
+        if (patterns.isEmpty()) {
+            allowedNames = null;
+        } else {
+            // The cluster state cannot be read while settings are applied, so the patterns are resolved
+            // by the listener, which is called with the cluster state that changed the setting.
+            stale = true;
+            if (allowedNames == null) {
+                allowedNames = Set.of();
+            }
+        }
+
+    }
+
+    /**
+     * Resolves the patterns into the names that may be captured.
+     * Package-private so it can be tested.
+     * @param patterns The patterns of <code>ubi.capture.indices</code>.
+     * @param metadata The {@link Metadata} of the cluster.
+     * @return The allowed index, alias and data stream names.
+     */
+    static Set<String> resolve(final List<String> patterns, final Metadata metadata) {
+
+        final Predicate<String> matcher = Regex.simpleMatcher(patterns.toArray(new String[0]));
+        final Set<String> names = new HashSet<>();
+
+        for (final IndexAbstraction abstraction : metadata.getIndicesLookup().values()) {
+
+            if (matcher.test(abstraction.getName())) {
+                names.add(abstraction.getName());
+                continue;
+            }
+
+            // An alias or data stream is allowed when one of its indexes is.
+            for (final Index index : abstraction.getIndices()) {
+                if (matcher.test(index.getName())) {
+                    names.add(abstraction.getName());
+                    break;
+                }
+            }
+
+        }
+
+        return Set.copyOf(names);
+
+    }
+
+    private static boolean matchesAny(final String pattern, final Set<String> names) {
+
+        for (final String name : names) {
+            if (Regex.simpleMatch(pattern, name)) {
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a query is captured.
+ * <p>
+ * Queries are first sampled deterministically by the hash of their client ID or query ID,
+ * so that a sampled session or query is captured in full. The sampled queries are then
+ * limited by a per-node token bucket.
+ */
+public class CaptureSampler {
+
+    private static final int BUCKETS = 10_000;
+
+    private volatile int sampledBuckets;
+    private volatile UbiSettings.SampleKey sampleKey;
+    private volatile TokenBucket tokenBucket;
+
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder droppedBySampling = new LongAdder();
+    private final LongAdder droppedByRateLimit = new LongAdder();
+
+    /**
+     * Creates a new sampler.
+     * @param settings The node {@link Settings}.
+     * @param clusterSettings The {@link ClusterSettings} to listen to for changes.
+     */
+    public CaptureSampler(final Settings settings, final ClusterSettings clusterSettings) {
+        setSampleRate(UbiSettings.CAPTURE_SAMPLE_RATE.get(settings));
+        setMaxPerSecond(UbiSettings.CAPTURE_MAX_PER_SECOND.get(settings));
+        this.sampleKey = UbiSettings.CAPTURE_SAMPLE_KEY.get(settings);
+        clusterSettings.addSettingsUpdateConsumer(UbiSettings.CAPTURE_SAMPLE_RATE, this::setSampleRate);
+        clusterSettings.addSettingsUpdateConsumer(UbiSettings.CAPTURE_MAX_PER_SECOND, this::setMaxPerSecond);
+        clusterSettings.addSettingsUpdateConsumer(UbiSettings.CAPTURE_SAMPLE_KEY, value -> this.sampleKey = value);
+    }
+
+    private void setSampleRate(final double sampleRate) {
+        this.sampledBuckets = (int) Math.round(sampleRate * BUCKETS);
+    }
+
+    private void setMaxPerSecond(final int maxPerSecond) {
+        this.tokenBucket = maxPerSecond == 0 ? null : new TokenBucket(maxPerSecond);
+    }
+
+    /**
+     * Decides whether a query is captured.
+     * @param ubiParameters The {@link UbiParameters} of the query.
+     * @return <code>true</code> if the query is to be captured.
+     */
+    public boolean shouldCapture(final UbiParameters ubiParameters) {
+        return shouldCapture(ubiParameters, 1.0);
+    }
+
+    /**
+     * Decides whether a query is captured.
+     * @param ubiParameters The {@link UbiParameters} of the query.
+     * @param indexSampleRate The <code>index.ubi.sample_rate</code> of the searched index.
+     * @return <code>true</code> if the query is to be captured.
+     */
+    public boolean shouldCapture(final UbiParameters ubiParameters, final double indexSampleRate) {
+
+        // Both rates sample by the same hash, so the lower one decides.
+        final int buckets = Math.min(sampledBuckets, (int) Math.round(indexSampleRate * BUCKETS));
+
+        if (buckets < BUCKETS && !isSampled(ubiParameters, buckets)) {
+            droppedBySampling.increment();
+            return false;
+        }
+
+        final TokenBucket bucket = tokenBucket;
+        if (bucket != null && !bucket.tryAcquire()) {
+            droppedByRateLimit.increment();
+            return false;
+        }
+
+        sampled.increment();
+        return true;
+
+    }
+
+    private boolean isSampled(final UbiParameters ubiParameters, final int buckets) {
+
+        String key = null;
+        if (sampleKey == UbiSettings.SampleKey.CLIENT_ID) {
+            key = ubiParameters.getClientId();
+        }
+        if (key == null) {
+            key = ubiParameters.getQueryId();
+        }
+
+        return Math.floorMod(Murmur3HashFunction.hash(key), BUCKETS) < buckets;
+
+    }
+
+    /**
+     * Gets the number of queries that were captured.
+     * @return The number of captured queries.
+     */
+    public long getSampledCount() {
+        return sampled.sum();
+    }
+
+    /**
+     * Gets the number of queries that were not captured because they were not sampled.
+     * @return The number of queries dropped by sampling.
+     */
+    public long getDroppedBySamplingCount() {
+        return droppedBySampling.sum();
+    }
+
+    /**
+     * Gets the number of sampled queries that were not captured because of the rate limit.
+     * @return The number of queries dropped by the rate limit.
+     */
+    public long getDroppedByRateLimitCount() {
+        return droppedByRateLimit.sum();
+    }
+
+    /**
+     * A token bucket that holds up to one second of tokens.
+     */
+    static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(final int tokensPerSecond) {
+            this.tokensPerNano = tokensPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = tokensPerSecond;
+            this.tokens = tokensPerSecond;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            return tryAcquire(System.nanoTime());
+        }
+
+        synchronized boolean tryAcquire(final long now) {
+
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+
+            if (tokens < 1) {
+                return false;
+            }
+
+            tokens--;
+            return true;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes implicit relevance judgements with a clicks over expected clicks (COEC) click model.
+ * <p>
+ * Every impression of an object at a position is expected to be clicked as often as any object
+ * at that position, the position prior. The COEC of a (user query, object) pair is its clicks
+ * divided by the sum of the priors of the positions it was shown at, so an object that is
+ * clicked more than its positions explain scores above 1 whatever its rank.
+ * <p>
+ * The priors are counted over every captured query and the pairs only for the user queries
+ * that are passed to {@link #recordPairs}, so that pairs can be computed a partition at a time.
+ * The model is thread safe.
+ */
+public class ClickModel {
+
+    /**
+     * The number of positions with their own prior. Later positions share the prior of the last.
+     */
+    public static final int MAX_POSITIONS = 20;
+
+    private final int maxPairs;
+
+    private final long[] positionImpressions = new long[MAX_POSITIONS];
+    private final long[] positionClicks = new long[MAX_POSITIONS];
+    private final Map<String, Pair> pairs = new HashMap<>();
+
+    /**
+     * Creates a click model.
+     * @param maxPairs The maximum number of (user query, object) pairs held at once.
+     */
+    public ClickModel(final int maxPairs) {
+        this.maxPairs = maxPairs;
+    }
+
+    /**
+     * Counts the impressions and clicks of a captured query by position.
+     * @param objectIds The IDs of the objects returned, in rank order.
+     * @param offset The position of the first object.
+     * @param clickedObjectIds The IDs of the objects that were clicked.
+     */
+    public synchronized void recordPriors(final List<String> objectIds, final int offset, final Set<String> clickedObjectIds) {
+
+        for (int i = 0; i < objectIds.size(); i++) {
+
+            final int position = position(offset + i);
+
+            positionImpressions[position]++;
+
+            if (clickedObjectIds.contains(objectIds.get(i))) {
+                positionClicks[position]++;
+            }
+
+        }
+
+    }
+
+    /**
+     * Counts the impressions and clicks of each (user query, object) pair of a captured query.
+     * @param userQuery The normalized user query.
+     * @param objectIds The IDs of the objects returned, in rank order.
+     * @param offset The position of the first object.
+     * @param clickedObjectIds The IDs of the objects that were clicked.
+     * @throws IllegalStateException Thrown if the maximum number of pairs would be exceeded.
+     */
+    public synchronized void recordPairs(final String userQuery, final List<String> objectIds, final int offset,
+                                         final Set<String> clickedObjectIds) {
+
+        for (int i = 0; i < objectIds.size(); i++) {
+
+            final String objectId = objectIds.get(i);
+
+            Pair pair = pairs.get(key(userQuery, objectId));
+
+            if (pair == null) {
+
+                if (pairs.size() >= maxPairs) {
+                    throw new IllegalStateException("More than [" + maxPairs + "] (user query, object) pairs; "
+                            + "raise [max_pairs] or split the job into more [partitions]");
+                }
+
+                pair = new Pair(userQuery, objectId);
+                pairs.put(key(userQuery, objectId), pair);
+
+            }
+
+            pair.impressions[position(offset + i)]++;
+
+            if (clickedObjectIds.contains(objectId)) {
+                pair.clicks++;
+            }
+
+        }
+
+    }
+
+    /**
+     * Gets the click-through rate of a position, smoothed towards one click in ten impressions
+     * so that positions that were rarely shown do not get a prior of 0 or 1.
+     * @param position The position, from 0.
+     * @return The prior.
+     */
+    public synchronized double prior(final int position) {
+        final int bucket = position(position);
+        return (positionClicks[bucket] + 1.0) / (positionImpressions[bucket] + 10.0);
+    }
+
+    /**
+     * Computes the judgements of the pairs counted so far.
+     * @return The judgements.
+     */
+    public synchronized List<Judgement> judgements() {
+
+        final double[] priors = new double[MAX_POSITIONS];
+        for (int position = 0; position < MAX_POSITIONS; position++) {
+            priors[position] = prior(position);
+        }
+
+        final List<Judgement> judgements = new ArrayList<>(pairs.size());
+
+        for (final Pair pair : pairs.values()) {
+
+            long impressions = 0;
+            double expectedClicks = 0;
+
+            for (int position = 0; position < MAX_POSITIONS; position++) {
+                impressions += pair.impressions[position];
+                expectedClicks += pair.impressions[position] * priors[position];
+            }
+
+            judgements.add(new Judgement(pair.userQuery, pair.objectId, impressions, pair.clicks,
+                    (double) pair.clicks / impressions, expectedClicks, pair.clicks / expectedClicks));
+
+        }
+
+        return judgements;
+
+    }
+
+    /**
+     * Forgets the pairs counted so far but keeps the position priors.
+     */
+    public synchronized void clearPairs() {
+        pairs.clear();
+    }
+
+    private static int position(final int position) {
+        return Math.min(Math.max(position, 0), MAX_POSITIONS - 1);
+    }
+
+    private static String key(final String userQuery, final String objectId) {
+        return userQuery + '\u0000' + objectId;
+    }
+
+    private static final class Pair {
+
+        private final String userQuery;
+        private final String objectId;
+        private final int[] impressions = new int[MAX_POSITIONS];
+        private long clicks;
+
+        private Pair(final String userQuery, final String objectId) {
+            this.userQuery = userQuery;
+            this.objectId = objectId;
+        }
+
+    }
+
+    /**
+     * The implicit relevance judgement of an object for a user query.
+     * @param userQuery The normalized user query.
+     * @param objectId The ID of the object.
+     * @param impressions The number of captured queries that returned the object.
+     * @param clicks The number of those queries in which the object was clicked.
+     * @param ctr The click-through rate.
+     * @param expectedClicks The clicks expected from the positions the object was shown at.
+     * @param coec The clicks over expected clicks.
+     */
+    public record Judgement(String userQuery, String objectId, long impressions, long clicks, double ctr,
+                            double expectedClicks, double coec) {}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.UUIDs;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates the query IDs and query response IDs assigned by the plugin.
+ */
+@FunctionalInterface
+public interface IdGenerator {
+
+    /**
+     * Time-based IDs in the same format as the IDs Elasticsearch generates for documents.
+     * They do not touch a shared random source and, because IDs generated close together share
+     * prefixes, they index with better locality than random IDs. They do not sort by time.
+     */
+    IdGenerator TIME = UUIDs::base64UUID;
+
+    /**
+     * Random base64 IDs drawn from the calling thread's random source.
+     */
+    IdGenerator RANDOM = () -> UUIDs.randomBase64UUID(ThreadLocalRandom.current());
+
+    /**
+     * Random version 4 UUIDs, the format used by earlier versions of the plugin.
+     */
+    IdGenerator UUID4 = () -> UUID.randomUUID().toString();
+
+    /**
+     * Generates a new ID.
+     * @return The ID.
+     */
+    String newId();
+
+    /**
+     * Gets the generator for a type of ID.
+     * @param type The {@link UbiSettings.IdGeneratorType}.
+     * @return The {@link IdGenerator}.
+     */
+    static IdGenerator of(final UbiSettings.IdGeneratorType type) {
+        return switch (type) {
+            case TIME -> TIME;
+            case RANDOM -> RANDOM;
+            case UUID -> UUID4;
+        };
+    }
+
+}
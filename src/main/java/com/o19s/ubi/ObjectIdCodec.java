@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs numeric object IDs, such as Lucene doc IDs or numeric product IDs, in rank order.
+ * <p>
+ * The packed form is the number of IDs as a varint followed by the difference between each
+ * ID and the one ranked before it as a zig-zag varint. Neighbouring IDs are often close, so
+ * most take one or two bytes instead of a keyword each.
+ */
+public final class ObjectIdCodec {
+
+    private ObjectIdCodec() {}
+
+    /**
+     * Packs object IDs.
+     * @param objectIds The object IDs in rank order.
+     * @return The packed IDs, or <code>null</code> if an ID is not a non-negative number without leading zeros.
+     */
+    public static byte[] encode(final List<String> objectIds) {
+
+        try (BytesStreamOutput out = new BytesStreamOutput(1 + 2 * objectIds.size())) {
+
+            out.writeVInt(objectIds.size());
+            long previous = 0;
+
+            for (final String objectId : objectIds) {
+
+                final long id = parse(objectId);
+                if (id < 0) {
+                    return null;
+                }
+
+                out.writeZLong(id - previous);
+                previous = id;
+
+            }
+
+            return BytesReference.toBytes(out.bytes());
+
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new UncheckedIOException(e);
+        }
+
+    }
+
+    /**
+     * Unpacks object IDs.
+     * @param packed The packed IDs.
+     * @return The object IDs in rank order.
+     * @throws IOException Thrown if the IDs cannot be read.
+     */
+    public static List<String> decode(final byte[] packed) throws IOException {
+
+        try (StreamInput in = new BytesArray(packed).streamInput()) {
+
+            final int size = in.readVInt();
+            final List<String> objectIds = new ArrayList<>(size);
+            long previous = 0;
+
+            for (int i = 0; i < size; i++) {
+                previous += in.readZLong();
+                objectIds.add(Long.toString(previous));
+            }
+
+            return objectIds;
+
+        }
+
+    }
+
+    // Only IDs that survive a round trip through Long.toString are packed.
+    private static long parse(final String objectId) {
+
+        if (objectId == null || objectId.isEmpty() || objectId.length() > 18
+                || (objectId.length() > 1 && objectId.charAt(0) == '0')) {
+            return -1;
+        }
+
+        long id = 0;
+
+        for (int i = 0; i < objectId.length(); i++) {
+            final char c = objectId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+
+        return id;
+
+    }
+
+}
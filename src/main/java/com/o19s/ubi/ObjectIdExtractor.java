@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.lookup.Source;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentParserConfiguration;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Reads the object ID of a search hit without deserializing the whole <code>_source</code>.
+ */
+public final class ObjectIdExtractor {
+
+    private static final Logger LOGGER = LogManager.getLogger(ObjectIdExtractor.class);
+
+    private ObjectIdExtractor() {}
+
+    /**
+     * Gets the object ID of a hit. The hit's <code>fields</code> are used when the search asked for the object ID field,
+     * otherwise the <code>_source</code> is streamed until the object ID field is found. The search itself is never
+     * changed to ask for the field, since that would change the hits returned to the caller.
+     * @param hit The {@link SearchHit}.
+     * @param objectIdField The object ID field.
+     * @return The object ID, or <code>null</code> if the hit does not have one.
+     */
+    public static String extract(final SearchHit hit, final String objectIdField) {
+
+        final DocumentField documentField = hit.field(objectIdField);
+
+        if (documentField != null && documentField.getValue() != null) {
+            final Object value = documentField.getValue();
+            return String.valueOf(value);
+        }
+
+        return extractFromSource(hit.getSourceRef(), objectIdField);
+
+    }
+
+    /**
+     * Gets the value of a field from a document's source. Only the path to the field is parsed and parsing
+     * stops at the first value found.
+     * @param source The document source.
+     * @param field The field, which can be a dotted path.
+     * @return The value of the field as a string, or <code>null</code> if the field is not in the source.
+     */
+    static String extractFromSource(final BytesReference source, final String field) {
+
+        if (source == null) {
+            return null;
+        }
+
+        try {
+
+            if (field.indexOf('.') == -1) {
+                return extractTopLevelField(source, field);
+            }
+
+            final XContentParserConfiguration config = XContentParserConfiguration.EMPTY.withFiltering(Set.of(field), null, false);
+
+            try (XContentParser parser = XContentHelper.createParser(config, source, contentType(source))) {
+                XContentParser.Token token;
+                while ((token = parser.nextToken()) != null) {
+                    if (token.isValue()) {
+                        return parser.text();
+                    }
+                }
+            }
+
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to read object ID field [" + field + "] from source.", ex);
+        }
+
+        return null;
+
+    }
+
+    private static String extractTopLevelField(final BytesReference source, final String field) throws IOException {
+
+        try (XContentParser parser = XContentHelper.createParser(XContentParserConfiguration.EMPTY, source,
+                contentType(source))) {
+
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                return null;
+            }
+
+            // Skip over the other fields without reading their values.
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+
+                final boolean found = field.equals(parser.currentName());
+                XContentParser.Token token = parser.nextToken();
+
+                if (found) {
+                    if (token == XContentParser.Token.START_ARRAY) {
+                        token = parser.nextToken();
+                    }
+                    return token != null && token.isValue() ? parser.text() : null;
+                }
+
+                parser.skipChildren();
+
+            }
+
+        }
+
+        return null;
+
+    }
+
+    private static XContentType contentType(final BytesReference source) {
+        // Sources are stored in the content type they were indexed in, which Source detects from their first bytes.
+        return Source.fromBytes(source).sourceContentType();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClosePointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeRequest;
+import org.elasticsearch.action.search.TransportClosePointInTimeAction;
+import org.elasticsearch.action.search.TransportOpenPointInTimeAction;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.metadata.IndexAbstraction;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads UBI indexes page by page from a point in time, in slices read in parallel, for the
+ * batch jobs that run as persistent tasks. Its methods block, so they must be called from
+ * the generic thread pool.
+ */
+final class PointInTimeReader {
+
+    private static final Logger LOGGER = LogManager.getLogger(PointInTimeReader.class);
+
+    // Slices beyond this number compete with searches for the search thread pool.
+    private static final int MAX_AUTO_SLICES = 8;
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+
+    PointInTimeReader(final Client client, final ClusterService clusterService, final ThreadPool threadPool) {
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Reads a slice of a point in time.
+     */
+    @FunctionalInterface
+    interface SliceReader {
+
+        /**
+         * Reads a slice.
+         * @param slice The ID of the slice.
+         * @param failed Set when another slice has failed, so that this one can stop at its next page.
+         * @throws Exception Thrown if the slice cannot be read.
+         */
+        void read(int slice, AtomicBoolean failed) throws Exception;
+
+    }
+
+    BytesReference open(final String index) {
+        return client.execute(TransportOpenPointInTimeAction.TYPE, new OpenPointInTimeRequest(index).keepAlive(KEEP_ALIVE))
+                .actionGet()
+                .getPointInTimeId();
+    }
+
+    void close(final BytesReference pit) {
+        client.execute(TransportClosePointInTimeAction.TYPE, new ClosePointInTimeRequest(pit), ActionListener.wrap(
+                response -> {},
+                e -> LOGGER.debug("Unable to close a point in time of a UBI job", e)
+        ));
+    }
+
+    /**
+     * Gets the number of slices to read an index in, one per primary shard up to 8.
+     * @param index The name of an index or data stream.
+     * @return The number of slices.
+     */
+    int autoSlices(final String index) {
+
+        final Metadata metadata = clusterService.state().metadata();
+        final IndexAbstraction indexAbstraction = metadata.getIndicesLookup().get(index);
+
+        if (indexAbstraction == null) {
+            return 1;
+        }
+
+        int shards = 0;
+        for (final Index concreteIndex : indexAbstraction.getIndices()) {
+            shards += metadata.index(concreteIndex).getNumberOfShards();
+        }
+
+        return Math.max(1, Math.min(shards, MAX_AUTO_SLICES));
+
+    }
+
+    /**
+     * Reads every slice in parallel and waits until all are read.
+     * @param slices The number of slices.
+     * @param reader Reads a slice.
+     * @throws Exception The failure of the first slice that failed.
+     */
+    void readSlices(final int slices, final SliceReader reader) throws Exception {
+
+        final List<Future<?>> futures = new ArrayList<>(slices);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        for (int slice = 0; slice < slices; slice++) {
+            final int id = slice;
+            futures.add(threadPool.generic().submit(() -> {
+                try {
+                    reader.read(id, failed);
+                } catch (Exception e) {
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        Exception failure = null;
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                final Exception cause = e.getCause() instanceof Exception ex ? ex : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+    }
+
+    /**
+     * Builds the search of a page of a point in time, in the order of the point in time.
+     * @param pit The ID of the point in time.
+     * @param slice The ID of the slice.
+     * @param slices The number of slices.
+     * @param size The size of the page.
+     * @param searchAfter The sort values of the last hit of the previous page, or <code>null</code> for the first page.
+     * @return The {@link SearchSourceBuilder}.
+     */
+    static SearchSourceBuilder page(final BytesReference pit, final int slice, final int slices, final int size,
+                                    final Object[] searchAfter) {
+
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .pointInTimeBuilder(new PointInTimeBuilder(pit).setKeepAlive(KEEP_ALIVE))
+                .sort(SortBuilders.pitTiebreaker())
+                .size(size)
+                .trackTotalHits(false);
+
+        if (slices > 1) {
+            source.slice(new SliceBuilder(slice, slices));
+        }
+
+        if (searchAfter != null) {
+            source.searchAfter(searchAfter);
+        }
+
+        return source;
+
+    }
+
+}
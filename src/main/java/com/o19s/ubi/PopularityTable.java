@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+/**
+ * The click and impression counts of objects, in an open-addressing hash table of primitive
+ * arrays keyed by the 64 bit murmur3 hash of the object ID. Looking up an object allocates
+ * nothing and takes no lock.
+ * <p>
+ * A table is only changed before it is published, see {@link UbiPopularity}: a refresh adds
+ * its counts to a {@link #copy()} and then swaps it for the old table.
+ */
+public final class PopularityTable {
+
+    /**
+     * The table of no objects.
+     */
+    public static final PopularityTable EMPTY = new PopularityTable(16);
+
+    // The key of empty slots. A hash that is 0 is stored as 1.
+    private static final long EMPTY_KEY = 0;
+
+    private long[] keys;
+    private int[] clicks;
+    private int[] impressions;
+    private int mask;
+    private int size;
+
+    private PopularityTable(final int capacity) {
+        this.keys = new long[capacity];
+        this.clicks = new int[capacity];
+        this.impressions = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private PopularityTable(final PopularityTable other) {
+        this.keys = other.keys.clone();
+        this.clicks = other.clicks.clone();
+        this.impressions = other.impressions.clone();
+        this.mask = other.mask;
+        this.size = other.size;
+    }
+
+    /**
+     * Gets the key of an object ID.
+     * @param bytes The UTF-8 bytes of the object ID.
+     * @param offset The offset of the object ID in the bytes.
+     * @param length The length of the object ID.
+     * @param scratch A hash to reuse, so that no hash is allocated.
+     * @return The key.
+     */
+    public static long key(final byte[] bytes, final int offset, final int length, final MurmurHash3.Hash128 scratch) {
+        final long hash = MurmurHash3.hash128(bytes, offset, length, 0, scratch).h1;
+        return hash == EMPTY_KEY ? 1 : hash;
+    }
+
+    /**
+     * Gets the key of an object ID.
+     * @param objectId The object ID.
+     * @return The key.
+     */
+    public static long key(final String objectId) {
+        final BytesRef bytes = new BytesRef(objectId);
+        return key(bytes.bytes, bytes.offset, bytes.length, new MurmurHash3.Hash128());
+    }
+
+    /**
+     * Gets the number of objects in the table.
+     * @return The number of objects.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of times an object was clicked.
+     * @param key The key of the object.
+     * @return The number of clicks, or 0 if the object is not in the table.
+     */
+    public int clicks(final long key) {
+        final int slot = find(key);
+        return slot < 0 ? 0 : clicks[slot];
+    }
+
+    /**
+     * Gets the number of captured queries that returned an object.
+     * @param key The key of the object.
+     * @return The number of impressions, or 0 if the object is not in the table.
+     */
+    public int impressions(final long key) {
+        final int slot = find(key);
+        return slot < 0 ? 0 : impressions[slot];
+    }
+
+    /**
+     * Copies the table so that counts can be added to the copy.
+     * @return The copy.
+     */
+    PopularityTable copy() {
+        return new PopularityTable(this);
+    }
+
+    /**
+     * Adds to the counts of an object. Must not be called once the table is published.
+     * @param key The key of the object.
+     * @param clicks The clicks to add.
+     * @param impressions The impressions to add.
+     * @param maxObjects The maximum number of objects in the table.
+     * @return Whether the counts were added, which they are not for a new object once the table is full.
+     */
+    boolean add(final long key, final int clicks, final int impressions, final int maxObjects) {
+
+        int slot = find(key);
+
+        if (slot < 0) {
+
+            if (size >= maxObjects) {
+                return false;
+            }
+
+            // Keep the load factor under 1/2 so that probes stay short.
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+
+            slot = (int) key & mask;
+            while (keys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = key;
+            size++;
+
+        }
+
+        // Counts saturate instead of overflowing.
+        this.clicks[slot] = (int) Math.min(Integer.MAX_VALUE, (long) this.clicks[slot] + clicks);
+        this.impressions[slot] = (int) Math.min(Integer.MAX_VALUE, (long) this.impressions[slot] + impressions);
+
+        return true;
+
+    }
+
+    private int find(final long key) {
+
+        int slot = (int) key & mask;
+
+        while (keys[slot] != EMPTY_KEY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+
+    }
+
+    private void grow() {
+
+        final long[] oldKeys = keys;
+        final int[] oldClicks = clicks;
+        final int[] oldImpressions = impressions;
+
+        keys = new long[oldKeys.length * 2];
+        clicks = new int[keys.length];
+        impressions = new int[keys.length];
+        mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+
+            if (oldKeys[i] == EMPTY_KEY) {
+                continue;
+            }
+
+            int slot = (int) oldKeys[i] & mask;
+            while (keys[slot] != EMPTY_KEY) {
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = oldKeys[i];
+            clicks[slot] = oldClicks[i];
+            impressions[slot] = oldImpressions[i];
+
+        }
+
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.xcontent.ToXContent;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The document written to the UBI queries index for a captured query.
+ * <p>
+ * The query DSL is rendered compactly, without its <code>ext</code> section, when the document
+ * is flushed and is written straight into the document source as UTF-8 bytes. A continuation,
+ * a later capture of a query ID such as the next page of its results, is written without its
+ * query DSL, which is on the first captured document of the query ID.
+ */
+public class QueryDocument implements UbiDocument {
+
+    /**
+     * The index of captured queries.
+     */
+    public static final String UBI_QUERIES_INDEX = "ubi_queries";
+
+    /**
+     * The index that holds each distinct query DSL once when queries are captured as hashes.
+     */
+    public static final String UBI_QUERY_DSL_INDEX = "ubi_query_dsl";
+
+    // The ext section holds the UBI parameters, which are stored in their own fields.
+    private static final Set<String> EXCLUDED_QUERY_FIELDS = Set.of("ext");
+
+    private static final long BASE_SIZE_IN_BYTES = 512;
+
+    private final QueryRequest queryRequest;
+    private final UbiSettings.QueryCaptureMode mode;
+    private final UbiSettings.ObjectIdStorage objectIdStorage;
+    private final int maxQueryBytes;
+    private final Predicate<String> isNewQueryHash;
+    private final Consumer<String> onQueryHashWritten;
+    private final boolean continuation;
+    private final UbiStats stats;
+    private final long estimatedSizeInBytes;
+
+    private String newQueryHash;
+
+    /**
+     * Creates a query document.
+     * @param queryRequest The captured {@link QueryRequest}.
+     * @param mode How the query DSL is stored.
+     * @param maxQueryBytes The maximum number of bytes of the query DSL stored in <code>truncated</code> mode.
+     * @param objectIdStorage How the object IDs of the response are stored.
+     * @param isNewQueryHash Tells whether a query hash has not been written to the query DSL index yet.
+     * @param onQueryHashWritten Called with the query hash once its query DSL is in the query DSL index.
+     * @param continuation Whether the query ID was already captured, so that the query DSL is not written again.
+     * @param stats The {@link UbiStats} that record the size of the query DSL.
+     */
+    public QueryDocument(final QueryRequest queryRequest, final UbiSettings.QueryCaptureMode mode, final int maxQueryBytes,
+                         final UbiSettings.ObjectIdStorage objectIdStorage, final Predicate<String> isNewQueryHash,
+                         final Consumer<String> onQueryHashWritten, final boolean continuation, final UbiStats stats) {
+        this.queryRequest = queryRequest;
+        this.mode = mode;
+        this.maxQueryBytes = maxQueryBytes;
+        this.objectIdStorage = objectIdStorage;
+        this.isNewQueryHash = isNewQueryHash;
+        this.onQueryHashWritten = onQueryHashWritten;
+        this.continuation = continuation;
+        this.stats = stats;
+        this.estimatedSizeInBytes = BASE_SIZE_IN_BYTES
+                + 48L * queryRequest.getQueryResponse().getQueryResponseObjectIds().size()
+                + 64L * queryRequest.getQueryAttributes().size()
+                + estimatedQuerySizeInBytes();
+    }
+
+    @Override
+    public long estimatedSizeInBytes() {
+        return estimatedSizeInBytes;
+    }
+
+    @Override
+    public void onWritten() {
+        if (newQueryHash != null) {
+            onQueryHashWritten.accept(newQueryHash);
+        }
+    }
+
+    private long estimatedQuerySizeInBytes() {
+
+        if (continuation || mode == UbiSettings.QueryCaptureMode.NONE || queryRequest.getQuery() == null) {
+            return 0;
+        }
+
+        // The query DSL is only rendered when the document is flushed, so its size is taken from the queries rendered before.
+        // In hash mode it is what a new query DSL document costs.
+        final long meanQuerySize = stats.getMeanQuerySizeInBytes();
+
+        if (meanQuerySize < 0) {
+            return maxQueryBytes;
+        }
+
+        return mode == UbiSettings.QueryCaptureMode.TRUNCATED ? Math.min(meanQuerySize, maxQueryBytes) : meanQuerySize;
+
+    }
+
+    @Override
+    public void addTo(final BulkRequest bulkRequest) throws IOException {
+
+        final BytesReference query = continuation || mode == UbiSettings.QueryCaptureMode.NONE || queryRequest.getQuery() == null
+                ? null
+                : renderQuery(queryRequest.getQuery());
+
+        if (query != null) {
+            stats.onQueryRendered(query.length());
+        }
+
+        String queryHash = null;
+
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+
+            // What will be indexed - adheres to the queries-mapping.json
+            builder.startObject();
+            builder.field("@timestamp", queryRequest.getTimestamp());
+            builder.field("timestamp", queryRequest.getTimestamp());
+            builder.field("query_id", queryRequest.getQueryId());
+            builder.field("query_response_id", queryRequest.getQueryResponse().getQueryResponseId());
+            writeObjectIds(builder, queryRequest.getQueryResponse().getQueryResponseObjectIds());
+            writeHitMetadata(builder, queryRequest.getQueryResponse());
+            builder.field("client_id", queryRequest.getClientId());
+            builder.field("user_query", queryRequest.getUserQuery());
+            builder.field("query_attributes", queryRequest.getQueryAttributes());
+
+            if (continuation) {
+                builder.field("query_continuation", true);
+            }
+
+            if (query != null) {
+                switch (mode) {
+                    case FULL -> writeQuery(builder, query, query.length());
+                    case TRUNCATED -> writeQuery(builder, query, truncatedLength(query, maxQueryBytes));
+                    case HASH -> {
+                        queryHash = hash(query);
+                        builder.field("query_hash", queryHash);
+                    }
+                    default -> {}
+                }
+            }
+
+            builder.endObject();
+
+            // The query response ID is the document ID so that a retried write cannot index the query twice.
+            bulkRequest.add(new IndexRequest(UBI_QUERIES_INDEX)
+                    .id(queryRequest.getQueryResponse().getQueryResponseId())
+                    .opType(DocWriteRequest.OpType.CREATE)
+                    .source(builder));
+
+        }
+
+        if (queryHash != null && isNewQueryHash.test(queryHash)) {
+
+            // The hash is only recorded once the write succeeds, so a failed write is retried by a later capture.
+            newQueryHash = queryHash;
+
+            try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+
+                builder.startObject();
+                builder.field("@timestamp", queryRequest.getTimestamp());
+                builder.field("timestamp", queryRequest.getTimestamp());
+                builder.field("query_hash", queryHash);
+                writeQuery(builder, query, query.length());
+                builder.endObject();
+
+                bulkRequest.add(new IndexRequest(UBI_QUERY_DSL_INDEX)
+                        .id(queryHash)
+                        .opType(DocWriteRequest.OpType.CREATE)
+                        .source(builder));
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Renders a query DSL as compact JSON without its <code>ext</code> section.
+     * @param query The query DSL.
+     * @return The JSON bytes.
+     * @throws IOException Thrown if the query cannot be rendered.
+     */
+    static BytesReference renderQuery(final ToXContent query) throws IOException {
+        try (XContentBuilder builder = XContentBuilder.builder(XContentType.JSON, Collections.emptySet(), EXCLUDED_QUERY_FIELDS)) {
+            query.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return BytesReference.bytes(builder);
+        }
+    }
+
+    /**
+     * Gets the length of the longest prefix of a UTF-8 string that is no longer than a number of
+     * bytes and does not split a character.
+     * @param utf8 The UTF-8 bytes.
+     * @param maxBytes The maximum number of bytes.
+     * @return The length of the prefix.
+     */
+    static int truncatedLength(final BytesReference utf8, final int maxBytes) {
+
+        if (utf8.length() <= maxBytes) {
+            return utf8.length();
+        }
+
+        int length = maxBytes;
+
+        // Continuation bytes look like 10xxxxxx.
+        while (length > 0 && (utf8.get(length) & 0xC0) == 0x80) {
+            length--;
+        }
+
+        return length;
+
+    }
+
+    /**
+     * Gets a fingerprint of a query DSL.
+     * @param query The rendered query DSL.
+     * @return The 128 bit murmur3 hash of the query, base64 encoded.
+     */
+    static String hash(final BytesReference query) {
+        final BytesRef bytes = query.toBytesRef();
+        final MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, 0, new MurmurHash3.Hash128());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash.getBytes());
+    }
+
+    private void writeObjectIds(final XContentBuilder builder, final List<String> objectIds) throws IOException {
+
+        if (objectIdStorage == UbiSettings.ObjectIdStorage.PACKED) {
+            final byte[] packed = ObjectIdCodec.encode(objectIds);
+            if (packed != null) {
+                builder.field("query_response_object_ids_packed", packed);
+                return;
+            }
+        }
+
+        // The rank of each object is its position in the array.
+        builder.field("query_response_object_ids", objectIds);
+
+    }
+
+    private static void writeHitMetadata(final XContentBuilder builder, final QueryResponse queryResponse) throws IOException {
+
+        // The rank of hit i is offset + i + 1.
+        builder.field("query_response_offset", queryResponse.getOffset());
+
+        if (queryResponse.getScores() != null) {
+            builder.array("query_response_hit_scores", queryResponse.getScores());
+        }
+
+        if (queryResponse.getShards() != null) {
+            builder.array("query_response_hit_shards", queryResponse.getShards());
+            builder.array("query_response_indexes", queryResponse.getIndexes());
+            builder.array("query_response_hit_indexes", queryResponse.getIndexOrdinals());
+        }
+
+    }
+
+    private static void writeQuery(final XContentBuilder builder, final BytesReference query, final int length) throws IOException {
+        final BytesRef bytes = query.toBytesRef();
+        builder.field("query");
+        builder.utf8Value(bytes.bytes, bytes.offset, length);
+    }
+
+}
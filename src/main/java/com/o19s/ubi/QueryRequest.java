@@ -16,7 +16,9 @@
  */
 package com.o19s.ubi;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.xcontent.ToXContent;
 
 import java.util.Map;
 
@@ -29,7 +31,7 @@ public class QueryRequest {
     private final String queryId;
     private final String clientId;
     private final String userQuery;
-    private final String query;
+    private final ToXContent query;
     private final Map<String, String> queryAttributes;
     private final QueryResponse queryResponse;
 
@@ -38,11 +40,11 @@ public class QueryRequest {
      * @param queryId The ID of the query.
      * @param userQuery The user-entered query.
      * @param clientId The ID of the client that initiated the query.
-     * @param query The raw query.
+     * @param query The query DSL. It is only rendered when the query is written.
      * @param queryAttributes An optional map of additional attributes for the query.
      * @param queryResponse The {@link QueryResponse} for this query request.
      */
-    public QueryRequest(final String queryId, final String userQuery, final String clientId, final String query,
+    public QueryRequest(final String queryId, final String userQuery, final String clientId, final ToXContent query,
                         final Map<String, String> queryAttributes, final QueryResponse queryResponse) {
 
         this.timestamp = System.currentTimeMillis();
@@ -120,13 +122,11 @@ public class QueryRequest {
     }
 
     /**
-     * Gets the raw query.
-     * @return The raw query.
+     * Gets the query DSL.
+     * @return The query DSL, or <code>null</code> if the search has none.
      */
-    public String getQuery() {
-        if(query == null) {
-            return "";
-        }
+    @JsonIgnore
+    public ToXContent getQuery() {
         return query;
     }
 
@@ -20,23 +20,54 @@ import java.util.List;
 
 /**
  * A query response.
+ * <p>
+ * Besides the object IDs it can hold the score, shard and index of each hit in arrays that
+ * parallel the object IDs, so that hit <code>i</code> was ranked at position <code>offset + i</code>.
+ * Primitive arrays are used so that capturing them does not box a value per hit.
  */
 public class QueryResponse {
 
     private final String queryId;
     private final String queryResponseId;
     private final List<String> queryResponseObjectIds;
+    private final int offset;
+    private final float[] scores;
+    private final int[] shards;
+    private final String[] indexes;
+    private final int[] indexOrdinals;
 
     /**
-     * Creates a query response.
+     * Creates a query response without hit metadata.
      * @param queryId The ID of the query.
      * @param queryResponseId The ID of the query response.
      * @param queryResponseObjectIds A list of IDs for the hits in the query.
      */
     public QueryResponse(final String queryId, final String queryResponseId, final List<String> queryResponseObjectIds) {
+        this(queryId, queryResponseId, queryResponseObjectIds, 0, null, null, null, null);
+    }
+
+    /**
+     * Creates a query response.
+     * @param queryId The ID of the query.
+     * @param queryResponseId The ID of the query response.
+     * @param queryResponseObjectIds A list of IDs for the hits in the query.
+     * @param offset The position of the first hit, the <code>from</code> of the search.
+     * @param scores The score of each hit, or <code>null</code> if the hits were not scored.
+     * @param shards The shard number of each hit, or <code>null</code> if unknown.
+     * @param indexes The distinct indexes of the hits, or <code>null</code> if unknown.
+     * @param indexOrdinals The position in <code>indexes</code> of the index of each hit, or <code>null</code> if unknown.
+     */
+    public QueryResponse(final String queryId, final String queryResponseId, final List<String> queryResponseObjectIds,
+                         final int offset, final float[] scores, final int[] shards, final String[] indexes,
+                         final int[] indexOrdinals) {
         this.queryId = queryId;
         this.queryResponseId = queryResponseId;
         this.queryResponseObjectIds = queryResponseObjectIds;
+        this.offset = offset;
+        this.scores = scores;
+        this.shards = shards;
+        this.indexes = indexes;
+        this.indexOrdinals = indexOrdinals;
     }
 
     /**
@@ -63,4 +94,44 @@ public class QueryResponse {
         return queryResponseObjectIds;
     }
 
+    /**
+     * Gets the position of the first hit.
+     * @return The offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the score of each hit.
+     * @return The scores, or <code>null</code> if the hits were not scored.
+     */
+    public float[] getScores() {
+        return scores;
+    }
+
+    /**
+     * Gets the shard number of each hit.
+     * @return The shard numbers, or <code>null</code> if unknown.
+     */
+    public int[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets the distinct indexes of the hits.
+     * @return The index names, or <code>null</code> if unknown.
+     */
+    public String[] getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Gets the position in {@link #getIndexes()} of the index of each hit.
+     * @return The index ordinals, or <code>null</code> if unknown.
+     */
+    public int[] getIndexOrdinals() {
+        return indexOrdinals;
+    }
+
 }
@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentParserConfiguration;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Accepts UBI events as newline-delimited JSON and writes them to the UBI events index.
+ * <p>
+ * Each line is validated against the event schema as it is parsed and copied token by token
+ * into the indexed document, which is enriched with the server timestamp and, when a salt is in the
+ * keystore, a hash of the client IP address. When the event's query was captured on this node, it is also enriched with
+ * the objects returned to the query from the {@link UbiImpressionCache}. The events are parsed and queued on the
+ * {@link UbiDocumentWriter} by the {@link UbiEventsAction}, which requires the <code>write</code> privilege on the events index.
+ */
+public class RestUbiEventsAction extends BaseRestHandler {
+
+    /**
+     * The index of UBI events.
+     */
+    public static final String UBI_EVENTS_INDEX = "ubi_events";
+
+    private static final Set<String> STRING_FIELDS = Set.of(
+            "application", "action_name", "query_id", "session_id", "client_id", "user_id", "message_type", "message");
+
+    private static final String TIMESTAMP_FIELD = "timestamp";
+    private static final String EVENT_ATTRIBUTES_FIELD = "event_attributes";
+    private static final String QUERY_ID_FIELD = "query_id";
+    private static final String OBJECT_FIELD = "object";
+    private static final String OBJECT_ID_FIELD = "object_id";
+
+    private final String clientIpHeader;
+    private final byte[] clientIpSalt;
+
+    /**
+     * Creates the handler.
+     * @param settings The node {@link Settings}.
+     */
+    public RestUbiEventsAction(final Settings settings) {
+        this.clientIpHeader = UbiSettings.EVENTS_CLIENT_IP_HEADER.get(settings);
+        this.clientIpSalt = readSalt(settings);
+    }
+
+    @Override
+    public String getName() {
+        return "ubi_events_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(POST, "/_ubi/events"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
+
+        // The events are parsed by the transport action on the UBI thread pool rather than on the network thread.
+        final UbiEventsAction.Request eventsRequest = new UbiEventsAction.Request(request.requiredContent(), hashClientIp(request));
+
+        return channel -> client.execute(UbiEventsAction.INSTANCE, eventsRequest,
+                new RestToXContentListener<>(channel, UbiEventsAction.Response::status));
+
+    }
+
+    /**
+     * Validates an event and builds the document that is indexed for it. The event is copied
+     * token by token without building a map.
+     * Package-private so it can be tested.
+     * @param line A JSON event.
+     * @param now The server timestamp.
+     * @param clientIpHash The hash of the client IP address, or <code>null</code>.
+     * @param impressions The {@link UbiImpressionCache}, or <code>null</code> to not enrich the event with the query's objects.
+     * @return The source of the document to index.
+     * @throws IllegalArgumentException Thrown if the event does not match the event schema.
+     * @throws IOException Thrown if the event is not valid JSON.
+     */
+    static BytesReference toEventSource(final BytesReference line, final long now, final String clientIpHash,
+                                        final UbiImpressionCache impressions) throws IOException {
+
+        try (XContentParser parser = XContentHelper.createParserNotCompressed(XContentParserConfiguration.EMPTY, line, XContentType.JSON);
+             XContentBuilder builder = XContentFactory.jsonBuilder()) {
+
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new IllegalArgumentException("an event must be a JSON object");
+            }
+
+            builder.startObject();
+
+            boolean hasActionName = false;
+            boolean hasTimestamp = false;
+            String queryId = null;
+            String objectId = null;
+
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+
+                final String field = parser.currentName();
+                token = parser.nextToken();
+
+                if (STRING_FIELDS.contains(field)) {
+                    expect(field, token == XContentParser.Token.VALUE_STRING || token == XContentParser.Token.VALUE_NULL, "a string");
+                    hasActionName |= "action_name".equals(field) && token == XContentParser.Token.VALUE_STRING;
+                } else if (TIMESTAMP_FIELD.equals(field)) {
+                    expect(field, token == XContentParser.Token.VALUE_STRING || token == XContentParser.Token.VALUE_NUMBER,
+                            "a date string or epoch milliseconds");
+                    hasTimestamp = true;
+                } else if (EVENT_ATTRIBUTES_FIELD.equals(field)) {
+                    expect(field, token == XContentParser.Token.START_OBJECT, "an object");
+                } else {
+                    throw new IllegalArgumentException("unknown field [" + field + "]");
+                }
+
+                builder.field(field);
+
+                if (EVENT_ATTRIBUTES_FIELD.equals(field)) {
+                    objectId = copyEventAttributes(parser, builder);
+                } else {
+                    if (QUERY_ID_FIELD.equals(field) && token == XContentParser.Token.VALUE_STRING) {
+                        queryId = parser.text();
+                    }
+                    builder.copyCurrentStructure(parser);
+                }
+
+            }
+
+            if (token != XContentParser.Token.END_OBJECT || parser.nextToken() != null) {
+                throw new IllegalArgumentException("an event must be a single JSON object on one line");
+            }
+
+            if (!hasActionName) {
+                throw new IllegalArgumentException("[action_name] is required");
+            }
+
+            if (!hasTimestamp) {
+                builder.field(TIMESTAMP_FIELD, now);
+            }
+
+            builder.field("server_timestamp", now);
+            builder.field("@timestamp", now);
+
+            if (clientIpHash != null) {
+                builder.field("client_ip_hash", clientIpHash);
+            }
+
+            final UbiImpressionCache.Impressions shown = impressions == null ? null : impressions.get(queryId, objectId);
+
+            if (shown != null) {
+                builder.field("query_response_id", shown.queryResponseId());
+                builder.field("query_response_object_ids", shown.objectIds());
+                final int rank = shown.rankOf(objectId);
+                if (rank > 0) {
+                    builder.field("query_response_rank", rank);
+                }
+            }
+
+            builder.endObject();
+
+            return BytesReference.bytes(builder);
+
+        }
+
+    }
+
+    /**
+     * Copies the event attributes token by token, picking out the object ID of the event on the way.
+     * @return The <code>event_attributes.object.object_id</code> of the event, or <code>null</code>.
+     */
+    private static String copyEventAttributes(final XContentParser parser, final XContentBuilder builder) throws IOException {
+
+        String objectId = null;
+
+        builder.startObject();
+
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+
+            final String field = parser.currentName();
+            final XContentParser.Token token = parser.nextToken();
+
+            builder.field(field);
+
+            if (OBJECT_FIELD.equals(field) && token == XContentParser.Token.START_OBJECT) {
+
+                builder.startObject();
+
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    final String objectField = parser.currentName();
+                    final XContentParser.Token valueToken = parser.nextToken();
+                    if (OBJECT_ID_FIELD.equals(objectField) && valueToken.isValue()) {
+                        objectId = parser.text();
+                    }
+                    builder.field(objectField);
+                    builder.copyCurrentStructure(parser);
+                }
+
+                builder.endObject();
+
+            } else {
+                builder.copyCurrentStructure(parser);
+            }
+
+        }
+
+        builder.endObject();
+
+        return objectId;
+
+    }
+
+    private static void expect(final String field, final boolean valid, final String expected) {
+        if (!valid) {
+            throw new IllegalArgumentException("[" + field + "] must be " + expected);
+        }
+    }
+
+    private static byte[] readSalt(final Settings settings) {
+
+        // The keystore is only readable while the node starts, so the salt is copied out of it here.
+        try (SecureString salt = UbiSettings.EVENTS_CLIENT_IP_SALT.get(settings)) {
+            return salt.length() == 0 ? null : salt.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+    }
+
+    private String hashClientIp(final RestRequest request) {
+
+        if (clientIpSalt == null) {
+            return null;
+        }
+
+        String clientIp = null;
+
+        if (!clientIpHeader.isEmpty() && request.header(clientIpHeader) != null) {
+            // The first address of X-Forwarded-For style headers is the client.
+            clientIp = request.header(clientIpHeader).split(",")[0].trim();
+        } else if (request.getHttpChannel() != null) {
+            final InetSocketAddress remoteAddress = request.getHttpChannel().getRemoteAddress();
+            if (remoteAddress != null && remoteAddress.getAddress() != null) {
+                clientIp = remoteAddress.getAddress().getHostAddress();
+            }
+        }
+
+        return hashClientIp(clientIp, clientIpSalt);
+
+    }
+
+    /**
+     * Hashes a client IP address with SHA-256. Package-private so it can be tested.
+     * @param clientIp The client IP address, or <code>null</code>.
+     * @param salt The secret salt, or <code>null</code> when none is configured.
+     * @return The hex encoded hash, or <code>null</code> if there is no address or no salt.
+     */
+    static String hashClientIp(final String clientIp, final byte[] salt) {
+
+        if (clientIp == null || clientIp.isEmpty() || salt == null) {
+            return null;
+        }
+
+        final MessageDigest digest = MessageDigests.sha256();
+        digest.update(salt);
+        digest.update(clientIp.getBytes(StandardCharsets.UTF_8));
+        return MessageDigests.toHexString(digest.digest());
+
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * Starts, shows and cancels the judgements job, see {@link UbiJudgementsTaskExecutor}.
+ * The parameters of {@link UbiJudgementsTaskParams} are given in the body.
+ */
+public class RestUbiJudgementsAction extends RestUbiTaskAction {
+
+    /**
+     * The ID of the judgements persistent task.
+     */
+    public static final String TASK_ID = "ubi-judgements";
+
+    /**
+     * Creates the handler.
+     */
+    public RestUbiJudgementsAction() {
+        super("/_ubi/judgements", TASK_ID, UbiJudgementsTaskParams.NAME);
+    }
+
+    @Override
+    public String getName() {
+        return "ubi_judgements_action";
+    }
+
+    @Override
+    protected PersistentTaskParams parseParams(final XContentParser parser) {
+        return parser == null ? new UbiJudgementsTaskParams(null, null, null, null, null) : UbiJudgementsTaskParams.fromXContent(parser);
+    }
+
+}
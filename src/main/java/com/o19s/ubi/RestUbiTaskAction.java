@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.persistent.PersistentTaskResponse;
+import org.elasticsearch.persistent.PersistentTasksCustomMetadata;
+import org.elasticsearch.persistent.RemovePersistentTaskAction;
+import org.elasticsearch.persistent.StartPersistentTaskAction;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.RestBuilderListener;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Starts, shows and cancels a UBI job that runs as a persistent task.
+ * <p>
+ * Only one job of each kind runs at a time. <code>POST</code> starts it with the parameters in
+ * the body, <code>GET</code> shows its progress while it runs and <code>DELETE</code> cancels it.
+ */
+public abstract class RestUbiTaskAction extends BaseRestHandler {
+
+    private final String path;
+    private final String taskId;
+    private final String taskName;
+
+    /**
+     * Creates the handler.
+     * @param path The path of the job's endpoint.
+     * @param taskId The ID of the job's persistent task.
+     * @param taskName The name of the job's persistent task.
+     */
+    protected RestUbiTaskAction(final String path, final String taskId, final String taskName) {
+        this.path = path;
+        this.taskId = taskId;
+        this.taskName = taskName;
+    }
+
+    /**
+     * Parses the parameters of the job.
+     * @param parser The {@link XContentParser} of the request body, or <code>null</code> if it has none.
+     * @return The parameters.
+     * @throws IOException Thrown if the body cannot be read.
+     */
+    protected abstract PersistentTaskParams parseParams(XContentParser parser) throws IOException;
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(POST, path), new Route(GET, path), new Route(DELETE, path));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
+
+        if (request.method() == POST) {
+
+            final PersistentTaskParams params;
+
+            if (request.hasContentOrSourceParam()) {
+                try (XContentParser parser = request.contentOrSourceParamParser()) {
+                    params = parseParams(parser);
+                }
+            } else {
+                params = parseParams(null);
+            }
+
+            final StartPersistentTaskAction.Request startRequest = new StartPersistentTaskAction.Request(taskId, taskName, params);
+
+            return channel -> client.execute(StartPersistentTaskAction.INSTANCE, startRequest, taskListener(channel));
+
+        } else if (request.method() == DELETE) {
+
+            final RemovePersistentTaskAction.Request removeRequest = new RemovePersistentTaskAction.Request(taskId);
+
+            return channel -> client.execute(RemovePersistentTaskAction.INSTANCE, removeRequest, taskListener(channel));
+
+        } else {
+
+            final ClusterStateRequest stateRequest = new ClusterStateRequest().clear().metadata(true).customs(true);
+
+            return channel -> client.admin().cluster().state(stateRequest, new RestBuilderListener<>(channel) {
+                @Override
+                public RestResponse buildResponse(final ClusterStateResponse response, final XContentBuilder builder) throws Exception {
+                    return toRestResponse(PersistentTasksCustomMetadata.getTaskWithId(response.getState(), taskId), builder);
+                }
+            });
+
+        }
+
+    }
+
+    private RestBuilderListener<PersistentTaskResponse> taskListener(final RestChannel channel) {
+        return new RestBuilderListener<>(channel) {
+            @Override
+            public RestResponse buildResponse(final PersistentTaskResponse response, final XContentBuilder builder) throws Exception {
+                return toRestResponse(response.getTask(), builder);
+            }
+        };
+    }
+
+    private RestResponse toRestResponse(final PersistentTasksCustomMetadata.PersistentTask<?> task, final XContentBuilder builder)
+            throws IOException {
+
+        if (task == null) {
+            throw new ResourceNotFoundException("No [" + taskName + "] job is running");
+        }
+
+        builder.startObject();
+        builder.field("task", task);
+        builder.endObject();
+
+        return new RestResponse(RestStatus.OK, builder);
+
+    }
+
+}
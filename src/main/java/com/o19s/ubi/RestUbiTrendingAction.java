@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * Returns the trending user queries and objects of the cluster.
+ */
+public class RestUbiTrendingAction extends BaseRestHandler {
+
+    /**
+     * Creates the handler.
+     */
+    public RestUbiTrendingAction() {}
+
+    @Override
+    public String getName() {
+        return "ubi_trending_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return List.of(new Route(GET, "/_ubi/trending"), new Route(GET, "/_ubi/trending/{nodeId}"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) {
+
+        final int size = request.paramAsInt("size", UbiTrendingAction.DEFAULT_SIZE);
+
+        if (size < 0) {
+            throw new IllegalArgumentException("[size] must not be negative but was [" + size + "]");
+        }
+
+        final UbiTrendingAction.Request trendingRequest =
+                new UbiTrendingAction.Request(size, Strings.splitStringByCommaToArray(request.param("nodeId")));
+
+        return channel -> client.execute(UbiTrendingAction.INSTANCE, trendingRequest, new RestActions.NodesResponseRestListener<>(channel));
+
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates and enriches a batch of UBI events on the UBI thread pool and queues them on the {@link UbiDocumentWriter}.
+ */
+public class TransportUbiEventsAction extends HandledTransportAction<UbiEventsAction.Request, UbiEventsAction.Response> {
+
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    private final ThreadPool threadPool;
+    private final UbiDocumentWriter writer;
+    private final UbiImpressionCache impressions;
+    private final int maxEventsPerRequest;
+
+    /**
+     * Creates the action.
+     * @param transportService The {@link TransportService}.
+     * @param clusterService The {@link ClusterService}.
+     * @param actionFilters The {@link ActionFilters}.
+     * @param writer The {@link UbiDocumentWriter} that writes the events.
+     * @param impressions The {@link UbiImpressionCache} that events are enriched from.
+     */
+    @Inject
+    public TransportUbiEventsAction(final TransportService transportService, final ClusterService clusterService,
+                                    final ActionFilters actionFilters, final UbiDocumentWriter writer,
+                                    final UbiImpressionCache impressions) {
+        // Requests are forked to the UBI thread pool in doExecute, which local requests also go through.
+        super(UbiEventsAction.INSTANCE.name(), transportService, actionFilters, UbiEventsAction.Request::new,
+                EsExecutors.DIRECT_EXECUTOR_SERVICE);
+        this.threadPool = transportService.getThreadPool();
+        this.writer = writer;
+        this.impressions = impressions;
+        this.maxEventsPerRequest = UbiSettings.EVENTS_MAX_PER_REQUEST.get(clusterService.getSettings());
+    }
+
+    @Override
+    protected void doExecute(final Task task, final UbiEventsAction.Request request,
+                             final ActionListener<UbiEventsAction.Response> listener) {
+        threadPool.executor(UbiPlugin.UBI_THREAD_POOL_NAME).execute(ActionRunnable.supply(listener, () -> index(request)));
+    }
+
+    private UbiEventsAction.Response index(final UbiEventsAction.Request request) {
+
+        final BytesReference content = request.getContent();
+        final long now = System.currentTimeMillis();
+
+        int accepted = 0;
+        int dropped = 0;
+        int rejected = 0;
+        int lineNumber = 0;
+        final List<String> errors = new ArrayList<>();
+
+        for (int from = 0; from < content.length(); ) {
+
+            int to = content.indexOf((byte) '\n', from);
+            if (to == -1) {
+                to = content.length();
+            }
+
+            final BytesReference line = trim(content.slice(from, to - from));
+            from = to + 1;
+            lineNumber++;
+
+            if (line.length() == 0) {
+                continue;
+            }
+
+            if (accepted + dropped + rejected >= maxEventsPerRequest) {
+                rejected++;
+                addError(errors, "line " + lineNumber + ": more than " + maxEventsPerRequest + " events in the request");
+                break;
+            }
+
+            try {
+                final BytesReference source = RestUbiEventsAction.toEventSource(line, now, request.getClientIpHash(), impressions);
+                // Events are only ever created, which data streams require.
+                final IndexRequest indexRequest = new IndexRequest(RestUbiEventsAction.UBI_EVENTS_INDEX)
+                        .opType(DocWriteRequest.OpType.CREATE)
+                        .source(source, XContentType.JSON);
+                if (writer.add(indexRequest)) {
+                    accepted++;
+                } else {
+                    dropped++;
+                }
+            } catch (IllegalArgumentException | IOException e) {
+                rejected++;
+                addError(errors, "line " + lineNumber + ": " + e.getMessage());
+            }
+
+        }
+
+        return new UbiEventsAction.Response(accepted, dropped, rejected, errors);
+
+    }
+
+    private static void addError(final List<String> errors, final String error) {
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(error);
+        }
+    }
+
+    private static BytesReference trim(final BytesReference line) {
+
+        int length = line.length();
+
+        while (length > 0 && Character.isWhitespace(line.get(length - 1))) {
+            length--;
+        }
+
+        return length == line.length() ? line : line.slice(0, length);
+
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Collects the {@link UbiStats} of each node.
+ */
+public class TransportUbiStatsAction extends TransportNodesAction<
+        UbiStatsAction.Request, UbiStatsAction.Response, UbiStatsAction.NodeRequest, UbiStatsAction.NodeResponse> {
+
+    private final UbiStats stats;
+    private final CaptureSampler sampler;
+    private final UbiDocumentWriter writer;
+    private final UbiImpressionCache impressions;
+
+    /**
+     * Creates the action.
+     * @param transportService The {@link TransportService}.
+     * @param clusterService The {@link ClusterService}.
+     * @param actionFilters The {@link ActionFilters}.
+     * @param stats The {@link UbiStats} of this node.
+     * @param sampler The {@link CaptureSampler} of this node.
+     * @param writer The {@link UbiDocumentWriter} of this node.
+     * @param impressions The {@link UbiImpressionCache} of this node.
+     */
+    @Inject
+    public TransportUbiStatsAction(final TransportService transportService, final ClusterService clusterService,
+                                   final ActionFilters actionFilters, final UbiStats stats,
+                                   final CaptureSampler sampler, final UbiDocumentWriter writer,
+                                   final UbiImpressionCache impressions) {
+        super(UbiStatsAction.INSTANCE.name(), clusterService, transportService, actionFilters,
+                UbiStatsAction.NodeRequest::new, transportService.getThreadPool().executor(ThreadPool.Names.MANAGEMENT));
+        this.stats = stats;
+        this.sampler = sampler;
+        this.writer = writer;
+        this.impressions = impressions;
+    }
+
+    @Override
+    protected UbiStatsAction.Response newResponse(final UbiStatsAction.Request request, final List<UbiStatsAction.NodeResponse> nodes,
+                                                  final List<FailedNodeException> failures) {
+        return new UbiStatsAction.Response(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected UbiStatsAction.NodeRequest newNodeRequest(final UbiStatsAction.Request request) {
+        return new UbiStatsAction.NodeRequest();
+    }
+
+    @Override
+    protected UbiStatsAction.NodeResponse newNodeResponse(final StreamInput in, final DiscoveryNode node) throws IOException {
+        return new UbiStatsAction.NodeResponse(in);
+    }
+
+    @Override
+    protected UbiStatsAction.NodeResponse nodeOperation(final UbiStatsAction.NodeRequest request, final Task task) {
+        return new UbiStatsAction.NodeResponse(clusterService.localNode(), stats.snapshot(sampler, writer, impressions));
+    }
+
+}
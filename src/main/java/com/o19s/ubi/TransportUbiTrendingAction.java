@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Collects the {@link UbiTrending} sketches of each node.
+ */
+public class TransportUbiTrendingAction extends TransportNodesAction<
+        UbiTrendingAction.Request, UbiTrendingAction.Response, UbiTrendingAction.NodeRequest, UbiTrendingAction.NodeResponse> {
+
+    private final UbiTrending trending;
+
+    /**
+     * Creates the action.
+     * @param transportService The {@link TransportService}.
+     * @param clusterService The {@link ClusterService}.
+     * @param actionFilters The {@link ActionFilters}.
+     * @param trending The {@link UbiTrending} sketches of this node.
+     */
+    @Inject
+    public TransportUbiTrendingAction(final TransportService transportService, final ClusterService clusterService,
+                                      final ActionFilters actionFilters, final UbiTrending trending) {
+        super(UbiTrendingAction.INSTANCE.name(), clusterService, transportService, actionFilters,
+                UbiTrendingAction.NodeRequest::new, transportService.getThreadPool().executor(ThreadPool.Names.MANAGEMENT));
+        this.trending = trending;
+    }
+
+    @Override
+    protected UbiTrendingAction.Response newResponse(final UbiTrendingAction.Request request,
+                                                     final List<UbiTrendingAction.NodeResponse> nodes,
+                                                     final List<FailedNodeException> failures) {
+        return new UbiTrendingAction.Response(clusterService.getClusterName(), nodes, failures, request.getSize());
+    }
+
+    @Override
+    protected UbiTrendingAction.NodeRequest newNodeRequest(final UbiTrendingAction.Request request) {
+        return new UbiTrendingAction.NodeRequest();
+    }
+
+    @Override
+    protected UbiTrendingAction.NodeResponse newNodeResponse(final StreamInput in, final DiscoveryNode node) throws IOException {
+        return new UbiTrendingAction.NodeResponse(in);
+    }
+
+    @Override
+    protected UbiTrendingAction.NodeResponse nodeOperation(final UbiTrendingAction.NodeRequest request, final Task task) {
+        return new UbiTrendingAction.NodeResponse(clusterService.localNode(), trending.snapshot());
+    }
+
+}
@@ -21,27 +21,26 @@ import org.apache.logging.log4j.Logger;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
-import org.elasticsearch.action.DocWriteResponse;
-import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.action.support.ActionFilterChain;
-import org.elasticsearch.client.internal.Client;
-import org.elasticsearch.cluster.metadata.IndexMetadata;
-import org.elasticsearch.common.io.Streams;
-import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.search.SearchExtBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
 import com.o19s.ubi.ext.UbiParameters;
-import org.elasticsearch.xcontent.XContentType;
+import com.o19s.ubi.ext.UbiParametersExtBuilder;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -52,19 +51,77 @@ public class UbiActionFilter implements ActionFilter {
 
     private static final Logger LOGGER = LogManager.getLogger(UbiActionFilter.class);
 
-    private static final String UBI_QUERIES_INDEX = "ubi_queries";
-    private static final String UBI_EVENTS_INDEX = "ubi_events";
+    private static final int QUERY_HASH_CACHE_SIZE = 10_000;
+    private static final int QUERY_ID_CACHE_SIZE = 100_000;
+
+    private final UbiDocumentWriter writer;
+    private final CaptureSampler sampler;
+    private final CaptureIndexAllowlist allowlist;
+    private final UbiIndexDefaults indexDefaults;
+    private final UbiStats stats;
+    private final UbiQueryRollup rollup;
+    private final UbiTrending trending;
+    private final UbiImpressionCache impressions;
+    private final ThreadPool threadPool;
+
+    private volatile boolean enabled;
+    private volatile boolean captureAsync;
+    private volatile IdGenerator idGenerator;
+    private volatile UbiSettings.QueryCaptureMode queryCaptureMode;
+    private volatile int queryMaxBytes;
+    private volatile UbiSettings.ObjectIdStorage objectIdStorage;
+
+    // The hashes of query DSLs recently written to the query DSL index.
+    private final Cache<String, Boolean> queryHashes = CacheBuilder.<String, Boolean>builder()
+            .setMaximumWeight(QUERY_HASH_CACHE_SIZE)
+            .setExpireAfterWrite(TimeValue.timeValueHours(1))
+            .build();
+
+    // The query IDs captured within the coalescing window, or null when captures are not coalesced.
+    private volatile Cache<String, Boolean> capturedQueryIds;
 
-    private static final String EVENTS_MAPPING_FILE = "/events-mapping.json";
-    private static final String QUERIES_MAPPING_FILE = "/queries-mapping.json";
-
-    private final Client client;
     /**
      * Creates a new filter.
-     * @param client A {@link Client}.
+     * @param writer The {@link UbiDocumentWriter} that writes captured queries.
+     * @param sampler The {@link CaptureSampler} that decides which queries are captured.
+     * @param allowlist The {@link CaptureIndexAllowlist} that decides which indexes' searches are captured.
+     * @param indexDefaults The {@link UbiIndexDefaults} of searches that leave out UBI parameters.
+     * @param stats The {@link UbiStats} that record the capture path.
+     * @param rollup The {@link UbiQueryRollup} that counts searches by user query.
+     * @param trending The {@link UbiTrending} sketches of captured queries.
+     * @param impressions The {@link UbiImpressionCache} of the objects returned to captured queries.
+     * @param clusterService The {@link ClusterService}.
      */
-    public UbiActionFilter(Client client) {
-        this.client = client;
+    public UbiActionFilter(UbiDocumentWriter writer, CaptureSampler sampler, CaptureIndexAllowlist allowlist,
+                           UbiIndexDefaults indexDefaults, UbiStats stats, UbiQueryRollup rollup, UbiTrending trending,
+                           UbiImpressionCache impressions, ClusterService clusterService) {
+        this.writer = writer;
+        this.sampler = sampler;
+        this.allowlist = allowlist;
+        this.indexDefaults = indexDefaults;
+        this.stats = stats;
+        this.rollup = rollup;
+        this.trending = trending;
+        this.impressions = impressions;
+        this.threadPool = clusterService.threadPool();
+        this.enabled = UbiSettings.ENABLED.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.ENABLED, value -> this.enabled = value);
+        this.captureAsync = UbiSettings.CAPTURE_ASYNC.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_ASYNC, value -> this.captureAsync = value);
+        this.idGenerator = IdGenerator.of(UbiSettings.ID_GENERATOR.get(clusterService.getSettings()));
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.ID_GENERATOR,
+                value -> this.idGenerator = IdGenerator.of(value));
+        this.queryCaptureMode = UbiSettings.CAPTURE_QUERY.get(clusterService.getSettings());
+        this.queryMaxBytes = (int) UbiSettings.CAPTURE_QUERY_MAX_SIZE.get(clusterService.getSettings()).getBytes();
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_QUERY, value -> this.queryCaptureMode = value);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_QUERY_MAX_SIZE,
+                value -> this.queryMaxBytes = (int) value.getBytes());
+        this.objectIdStorage = UbiSettings.CAPTURE_OBJECT_IDS.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_OBJECT_IDS,
+                value -> this.objectIdStorage = value);
+        this.capturedQueryIds = capturedQueryIds(UbiSettings.CAPTURE_COALESCE_WINDOW.get(clusterService.getSettings()));
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.CAPTURE_COALESCE_WINDOW,
+                value -> this.capturedQueryIds = capturedQueryIds(value));
     }
 
     @Override
@@ -81,32 +138,38 @@ public class UbiActionFilter implements ActionFilter {
         ActionFilterChain<Request, Response> chain
     ) {
 
-        if (!(request instanceof SearchRequest || request instanceof MultiSearchRequest)) {
+        if (!enabled || !(request instanceof SearchRequest || request instanceof MultiSearchRequest)) {
             chain.proceed(task, action, request, listener);
             return;
         }
 
-        chain.proceed(task, action, request, new ActionListener<>() {
-
-            @Override
-            public void onResponse(Response response) {
+        // The parameters and index defaults are resolved once, here, and handed to the response listener.
+        final Object prepared = request instanceof MultiSearchRequest
+                ? prepareMultiSearchRequest((MultiSearchRequest) request)
+                : prepareSearchRequest((SearchRequest) request);
 
-                if (request instanceof MultiSearchRequest) {
+        // Searches without UBI parameters, or of indexes that are not captured, are not wrapped at all.
+        if (prepared == null) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
 
-                    final MultiSearchRequest multiSearchRequest = (MultiSearchRequest) request;
+        chain.proceed(task, action, request, new ActionListener<>() {
 
-                    for(final SearchRequest searchRequest : multiSearchRequest.requests()) {
-                        handleSearchRequest(searchRequest, response);
-                    }
+            @Override
+            public void onResponse(final Response response) {
 
-                }
+                final ActionResponse ubiResponse = request instanceof MultiSearchRequest
+                        ? handleMultiSearchRequest((MultiSearchRequest) request, (PreparedSearch[]) prepared, response)
+                        : handleSearchRequest((SearchRequest) request, (PreparedSearch) prepared, response);
 
-                if(request instanceof SearchRequest) {
-                    response = (Response) handleSearchRequest((SearchRequest) request, response);
+                if (ubiResponse == response) {
+                    listener.onResponse(response);
+                } else {
+                    // The caller only releases the response it passed in, which the new response holds a reference to.
+                    ActionListener.respondAndRelease(listener, (Response) ubiResponse);
                 }
 
-                listener.onResponse(response);
-
             }
 
             @Override
@@ -118,61 +181,146 @@ public class UbiActionFilter implements ActionFilter {
 
     }
 
-    private ActionResponse handleSearchRequest(final SearchRequest searchRequest, ActionResponse response) {
+    /**
+     * The UBI parameters and index defaults of a search that is captured.
+     * @param ubiParameters The {@link UbiParameters} of the search.
+     * @param defaults The {@link UbiIndexDefaults.Defaults} of its indexes, or <code>null</code>.
+     */
+    record PreparedSearch(UbiParameters ubiParameters, UbiIndexDefaults.Defaults defaults) {}
 
-        if (response instanceof SearchResponse) {
+    /**
+     * Prepares the searches of a multi-search to be captured.
+     * Package-private so it can be tested.
+     * @param multiSearchRequest The {@link MultiSearchRequest}.
+     * @return The {@link PreparedSearch} of each search, <code>null</code> for those that are not captured,
+     * or <code>null</code> if none of them are captured.
+     */
+    PreparedSearch[] prepareMultiSearchRequest(final MultiSearchRequest multiSearchRequest) {
 
-            final UbiParameters ubiParameters = UbiParameters.getUbiParameters(searchRequest);
+        final List<SearchRequest> searchRequests = multiSearchRequest.requests();
+        final PreparedSearch[] prepared = new PreparedSearch[searchRequests.size()];
+        boolean captured = false;
 
-            if (ubiParameters != null) {
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = prepareSearchRequest(searchRequests.get(i));
+            captured |= prepared[i] != null;
+        }
 
-                final String queryId = ubiParameters.getQueryId();
-                final String userQuery = ubiParameters.getUserQuery();
-                final String userId = ubiParameters.getClientId();
-                final String objectIdField = ubiParameters.getObjectIdField();
-                final Map<String, String> queryAttributes = ubiParameters.getQueryAttributes();
-                
-                final String query = searchRequest.source().toString();
-
-                final List<String> queryResponseHitIds = new LinkedList<>();
-
-                for (final SearchHit hit : ((SearchResponse) response).getHits()) {
-
-                    if (objectIdField == null || objectIdField.isEmpty()) {
-                        // Use the result's docId since no object_id was given for the search.
-                        queryResponseHitIds.add(String.valueOf(hit.docId()));
-                    } else {
-                        final Map<String, Object> source = hit.getSourceAsMap();
-                        queryResponseHitIds.add((String) source.get(objectIdField));
-                    }
+        return captured ? prepared : null;
 
-                }
+    }
+
+    /**
+     * Prepares a search to be captured.
+     * Package-private so it can be tested.
+     * @param searchRequest The {@link SearchRequest}.
+     * @return The {@link PreparedSearch}, or <code>null</code> if the search is not captured.
+     */
+    PreparedSearch prepareSearchRequest(final SearchRequest searchRequest) {
+
+        if (!allowlist.allows(searchRequest.indices())) {
+            return null;
+        }
+
+        final UbiIndexDefaults.Defaults defaults = indexDefaults.get(searchRequest.indices());
+        UbiParameters ubiParameters = UbiParameters.getUbiParameters(searchRequest);
+
+        if (ubiParameters == null) {
+            if (defaults == null || !defaults.enabled()) {
+                return null;
+            }
+            ubiParameters = addUbiParameters(searchRequest);
+        }
+
+        if (defaults != null && defaults.objectIdField() != null && ubiParameters.getObjectIdField() == null) {
+            ubiParameters.setObjectIdField(defaults.objectIdField());
+        }
+
+        if (!ubiParameters.hasQueryId()) {
+            ubiParameters.setQueryId(idGenerator.newId());
+        }
+
+        return new PreparedSearch(ubiParameters, defaults);
+
+    }
+
+    /**
+     * Adds empty UBI parameters to a search of an index that captures searches without them.
+     * They are then read back from the search, with the query ID they are given, when its response is captured.
+     * @param searchRequest The {@link SearchRequest}.
+     * @return The {@link UbiParameters}.
+     */
+    private static UbiParameters addUbiParameters(final SearchRequest searchRequest) {
+
+        final UbiParameters ubiParameters = new UbiParameters();
+        final UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
+        extBuilder.setParams(ubiParameters);
+
+        if (searchRequest.source() == null) {
+            searchRequest.source(new SearchSourceBuilder());
+        }
 
-                final String queryResponseId = UUID.randomUUID().toString();
-                final QueryResponse queryResponse = new QueryResponse(queryId, queryResponseId, queryResponseHitIds);
-                final QueryRequest queryRequest = new QueryRequest(queryId, userQuery, userId, query, queryAttributes, queryResponse);
+        final List<SearchExtBuilder> extBuilders = new ArrayList<>();
+        if (searchRequest.source().ext() != null) {
+            extBuilders.addAll(searchRequest.source().ext());
+        }
+        extBuilders.add(extBuilder);
+        searchRequest.source().ext(extBuilders);
+
+        return ubiParameters;
+
+    }
 
-                indexQuery(queryRequest);
+    /**
+     * Captures a search and adds the UBI query ID to its response.
+     * Package-private so it can be benchmarked.
+     * @param searchRequest The {@link SearchRequest}.
+     * @param prepared The {@link PreparedSearch} of the search, or <code>null</code> if it is not captured.
+     * @param response The response to the search.
+     * @return The response to return to the caller.
+     */
+    ActionResponse handleSearchRequest(final SearchRequest searchRequest, final PreparedSearch prepared, ActionResponse response) {
+
+        if (response instanceof SearchResponse) {
+
+            if (prepared != null) {
+
+                final long startTime = System.nanoTime();
+                final UbiParameters ubiParameters = prepared.ubiParameters();
+                final String queryId = ubiParameters.getQueryId();
+                final UbiIndexDefaults.Defaults defaults = prepared.defaults();
 
                 final SearchResponse searchResponse = (SearchResponse) response;
 
-                response = new UbiSearchResponse(
-                        searchResponse.getHits(),
-                        searchResponse.getAggregations(),
-                        searchResponse.getSuggest(),
-                        searchResponse.isTimedOut(),
-                        searchResponse.isTerminatedEarly(),
-                        null,            // TODO: How to get the value for `profileResults`?
-                        searchResponse.getNumReducePhases(),
-                        searchResponse.getScrollId(),
-                        searchResponse.getTotalShards(),
-                        searchResponse.getSuccessfulShards(),
-                        searchResponse.getSkippedShards(),
-                        searchResponse.getTookInMillis(),
-                        searchResponse.getShardFailures(),
-                        searchResponse.getClusters(),
-                        queryId
-                );
+                // Every search is counted, sampled or not.
+                rollup.record(ubiParameters.getUserQuery(), searchResponse);
+
+                // The query ID is returned even when the query is not captured.
+                if (sampler.shouldCapture(ubiParameters, sampleRate(defaults))) {
+                    capture(List.of(searchResponse), captureAsync, new AbstractRunnable() {
+
+                        @Override
+                        protected void doRun() {
+                            final QueryResponse queryResponse = toQueryResponse(searchRequest, searchResponse, ubiParameters);
+                            trending.record(ubiParameters.getUserQuery(), ubiParameters.getClientId(),
+                                    queryResponse.getQueryResponseObjectIds());
+                            impressions.put(queryResponse);
+                            indexQuery(toQueryRequest(searchRequest, ubiParameters, queryResponse), queryCaptureMode(defaults));
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            // A query that cannot be captured must not fail the search.
+                            stats.onCaptureFailure();
+                            LOGGER.warn("Unable to capture query ID " + queryId, e);
+                        }
+
+                    });
+                }
+
+                response = new UbiSearchResponse(searchResponse, queryId);
+
+                stats.onCapture(System.nanoTime() - startTime);
 
             }
 
@@ -182,35 +330,264 @@ public class UbiActionFilter implements ActionFilter {
 
     }
 
-    private void createIndexes(final Client client) {
+    /**
+     * Captures the searches of a multi-search and adds the UBI query ID to the response of each search.
+     * Request <code>i</code> of the multi-search is paired with item <code>i</code> of its response.
+     * The documents are queued together so that they are written in the same bulk request.
+     * Package-private so it can be tested.
+     * @param multiSearchRequest The {@link MultiSearchRequest}.
+     * @param prepared The {@link PreparedSearch} of each search, <code>null</code> for those that are not captured.
+     * @param response The response to the multi-search.
+     * @return The response to return to the caller.
+     */
+    ActionResponse handleMultiSearchRequest(final MultiSearchRequest multiSearchRequest, final PreparedSearch[] prepared,
+                                            final ActionResponse response) {
 
-        final Settings indexSettings = Settings.builder()
-                .put(IndexMetadata.INDEX_NUMBER_OF_SHARDS_SETTING.getKey(), 1)
-                .put(IndexMetadata.INDEX_AUTO_EXPAND_REPLICAS_SETTING.getKey(), "0-2")
-                .put(IndexMetadata.SETTING_PRIORITY, Integer.MAX_VALUE)
-                .build();
+        if (!(response instanceof MultiSearchResponse) || prepared == null) {
+            return response;
+        }
+
+        final List<SearchRequest> searchRequests = multiSearchRequest.requests();
+        final MultiSearchResponse.Item[] items = ((MultiSearchResponse) response).getResponses();
+
+        if (searchRequests.size() != items.length || prepared.length != items.length) {
+            LOGGER.warn("Multi-search has {} requests but {} responses, not capturing it", searchRequests.size(), items.length);
+            return response;
+        }
+
+        final UbiParameters[] ubiParameters = new UbiParameters[items.length];
+        final UbiIndexDefaults.Defaults[] defaults = new UbiIndexDefaults.Defaults[items.length];
+        boolean hasUbiParameters = false;
 
-        final CreateIndexRequest createQueriesIndex = new CreateIndexRequest(UBI_QUERIES_INDEX, indexSettings);
-        createQueriesIndex.mapping(getResourceFile(QUERIES_MAPPING_FILE));
-        client.admin().indices().create(createQueriesIndex);
+        for (int i = 0; i < items.length; i++) {
+            if (items[i].isFailure() == false && prepared[i] != null) {
+                ubiParameters[i] = prepared[i].ubiParameters();
+                defaults[i] = prepared[i].defaults();
+                hasUbiParameters = true;
+            }
+        }
+
+        if (!hasUbiParameters) {
+            return response;
+        }
+
+        final long startTime = System.nanoTime();
+        final MultiSearchResponse.Item[] ubiItems = new MultiSearchResponse.Item[items.length];
+        final List<Integer> sampled = new ArrayList<>();
+
+        for (int i = 0; i < items.length; i++) {
+
+            final MultiSearchResponse.Item item = items[i];
+            final UbiParameters itemUbiParameters = ubiParameters[i];
+
+            if (itemUbiParameters == null) {
+                // The new multi-search response shares this item with the original response.
+                if (item.isFailure() == false) {
+                    item.getResponse().mustIncRef();
+                }
+                ubiItems[i] = item;
+                continue;
+            }
+
+            rollup.record(itemUbiParameters.getUserQuery(), item.getResponse());
 
-        final CreateIndexRequest createEventsIndex = new CreateIndexRequest(UBI_EVENTS_INDEX, indexSettings);
-        createEventsIndex.mapping(getResourceFile(EVENTS_MAPPING_FILE));
-        client.admin().indices().create(createEventsIndex);
+            // The query ID is returned even when the query is not captured.
+            if (sampler.shouldCapture(itemUbiParameters, sampleRate(defaults[i]))) {
+                sampled.add(i);
+            }
+
+            ubiItems[i] = new MultiSearchResponse.Item(new UbiSearchResponse(item.getResponse(), itemUbiParameters.getQueryId()), null);
+
+        }
+
+        if (!sampled.isEmpty()) {
+
+            final List<SearchResponse> searchResponses = new ArrayList<>(sampled.size());
+            for (final int i : sampled) {
+                searchResponses.add(items[i].getResponse());
+            }
+
+            // Building the documents of many searches must not hold up the thread that completed the multi-search.
+            capture(searchResponses, true, new AbstractRunnable() {
+
+                @Override
+                protected void doRun() {
+
+                    final List<QueryDocument> captured = new ArrayList<>(sampled.size());
+
+                    // Releasing the multi-search response clears its items, so the retained search responses are read instead.
+                    for (int j = 0; j < sampled.size(); j++) {
+                        final int i = sampled.get(j);
+                        try {
+                            final QueryResponse queryResponse =
+                                    toQueryResponse(searchRequests.get(i), searchResponses.get(j), ubiParameters[i]);
+                            trending.record(ubiParameters[i].getUserQuery(), ubiParameters[i].getClientId(),
+                                    queryResponse.getQueryResponseObjectIds());
+                            impressions.put(queryResponse);
+                            captured.add(toQueryDocument(toQueryRequest(searchRequests.get(i), ubiParameters[i], queryResponse),
+                                    queryCaptureMode(defaults[i])));
+                        } catch (RuntimeException e) {
+                            // A query that cannot be captured must not fail the multi-search.
+                            stats.onCaptureFailure();
+                            LOGGER.warn("Unable to capture query ID " + ubiParameters[i].getQueryId(), e);
+                        }
+                    }
+
+                    if (!captured.isEmpty()) {
+                        LOGGER.debug("Indexing {} queries from a multi-search", captured.size());
+                        writer.addAll(captured);
+                    }
+
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    stats.onCaptureFailure();
+                    LOGGER.warn("Unable to capture multi-search", e);
+                }
+
+            });
+
+        }
+
+        final long tookInMillis = ((MultiSearchResponse) response).getTook().millis();
+        final MultiSearchResponse multiSearchResponse = new MultiSearchResponse(ubiItems, tookInMillis);
+
+        stats.onCapture(System.nanoTime() - startTime);
+
+        return multiSearchResponse;
 
     }
 
-    private String getResourceFile(final String fileName) {
-        try (InputStream is = UbiActionFilter.class.getResourceAsStream(fileName)) {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            Streams.copy(is.readAllBytes(), out);
-            return out.toString(StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw new IllegalStateException("Unable to get mapping from resource [" + fileName + "]", e);
+    /**
+     * Runs a capture on the calling thread or on the {@value UbiPlugin#UBI_THREAD_POOL_NAME} thread pool
+     * after the response has been returned. The search responses the capture reads are kept alive until it completes.
+     * @param searchResponses The search responses the capture reads.
+     * @param async Whether the capture runs on the {@value UbiPlugin#UBI_THREAD_POOL_NAME} thread pool.
+     * @param capture The capture.
+     */
+    private void capture(final List<SearchResponse> searchResponses, final boolean async, final AbstractRunnable capture) {
+
+        searchResponses.forEach(SearchResponse::mustIncRef);
+
+        final AbstractRunnable runnable = new AbstractRunnable() {
+
+            @Override
+            protected void doRun() throws Exception {
+                capture.run();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                capture.onFailure(e);
+            }
+
+            @Override
+            public void onRejection(Exception e) {
+                // The search has already been answered, so a full thread pool only costs the capture.
+                stats.onCaptureFailure();
+                LOGGER.debug("The UBI thread pool is full, not capturing {} queries", searchResponses.size());
+            }
+
+            @Override
+            public void onAfter() {
+                searchResponses.forEach(SearchResponse::decRef);
+            }
+
+        };
+
+        if (async) {
+            threadPool.executor(UbiPlugin.UBI_THREAD_POOL_NAME).execute(runnable);
+        } else {
+            runnable.run();
         }
+
+    }
+
+    private static QueryRequest toQueryRequest(final SearchRequest searchRequest, final UbiParameters ubiParameters,
+                                               final QueryResponse queryResponse) {
+
+        final String queryId = ubiParameters.getQueryId();
+        final String userQuery = ubiParameters.getUserQuery();
+        final String userId = ubiParameters.getClientId();
+        final Map<String, String> queryAttributes = ubiParameters.getQueryAttributes();
+
+        // The query is rendered when the document is written, not on the search thread.
+        return new QueryRequest(queryId, userQuery, userId, searchRequest.source(), queryAttributes, queryResponse);
+
     }
 
-    private void indexQuery(final QueryRequest queryRequest) {
+    /**
+     * Reads the object ID, score, shard and index of each hit of a search.
+     * Package-private so it can be tested.
+     * @param searchRequest The {@link SearchRequest}.
+     * @param searchResponse The {@link SearchResponse}.
+     * @param ubiParameters The {@link UbiParameters} of the search.
+     * @return The {@link QueryResponse}.
+     */
+    QueryResponse toQueryResponse(final SearchRequest searchRequest, final SearchResponse searchResponse,
+                                  final UbiParameters ubiParameters) {
+
+        final String queryId = ubiParameters.getQueryId();
+        final String objectIdField = ubiParameters.getObjectIdField();
+
+        final SearchHit[] hits = searchResponse.getHits().getHits();
+        final List<String> queryResponseHitIds = new ArrayList<>(hits.length);
+
+        float[] scores = new float[hits.length];
+        int[] shards = new int[hits.length];
+        int[] indexOrdinals = new int[hits.length];
+        // Searches rarely span more than a few indexes, so a list is searched instead of hashing each hit's index.
+        final List<String> indexes = new ArrayList<>(1);
+
+        for (int i = 0; i < hits.length; i++) {
+
+            final SearchHit hit = hits[i];
+
+            if (objectIdField == null || objectIdField.isEmpty()) {
+                // Use the result's docId since no object_id was given for the search.
+                queryResponseHitIds.add(String.valueOf(hit.docId()));
+            } else {
+                queryResponseHitIds.add(ObjectIdExtractor.extract(hit, objectIdField));
+            }
+
+            if (scores != null) {
+                // Hits sorted by a field are not scored unless track_scores is set.
+                if (Float.isNaN(hit.getScore())) {
+                    scores = null;
+                } else {
+                    scores[i] = hit.getScore();
+                }
+            }
+
+            if (shards != null) {
+                final SearchShardTarget shard = hit.getShard();
+                if (shard == null) {
+                    shards = null;
+                    indexOrdinals = null;
+                } else {
+                    shards[i] = shard.getShardId().id();
+                    final String index = shard.getFullyQualifiedIndexName();
+                    int ordinal = indexes.indexOf(index);
+                    if (ordinal < 0) {
+                        ordinal = indexes.size();
+                        indexes.add(index);
+                    }
+                    indexOrdinals[i] = ordinal;
+                }
+            }
+
+        }
+
+        final int offset = searchRequest.source() == null || searchRequest.source().from() < 0 ? 0 : searchRequest.source().from();
+
+        final String queryResponseId = idGenerator.newId();
+        return new QueryResponse(queryId, queryResponseId, queryResponseHitIds, offset, scores, shards,
+                shards == null ? null : indexes.toArray(new String[0]), indexOrdinals);
+
+    }
+
+    private void indexQuery(final QueryRequest queryRequest, final UbiSettings.QueryCaptureMode queryCaptureMode) {
 
         LOGGER.debug(
             "Indexing query ID {} with response ID {}",
@@ -218,38 +595,73 @@ public class UbiActionFilter implements ActionFilter {
             queryRequest.getQueryResponse().getQueryResponseId()
         );
 
-        // What will be indexed - adheres to the queries-mapping.json
-        final Map<String, Object> source = new HashMap<>();
-        source.put("timestamp", queryRequest.getTimestamp());
-        source.put("query_id", queryRequest.getQueryId());
-        source.put("query_response_id", queryRequest.getQueryResponse().getQueryResponseId());
-        source.put("query_response_object_ids", queryRequest.getQueryResponse().getQueryResponseObjectIds());
-        source.put("client_id", queryRequest.getClientId());
-        source.put("user_query", queryRequest.getUserQuery());
-        source.put("query_attributes", queryRequest.getQueryAttributes());
+        // It is buffered and written in bulk with other captured queries.
+        writer.add(toQueryDocument(queryRequest, queryCaptureMode));
+
+    }
+
+    /**
+     * Creates the document for a captured query with the current query capture settings.
+     * Package-private so it can be benchmarked.
+     * @param queryRequest The {@link QueryRequest}.
+     * @return The {@link QueryDocument} for the UBI queries index.
+     */
+    QueryDocument toQueryDocument(final QueryRequest queryRequest) {
+        return toQueryDocument(queryRequest, queryCaptureMode);
+    }
+
+    private QueryDocument toQueryDocument(final QueryRequest queryRequest, final UbiSettings.QueryCaptureMode queryCaptureMode) {
+        return new QueryDocument(queryRequest, queryCaptureMode, queryMaxBytes, objectIdStorage, this::isNewQueryHash,
+                this::onQueryHashWritten, isContinuation(queryRequest.getQueryId()), stats);
+    }
 
-        // The query can be null for some types of queries.
-        if(queryRequest.getQuery() != null) {
-            source.put("query", queryRequest.getQuery());
+    private static double sampleRate(final UbiIndexDefaults.Defaults defaults) {
+        return defaults == null ? 1.0 : defaults.sampleRate();
+    }
+
+    private UbiSettings.QueryCaptureMode queryCaptureMode(final UbiIndexDefaults.Defaults defaults) {
+        return defaults == null || defaults.queryCaptureMode() == null ? queryCaptureMode : defaults.queryCaptureMode();
+    }
+
+    private boolean isContinuation(final String queryId) {
+
+        final Cache<String, Boolean> queryIds = capturedQueryIds;
+
+        if (queryIds == null || queryId == null) {
+            return false;
         }
 
-        // Build the index request.
-        final IndexRequest indexRequest = new IndexRequest(UBI_QUERIES_INDEX).source(source, XContentType.JSON);
+        // Two pages captured at the same time may both be written in full, which only costs their size.
+        if (queryIds.get(queryId) != null) {
+            return true;
+        }
 
-        client.index(indexRequest, new ActionListener<>() {
+        queryIds.put(queryId, Boolean.TRUE);
+        return false;
 
-            @Override
-            public void onResponse(DocWriteResponse docWriteResponse) {
-                // Nothing needed.
-            }
+    }
 
-            @Override
-            public void onFailure(Exception e) {
-                LOGGER.error("Unable to index query into UBI index.", e);
-            }
+    private static Cache<String, Boolean> capturedQueryIds(final TimeValue coalesceWindow) {
 
-        });
+        if (coalesceWindow.nanos() == 0) {
+            return null;
+        }
+
+        // The window starts at the first capture, so later pages do not keep a query ID cached forever.
+        return CacheBuilder.<String, Boolean>builder()
+                .setMaximumWeight(QUERY_ID_CACHE_SIZE)
+                .setExpireAfterWrite(coalesceWindow)
+                .build();
+
+    }
+
+    private boolean isNewQueryHash(final String queryHash) {
+        // Documents in the query DSL index are created, not overwritten, so sending one twice only costs a conflict.
+        return queryHashes.get(queryHash) == null;
+    }
 
+    private void onQueryHashWritten(final String queryHash) {
+        queryHashes.put(queryHash, Boolean.TRUE);
     }
 
 }
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.io.IOException;
+
+/**
+ * A document queued by the {@link UbiDocumentWriter}. Its source is only
+ * serialized when it is added to a bulk request, on the thread that flushes the writer.
+ */
+public interface UbiDocument {
+
+    /**
+     * Gets an estimate of the size of the document, used to decide when to flush the writer.
+     * @return The estimated size in bytes.
+     */
+    long estimatedSizeInBytes();
+
+    /**
+     * Serializes the document and adds it to a bulk request.
+     * @param bulkRequest The {@link BulkRequest}.
+     * @throws IOException Thrown if the document cannot be serialized.
+     */
+    void addTo(BulkRequest bulkRequest) throws IOException;
+
+    /**
+     * Called once every request the document added to a bulk request was written, or already existed.
+     */
+    default void onWritten() {
+    }
+
+    /**
+     * Wraps an index request whose source is already serialized.
+     * @param indexRequest The {@link IndexRequest}.
+     * @return The {@link UbiDocument}.
+     */
+    static UbiDocument of(final IndexRequest indexRequest) {
+
+        return new UbiDocument() {
+
+            @Override
+            public long estimatedSizeInBytes() {
+                return indexRequest.source() == null ? 0 : indexRequest.source().length();
+            }
+
+            @Override
+            public void addTo(final BulkRequest bulkRequest) {
+                bulkRequest.add(indexRequest);
+            }
+
+        };
+
+    }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers UBI documents on the node and writes them to the UBI indexes
+ * as bulk requests.
+ * <p>
+ * Documents are flushed when the number of queued documents or their size
+ * reaches the configured bulk limits, or when the flush interval elapses.
+ * Adding a document never blocks: when the queue is full the document is
+ * dropped according to the {@link UbiSettings.OverflowPolicy}.
+ */
+public class UbiDocumentWriter extends AbstractLifecycleComponent {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiDocumentWriter.class);
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final UbiStats stats;
+
+    private final int bulkActions;
+    private final long bulkSizeInBytes;
+    private final UbiSettings.OverflowPolicy overflowPolicy;
+    private final TimeValue flushInterval;
+
+    private final BlockingQueue<UbiDocument> queue;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final Semaphore inFlight;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile Scheduler.Cancellable scheduledFlush;
+    private volatile boolean ready = true;
+    private volatile UbiSpool spool;
+
+    /**
+     * Creates a new writer.
+     * @param client A {@link Client}.
+     * @param threadPool The {@link ThreadPool} used to flush documents.
+     * @param settings The node {@link Settings}.
+     * @param stats The {@link UbiStats} that record the bulk requests.
+     */
+    public UbiDocumentWriter(final Client client, final ThreadPool threadPool, final Settings settings, final UbiStats stats) {
+        this.client = client;
+        this.threadPool = threadPool;
+        this.stats = stats;
+        this.bulkActions = UbiSettings.WRITER_BULK_ACTIONS.get(settings);
+        this.bulkSizeInBytes = UbiSettings.WRITER_BULK_SIZE.get(settings).getBytes();
+        this.overflowPolicy = UbiSettings.WRITER_OVERFLOW_POLICY.get(settings);
+        this.flushInterval = UbiSettings.WRITER_FLUSH_INTERVAL.get(settings);
+        this.queue = new ArrayBlockingQueue<>(UbiSettings.WRITER_QUEUE_SIZE.get(settings));
+        this.inFlight = new Semaphore(UbiSettings.WRITER_CONCURRENT_REQUESTS.get(settings));
+    }
+
+    /**
+     * Queues a document to be written. This method never blocks.
+     * @param indexRequest The {@link IndexRequest} to write.
+     * @return <code>true</code> if the document was queued, <code>false</code> if it was dropped.
+     */
+    public boolean add(final IndexRequest indexRequest) {
+        return add(UbiDocument.of(indexRequest));
+    }
+
+    /**
+     * Queues a document to be written. The document is serialized when it is flushed.
+     * This method never blocks.
+     * @param document The {@link UbiDocument} to write.
+     * @return <code>true</code> if the document was queued, <code>false</code> if it was dropped.
+     */
+    public boolean add(final UbiDocument document) {
+
+        if (!offer(document)) {
+            dropped.increment();
+            LOGGER.debug("UBI writer queue is full, dropping document");
+            return false;
+        }
+
+        if (queue.size() >= bulkActions || queuedBytes.get() >= bulkSizeInBytes) {
+            scheduleFlush();
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Queues a group of documents to be written, such as the documents for the searches of a multi-search.
+     * The documents are queued together so that they are normally written in the same bulk request.
+     * This method never blocks.
+     * @param documents The {@link UbiDocument UbiDocuments} to write.
+     * @return The number of documents that were queued.
+     */
+    public int addAll(final List<? extends UbiDocument> documents) {
+
+        int added = 0;
+
+        for (final UbiDocument document : documents) {
+            if (offer(document)) {
+                added++;
+            } else {
+                dropped.increment();
+            }
+        }
+
+        if (added < documents.size()) {
+            LOGGER.debug("UBI writer queue is full, dropped {} of {} documents", documents.size() - added, documents.size());
+        }
+
+        if (queue.size() >= bulkActions || queuedBytes.get() >= bulkSizeInBytes) {
+            scheduleFlush();
+        }
+
+        return added;
+
+    }
+
+    private boolean offer(final UbiDocument document) {
+
+        final long size = document.estimatedSizeInBytes();
+
+        while (!queue.offer(document)) {
+
+            if (overflowPolicy == UbiSettings.OverflowPolicy.DROP_NEWEST) {
+                return false;
+            }
+
+            final UbiDocument oldest = queue.poll();
+            if (oldest != null) {
+                queuedBytes.addAndGet(-oldest.estimatedSizeInBytes());
+                dropped.increment();
+            }
+
+        }
+
+        queuedBytes.addAndGet(size);
+        return true;
+
+    }
+
+    private void scheduleFlush() {
+        if (flushPending.compareAndSet(false, true)) {
+            threadPool.generic().execute(this::flush);
+        }
+    }
+
+    /**
+     * Sets whether documents can be written. While the UBI indexes do not exist documents are
+     * held in the queue, so that writing them does not create the indexes.
+     * @param ready <code>true</code> if the UBI indexes exist.
+     */
+    public void setReady(final boolean ready) {
+        final boolean wasReady = this.ready;
+        this.ready = ready;
+        if (ready && !wasReady) {
+            LOGGER.debug("UBI indexes are ready, writing {} held documents", queue.size());
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Tells whether documents can be written.
+     * @return <code>true</code> if the UBI indexes exist.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Sets the spool that receives documents the cluster rejected.
+     * @param spool The {@link UbiSpool}, or <code>null</code> to drop rejected documents.
+     */
+    public void setSpool(final UbiSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Sends the queued documents as bulk requests, as long as the number of
+     * bulk requests in flight allows it.
+     */
+    void flush() {
+
+        flushPending.set(false);
+
+        if (!ready) {
+            return;
+        }
+
+        while (!queue.isEmpty() && inFlight.tryAcquire()) {
+
+            final BulkRequest bulkRequest = new BulkRequest();
+            // The document that added each request of the bulk request.
+            final List<UbiDocument> owners = new ArrayList<>();
+
+            UbiDocument document;
+            while (bulkRequest.numberOfActions() < bulkActions
+                    && bulkRequest.estimatedSizeInBytes() < bulkSizeInBytes
+                    && (document = queue.poll()) != null) {
+                queuedBytes.addAndGet(-document.estimatedSizeInBytes());
+                try {
+                    // Documents are serialized here, off the threads that captured them.
+                    document.addTo(bulkRequest);
+                } catch (IOException | RuntimeException e) {
+                    dropped.increment();
+                    LOGGER.warn("Unable to serialize a UBI document.", e);
+                }
+                while (owners.size() < bulkRequest.numberOfActions()) {
+                    owners.add(document);
+                }
+            }
+
+            if (bulkRequest.numberOfActions() == 0) {
+                // Every document of the batch failed to serialize, but the documents behind them may not.
+                inFlight.release();
+                continue;
+            }
+
+            send(bulkRequest, owners);
+
+        }
+
+    }
+
+    private void send(final BulkRequest bulkRequest, final List<UbiDocument> owners) {
+
+        final ThreadContext threadContext = threadPool.getThreadContext();
+        final int documents = bulkRequest.numberOfActions();
+        final long sizeInBytes = bulkRequest.estimatedSizeInBytes();
+        final long startTime = threadPool.relativeTimeInMillis();
+
+        // UBI documents are written by the plugin and not on behalf of the user that ran the search.
+        final ThreadContext.StoredContext storedContext = threadContext.stashContext();
+
+        try {
+
+            threadContext.markAsSystemContext();
+
+            client.bulk(bulkRequest, ActionListener.runAfter(new ActionListener<>() {
+
+                @Override
+                public void onResponse(BulkResponse bulkResponse) {
+
+                    int failed = 0;
+                    final List<DocWriteRequest<?>> retryable = new ArrayList<>();
+
+                    if (bulkResponse.hasFailures()) {
+                        for (final BulkItemResponse item : bulkResponse) {
+                            // A conflict means a retried document was already written.
+                            if (item.isFailed() && item.status() != RestStatus.CONFLICT) {
+                                failed++;
+                                if (isRetryable(item.status())) {
+                                    retryable.add(bulkRequest.requests().get(item.getItemId()));
+                                }
+                            }
+                        }
+                    }
+
+                    if (failed > 0) {
+                        LOGGER.warn("Unable to index {} UBI documents: {}", failed, bulkResponse.buildFailureMessage());
+                    }
+
+                    stats.onBulk(documents, failed, sizeInBytes, threadPool.relativeTimeInMillis() - startTime);
+                    spool(retryable);
+                    onWritten(owners, bulkResponse);
+
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    stats.onBulkFailure(documents, sizeInBytes, threadPool.relativeTimeInMillis() - startTime);
+                    LOGGER.error("Unable to index " + documents + " UBI documents.", e);
+                    spool(bulkRequest.requests());
+                }
+
+            }, this::afterBulk));
+
+        } finally {
+            storedContext.restore();
+        }
+
+    }
+
+    private static void onWritten(final List<UbiDocument> owners, final BulkResponse bulkResponse) {
+
+        final BulkItemResponse[] items = bulkResponse.getItems();
+        int i = 0;
+
+        // The requests of a document are next to each other in the bulk request.
+        while (i < owners.size()) {
+
+            final UbiDocument document = owners.get(i);
+            boolean written = true;
+
+            for (; i < owners.size() && owners.get(i) == document; i++) {
+                written &= !items[i].isFailed() || items[i].status() == RestStatus.CONFLICT;
+            }
+
+            if (written) {
+                document.onWritten();
+            }
+
+        }
+
+    }
+
+    private static boolean isRetryable(final RestStatus status) {
+        // Write rejections and unavailable shards pass, a mapping error would fail again.
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    private void spool(final List<DocWriteRequest<?>> requests) {
+
+        final UbiSpool currentSpool = spool;
+
+        if (currentSpool != null && !requests.isEmpty()) {
+            // Bulk responses may complete on a transport thread, which must not write to disk.
+            threadPool.generic().execute(() -> currentSpool.append(requests));
+        }
+
+    }
+
+    private void afterBulk() {
+        inFlight.release();
+        if (queue.size() >= bulkActions || queuedBytes.get() >= bulkSizeInBytes) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Gets the number of documents waiting to be written.
+     * @return The number of queued documents.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of documents dropped because the queue was full.
+     * @return The number of dropped documents.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    protected void doStart() {
+        scheduledFlush = threadPool.scheduleWithFixedDelay(this::flush, flushInterval, threadPool.generic());
+    }
+
+    @Override
+    protected void doStop() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel();
+        }
+        // Best effort to write what is still buffered before the node stops.
+        flush();
+    }
+
+    @Override
+    protected void doClose() {
+        // Nothing needed.
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.IndicesRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Writes a batch of UBI events to the UBI events index.
+ * <p>
+ * The action is a write to the events index, so that security authorizes it against the index
+ * privileges of the caller, even though the events are then written by the {@link UbiDocumentWriter}.
+ */
+public class UbiEventsAction {
+
+    /**
+     * The action type.
+     */
+    public static final ActionType<Response> INSTANCE = new ActionType<>("indices:data/write/ubi/events");
+
+    private UbiEventsAction() {}
+
+    /**
+     * Requests that newline-delimited events are written.
+     */
+    public static class Request extends ActionRequest implements IndicesRequest {
+
+        private static final String[] INDICES = new String[] { RestUbiEventsAction.UBI_EVENTS_INDEX };
+
+        private final BytesReference content;
+        private final String clientIpHash;
+
+        /**
+         * Creates a request.
+         * @param content The newline-delimited JSON events.
+         * @param clientIpHash The hash of the client IP address, or <code>null</code>.
+         */
+        public Request(final BytesReference content, final String clientIpHash) {
+            this.content = content;
+            this.clientIpHash = clientIpHash;
+        }
+
+        /**
+         * Reads a request from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the request cannot be read.
+         */
+        public Request(final StreamInput in) throws IOException {
+            super(in);
+            this.content = in.readBytesReference();
+            this.clientIpHash = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeBytesReference(content);
+            out.writeOptionalString(clientIpHash);
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            return content == null || content.length() == 0 ? addValidationError("the request has no events", null) : null;
+        }
+
+        @Override
+        public String[] indices() {
+            return INDICES;
+        }
+
+        @Override
+        public IndicesOptions indicesOptions() {
+            return IndicesOptions.strictSingleIndexNoExpandForbidClosed();
+        }
+
+        @Override
+        public boolean includeDataStreams() {
+            // In data_stream storage mode the events index is a data stream.
+            return true;
+        }
+
+        /**
+         * Gets the events.
+         * @return The newline-delimited JSON events.
+         */
+        public BytesReference getContent() {
+            return content;
+        }
+
+        /**
+         * Gets the hash of the client IP address.
+         * @return The hash, or <code>null</code>.
+         */
+        public String getClientIpHash() {
+            return clientIpHash;
+        }
+
+    }
+
+    /**
+     * The counts of accepted, dropped and rejected events.
+     */
+    public static class Response extends ActionResponse implements ToXContentObject {
+
+        private final int accepted;
+        private final int dropped;
+        private final int rejected;
+        private final List<String> errors;
+
+        /**
+         * Creates a response.
+         * @param accepted The number of events queued to be written.
+         * @param dropped The number of valid events dropped because the writer's queue was full.
+         * @param rejected The number of invalid events.
+         * @param errors The reasons events were rejected, at most one per rejected event.
+         */
+        public Response(final int accepted, final int dropped, final int rejected, final List<String> errors) {
+            this.accepted = accepted;
+            this.dropped = dropped;
+            this.rejected = rejected;
+            this.errors = errors;
+        }
+
+        /**
+         * Reads a response from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the response cannot be read.
+         */
+        public Response(final StreamInput in) throws IOException {
+            this.accepted = in.readVInt();
+            this.dropped = in.readVInt();
+            this.rejected = in.readVInt();
+            this.errors = in.readStringCollectionAsList();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVInt(accepted);
+            out.writeVInt(dropped);
+            out.writeVInt(rejected);
+            out.writeStringCollection(errors);
+        }
+
+        /**
+         * Gets the status of the response.
+         * @return {@link RestStatus#BAD_REQUEST} if every event was rejected, else {@link RestStatus#OK}.
+         */
+        public RestStatus status() {
+            return accepted == 0 && rejected > 0 ? RestStatus.BAD_REQUEST : RestStatus.OK;
+        }
+
+        /**
+         * Gets the number of accepted events.
+         * @return The number of events queued to be written.
+         */
+        public int getAccepted() {
+            return accepted;
+        }
+
+        /**
+         * Gets the number of rejected events.
+         * @return The number of invalid events.
+         */
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Gets the reasons events were rejected.
+         * @return The reasons.
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+            builder.startObject();
+            builder.field("accepted", accepted);
+            builder.field("dropped", dropped);
+            builder.field("rejected", rejected);
+            builder.field("errors", errors);
+            return builder.endObject();
+        }
+
+    }
+
+}
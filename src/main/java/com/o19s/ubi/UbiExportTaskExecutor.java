@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.RateLimiter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.persistent.AllocatedPersistentTask;
+import org.elasticsearch.persistent.PersistentTaskState;
+import org.elasticsearch.persistent.PersistentTasksExecutor;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Min;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.lookup.Source;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Runs export jobs, which write UBI indexes to gzipped NDJSON files under a <code>path.repo</code>
+ * directory, one document source per line, so that offline analytics read files instead of
+ * scrolling the cluster.
+ * <p>
+ * Each index is exported a bucket of <code>@timestamp</code> at a time. The bucket is read from a
+ * point in time in slices, in parallel, and each slice is written to its own file,
+ * <code>{path}/{index}/{bucket start}-{slice}.ndjson.gz</code>, which is renamed from a temporary
+ * file once complete. Only a page per slice is held in memory. The end of each exported bucket
+ * is checkpointed in the persistent task state, so a job that is restarted on another node
+ * exports that bucket's files again from the next bucket on. Reads can be throttled to a
+ * maximum number of source bytes per second over all slices.
+ */
+public class UbiExportTaskExecutor extends PersistentTasksExecutor<UbiExportTaskParams> {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiExportTaskExecutor.class);
+
+    private static final DateTimeFormatter FILE_DATE_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'", Locale.ROOT).withZone(ZoneOffset.UTC);
+    private static final String FILE_SUFFIX = ".ndjson.gz";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Client client;
+    private final Environment environment;
+    private final PointInTimeReader reader;
+
+    /**
+     * Creates the executor.
+     * @param client The {@link Client} that reads the UBI indexes.
+     * @param clusterService The {@link ClusterService}.
+     * @param threadPool The {@link ThreadPool}.
+     * @param environment The {@link Environment} that the export path is resolved in.
+     */
+    public UbiExportTaskExecutor(final Client client, final ClusterService clusterService, final ThreadPool threadPool,
+                                 final Environment environment) {
+        super(UbiExportTaskParams.NAME, threadPool.generic());
+        this.client = client;
+        this.environment = environment;
+        this.reader = new PointInTimeReader(client, clusterService, threadPool);
+    }
+
+    @Override
+    protected void nodeOperation(final AllocatedPersistentTask task, final UbiExportTaskParams params, final PersistentTaskState state) {
+
+        final Path directory = environment.resolveRepoFile(params.getPath());
+
+        if (directory == null) {
+            task.markAsFailed(new IllegalArgumentException("[path] [" + params.getPath() + "] must be under one of the ["
+                    + Environment.PATH_REPO_SETTING.getKey() + "] directories"));
+            return;
+        }
+
+        final UbiExportTaskState checkpoint = state instanceof UbiExportTaskState s ? s : new UbiExportTaskState(0, -1, 0, 0, 0);
+        final Progress progress = new Progress(task, checkpoint);
+
+        // Lucene's rate limiter, as used to throttle recoveries and snapshots.
+        final RateLimiter rateLimiter = params.getMaxBytesPerSec().getBytes() > 0
+                ? new RateLimiter.SimpleRateLimiter(params.getMaxBytesPerSec().getMbFrac())
+                : null;
+
+        if (checkpoint.nextBucket() >= 0) {
+            LOGGER.info("Resuming UBI export to [{}] from [{}] at [{}]", directory, params.getIndices().get(checkpoint.index()),
+                    Instant.ofEpochMilli(checkpoint.nextBucket()));
+        }
+
+        try {
+
+            for (int i = checkpoint.index(); i < params.getIndices().size() && !task.isCancelled(); i++) {
+
+                final String index = params.getIndices().get(i);
+                final long firstBucket = i == checkpoint.index() && checkpoint.nextBucket() >= 0
+                        ? checkpoint.nextBucket()
+                        : firstBucket(index, params);
+
+                exportIndex(task, params, i, firstBucket, directory.resolve(index), rateLimiter, progress);
+
+            }
+
+            LOGGER.info("UBI export to [{}] {} after [{}] documents in [{}] files", directory,
+                    task.isCancelled() ? "was cancelled" : "completed", progress.docsExported.get(), progress.filesWritten.get());
+
+            task.markAsCompleted();
+
+        } catch (Exception e) {
+            LOGGER.warn("UBI export to [" + directory + "] failed", e);
+            task.markAsFailed(e);
+        }
+
+    }
+
+    private void exportIndex(final AllocatedPersistentTask task, final UbiExportTaskParams params, final int indexPosition,
+                             final long firstBucket, final Path directory, final RateLimiter rateLimiter,
+                             final Progress progress) throws Exception {
+
+        if (firstBucket >= params.getTo()) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+
+        final String index = params.getIndices().get(indexPosition);
+        final long bucketMillis = params.getBucket().millis();
+        final int slices = params.getSlices() > 0 ? params.getSlices() : reader.autoSlices(index);
+        final BytesReference pit = reader.open(index);
+
+        try {
+
+            long bucketStart = firstBucket;
+
+            while (bucketStart < params.getTo() && !task.isCancelled()) {
+
+                final long bucketEnd = Math.min((bucketStart / bucketMillis + 1) * bucketMillis, params.getTo());
+                final String prefix = FILE_DATE_FORMATTER.format(Instant.ofEpochMilli(bucketStart));
+                final QueryBuilder query = QueryBuilders.rangeQuery("@timestamp")
+                        .gte(params.getFrom() == null ? bucketStart : Math.max(bucketStart, params.getFrom()))
+                        .lt(bucketEnd)
+                        .format("epoch_millis");
+
+                // A bucket that was being exported when the job stopped may have been read in a different number of slices.
+                deleteBucket(directory, prefix);
+
+                reader.readSlices(slices, (slice, failed) ->
+                        exportSlice(task, params, pit, slice, slices, query, directory, prefix, rateLimiter, progress, failed));
+
+                if (task.isCancelled()) {
+                    return;
+                }
+
+                progress.checkpoint(indexPosition, bucketEnd);
+                bucketStart = bucketEnd;
+
+            }
+
+        } finally {
+            reader.close(pit);
+        }
+
+        if (!task.isCancelled()) {
+            progress.checkpoint(indexPosition + 1, -1);
+        }
+
+    }
+
+    private void exportSlice(final AllocatedPersistentTask task, final UbiExportTaskParams params, final BytesReference pit,
+                             final int slice, final int slices, final QueryBuilder query, final Path directory, final String prefix,
+                             final RateLimiter rateLimiter, final Progress progress, final AtomicBoolean failed) throws IOException {
+
+        final Path file = directory.resolve(prefix + "-" + slice + FILE_SUFFIX);
+        final Path temporaryFile = directory.resolve(file.getFileName() + TEMPORARY_FILE_SUFFIX);
+
+        Object[] searchAfter = null;
+        long docs = 0;
+        long bytesSincePause = 0;
+        boolean complete = false;
+
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporaryFile), BUFFER_SIZE)) {
+
+            while (!task.isCancelled() && !failed.get()) {
+
+                final SearchSourceBuilder source = PointInTimeReader.page(pit, slice, slices, params.getPageSize(), searchAfter)
+                        .query(query);
+
+                final SearchResponse response = client.search(new SearchRequest().source(source)).actionGet();
+                long bytes = 0;
+
+                try {
+
+                    final SearchHit[] hits = response.getHits().getHits();
+
+                    if (hits.length == 0) {
+                        complete = true;
+                        break;
+                    }
+
+                    for (final SearchHit hit : hits) {
+                        final BytesReference sourceRef = hit.getSourceRef();
+                        if (sourceRef != null) {
+                            writeLine(out, sourceRef);
+                            bytes += sourceRef.length();
+                            docs++;
+                        }
+                    }
+
+                    searchAfter = hits[hits.length - 1].getSortValues();
+                    progress.read(hits.length, bytes);
+
+                } finally {
+                    response.decRef();
+                }
+
+                if (rateLimiter != null) {
+                    bytesSincePause += bytes;
+                    if (bytesSincePause >= rateLimiter.getMinPauseCheckBytes()) {
+                        // The limit is shared by the slices, which pause one after the other.
+                        synchronized (rateLimiter) {
+                            rateLimiter.pause(bytesSincePause);
+                        }
+                        bytesSincePause = 0;
+                    }
+                }
+
+                progress.report();
+
+            }
+
+        } finally {
+            if (!complete || docs == 0) {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+
+        if (complete && docs > 0) {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            progress.filesWritten.incrementAndGet();
+        }
+
+    }
+
+    private long firstBucket(final String index, final UbiExportTaskParams params) {
+
+        final long bucketMillis = params.getBucket().millis();
+
+        if (params.getFrom() != null) {
+            return Math.floorDiv(params.getFrom(), bucketMillis) * bucketMillis;
+        }
+
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .size(0)
+                .trackTotalHits(false)
+                .aggregation(AggregationBuilders.min("earliest").field("@timestamp"));
+
+        final SearchResponse response = client.search(new SearchRequest(index).source(source)).actionGet();
+
+        try {
+
+            final double earliest = ((Min) response.getAggregations().get("earliest")).value();
+
+            // The minimum of no documents is infinite.
+            return Double.isInfinite(earliest) ? params.getTo() : Math.floorDiv((long) earliest, bucketMillis) * bucketMillis;
+
+        } finally {
+            response.decRef();
+        }
+
+    }
+
+    private static void deleteBucket(final Path directory, final String prefix) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "-*")) {
+            for (final Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // NDJSON needs each source as JSON on one line, which sources indexed in another format or pretty printed are not.
+    private static void writeLine(final OutputStream out, final BytesReference source) throws IOException {
+
+        final XContentType contentType = Source.fromBytes(source).sourceContentType();
+
+        if (contentType == XContentType.JSON && source.indexOf((byte) '\n', 0) < 0) {
+            source.writeTo(out);
+        } else {
+            out.write(XContentHelper.convertToJson(source, true, contentType).getBytes(StandardCharsets.UTF_8));
+        }
+
+        out.write('\n');
+
+    }
+
+    private static final class Progress {
+
+        private final AllocatedPersistentTask task;
+        private final AtomicLong docsExported;
+        private final AtomicLong bytesRead;
+        private final AtomicLong filesWritten;
+        private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+
+        private volatile int index;
+        private volatile long nextBucket;
+
+        private Progress(final AllocatedPersistentTask task, final UbiExportTaskState checkpoint) {
+            this.task = task;
+            this.index = checkpoint.index();
+            this.nextBucket = checkpoint.nextBucket();
+            this.docsExported = new AtomicLong(checkpoint.docsExported());
+            this.bytesRead = new AtomicLong(checkpoint.bytesRead());
+            this.filesWritten = new AtomicLong(checkpoint.filesWritten());
+        }
+
+        private void read(final long docs, final long bytes) {
+            docsExported.addAndGet(docs);
+            bytesRead.addAndGet(bytes);
+        }
+
+        private void checkpoint(final int index, final long nextBucket) {
+            this.index = index;
+            this.nextBucket = nextBucket;
+            lastReport.set(System.nanoTime());
+            update();
+        }
+
+        // Updating the task state is a cluster state update, so progress within a bucket is reported every few seconds at most.
+        private void report() {
+
+            final long now = System.nanoTime();
+            final long last = lastReport.get();
+
+            if (now - last >= REPORT_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+                update();
+            }
+
+        }
+
+        private void update() {
+            task.updatePersistentTaskState(
+                    new UbiExportTaskState(index, nextBucket, docsExported.get(), bytesRead.get(), filesWritten.get()),
+                    ActionListener.wrap(t -> {}, e -> LOGGER.debug("Unable to report the progress of the UBI export job", e)));
+        }
+
+    }
+
+}
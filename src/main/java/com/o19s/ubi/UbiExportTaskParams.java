@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.time.DateFormatter;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.xcontent.ConstructingObjectParser;
+import org.elasticsearch.xcontent.ObjectParser;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+import static org.elasticsearch.xcontent.ConstructingObjectParser.constructorArg;
+import static org.elasticsearch.xcontent.ConstructingObjectParser.optionalConstructorArg;
+
+/**
+ * The parameters of an export job, see {@link UbiExportTaskExecutor}.
+ */
+public class UbiExportTaskParams implements PersistentTaskParams {
+
+    /**
+     * The name of the export persistent task.
+     */
+    public static final String NAME = "ubi/export";
+
+    /**
+     * The indexes that can be exported.
+     */
+    public static final List<String> EXPORTABLE_INDEXES = List.of(QueryDocument.UBI_QUERIES_INDEX, RestUbiEventsAction.UBI_EVENTS_INDEX,
+            UbiQueryRollup.UBI_QUERY_ROLLUPS_INDEX, QueryDocument.UBI_QUERY_DSL_INDEX, UbiJudgementsTaskExecutor.UBI_JUDGEMENTS_INDEX);
+
+    private static final DateFormatter DATE_FORMATTER = DateFormatter.forPattern("strict_date_optional_time||epoch_millis");
+
+    private static final ParseField PATH = new ParseField("path");
+    private static final ParseField INDICES = new ParseField("indices");
+    private static final ParseField FROM = new ParseField("from");
+    private static final ParseField TO = new ParseField("to");
+    private static final ParseField BUCKET = new ParseField("bucket");
+    private static final ParseField PAGE_SIZE = new ParseField("page_size");
+    private static final ParseField SLICES = new ParseField("slices");
+    private static final ParseField MAX_BYTES_PER_SEC = new ParseField("max_bytes_per_sec");
+
+    @SuppressWarnings("unchecked")
+    private static final ConstructingObjectParser<UbiExportTaskParams, Void> PARSER = new ConstructingObjectParser<>(NAME,
+            args -> new UbiExportTaskParams((String) args[0], (List<String>) args[1], (Long) args[2], (Long) args[3],
+                    (TimeValue) args[4], (Integer) args[5], (Integer) args[6], (ByteSizeValue) args[7]));
+
+    static {
+        PARSER.declareString(constructorArg(), PATH);
+        PARSER.declareStringArray(optionalConstructorArg(), INDICES);
+        PARSER.declareField(optionalConstructorArg(), p -> DATE_FORMATTER.parseMillis(p.text()), FROM, ObjectParser.ValueType.VALUE);
+        PARSER.declareField(optionalConstructorArg(), p -> DATE_FORMATTER.parseMillis(p.text()), TO, ObjectParser.ValueType.VALUE);
+        PARSER.declareField(optionalConstructorArg(), p -> TimeValue.parseTimeValue(p.text(), BUCKET.getPreferredName()), BUCKET,
+                ObjectParser.ValueType.STRING);
+        PARSER.declareInt(optionalConstructorArg(), PAGE_SIZE);
+        PARSER.declareInt(optionalConstructorArg(), SLICES);
+        PARSER.declareField(optionalConstructorArg(),
+                p -> ByteSizeValue.parseBytesSizeValue(p.text(), MAX_BYTES_PER_SEC.getPreferredName()), MAX_BYTES_PER_SEC,
+                ObjectParser.ValueType.VALUE);
+    }
+
+    private final String path;
+    private final List<String> indices;
+    private final Long from;
+    private final long to;
+    private final TimeValue bucket;
+    private final int pageSize;
+    private final int slices;
+    private final ByteSizeValue maxBytesPerSec;
+
+    /**
+     * Creates the parameters. Parameters that are <code>null</code> get their default.
+     * @param path The directory the files are written to, relative to one of the <code>path.repo</code> directories.
+     * @param indices The indexes to export, <code>ubi_queries</code> and <code>ubi_events</code> by default.
+     * @param from The earliest <code>@timestamp</code> exported in epoch milliseconds, or <code>null</code> for the earliest document.
+     * @param to The <code>@timestamp</code> that exported documents are older than, now by default.
+     * @param bucket The span of <code>@timestamp</code> written to each file, and between checkpoints, 1 day by default.
+     * @param pageSize The number of documents read per page, 1000 by default.
+     * @param slices The number of slices read in parallel, or 0 for one per shard of the index, up to 8.
+     * @param maxBytesPerSec The read throughput over all slices, or 0 for unlimited, 0 by default.
+     */
+    public UbiExportTaskParams(final String path, final List<String> indices, final Long from, final Long to, final TimeValue bucket,
+                               final Integer pageSize, final Integer slices, final ByteSizeValue maxBytesPerSec) {
+
+        this.path = Objects.requireNonNull(path, "[path] is required");
+        this.indices = indices == null ? List.of(QueryDocument.UBI_QUERIES_INDEX, RestUbiEventsAction.UBI_EVENTS_INDEX) : indices;
+        this.from = from;
+        this.to = to == null ? System.currentTimeMillis() : to;
+        this.bucket = bucket == null ? TimeValue.timeValueDays(1) : bucket;
+        this.pageSize = pageSize == null ? 1000 : pageSize;
+        this.slices = slices == null ? 0 : slices;
+        this.maxBytesPerSec = maxBytesPerSec == null ? ByteSizeValue.ZERO : maxBytesPerSec;
+
+        for (final String index : this.indices) {
+            if (!EXPORTABLE_INDEXES.contains(index)) {
+                throw new IllegalArgumentException("[indices] must be UBI indexes " + EXPORTABLE_INDEXES + " but was [" + index + "]");
+            }
+        }
+        if (this.bucket.millis() < 1000) {
+            throw new IllegalArgumentException("[bucket] must be at least 1s but was [" + this.bucket + "]");
+        }
+        if (this.pageSize < 1 || this.pageSize > 10_000) {
+            throw new IllegalArgumentException("[page_size] must be between 1 and 10000 but was [" + this.pageSize + "]");
+        }
+        if (this.slices < 0 || this.slices > 1024) {
+            throw new IllegalArgumentException("[slices] must be between 0 and 1024 but was [" + this.slices + "]");
+        }
+        if (this.maxBytesPerSec.getBytes() < 0) {
+            throw new IllegalArgumentException("[max_bytes_per_sec] must not be negative but was [" + this.maxBytesPerSec + "]");
+        }
+
+    }
+
+    /**
+     * Reads the parameters from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the parameters cannot be read.
+     */
+    public UbiExportTaskParams(final StreamInput in) throws IOException {
+        this(in.readString(), in.readStringCollectionAsList(), in.readOptionalLong(), in.readLong(), in.readTimeValue(), in.readVInt(),
+                in.readVInt(), ByteSizeValue.readFrom(in));
+    }
+
+    /**
+     * Parses the parameters.
+     * @param parser The {@link XContentParser}.
+     * @return The parsed {@link UbiExportTaskParams}.
+     */
+    public static UbiExportTaskParams fromXContent(final XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        // Only nodes with this version of the plugin can run the job.
+        return TransportVersion.current();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeString(path);
+        out.writeStringCollection(indices);
+        out.writeOptionalLong(from);
+        out.writeLong(to);
+        out.writeTimeValue(bucket);
+        out.writeVInt(pageSize);
+        out.writeVInt(slices);
+        maxBytesPerSec.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.field(PATH.getPreferredName(), path);
+        builder.stringListField(INDICES.getPreferredName(), indices);
+        if (from != null) {
+            builder.field(FROM.getPreferredName(), from);
+        }
+        builder.field(TO.getPreferredName(), to);
+        builder.field(BUCKET.getPreferredName(), bucket.getStringRep());
+        builder.field(PAGE_SIZE.getPreferredName(), pageSize);
+        builder.field(SLICES.getPreferredName(), slices);
+        builder.field(MAX_BYTES_PER_SEC.getPreferredName(), maxBytesPerSec.getStringRep());
+        return builder.endObject();
+    }
+
+    /**
+     * Gets the directory the files are written to, relative to one of the <code>path.repo</code> directories.
+     * @return The path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the indexes to export.
+     * @return The names of the indexes.
+     */
+    public List<String> getIndices() {
+        return indices;
+    }
+
+    /**
+     * Gets the earliest <code>@timestamp</code> exported.
+     * @return The epoch milliseconds, or <code>null</code> for the earliest document.
+     */
+    public Long getFrom() {
+        return from;
+    }
+
+    /**
+     * Gets the <code>@timestamp</code> that exported documents are older than.
+     * @return The epoch milliseconds.
+     */
+    public long getTo() {
+        return to;
+    }
+
+    /**
+     * Gets the span of <code>@timestamp</code> written to each file.
+     * @return The bucket.
+     */
+    public TimeValue getBucket() {
+        return bucket;
+    }
+
+    /**
+     * Gets the number of documents read per page.
+     * @return The page size.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the number of slices read in parallel.
+     * @return The number of slices, or 0 for one per shard.
+     */
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Gets the read throughput over all slices.
+     * @return The throughput, or 0 for unlimited.
+     */
+    public ByteSizeValue getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final UbiExportTaskParams that = (UbiExportTaskParams) o;
+        return path.equals(that.path) && indices.equals(that.indices) && Objects.equals(from, that.from) && to == that.to
+                && bucket.equals(that.bucket) && pageSize == that.pageSize && slices == that.slices
+                && maxBytesPerSec.equals(that.maxBytesPerSec);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, indices, from, to, bucket, pageSize, slices, maxBytesPerSec);
+    }
+
+}
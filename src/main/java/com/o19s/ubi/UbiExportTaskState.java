@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.persistent.PersistentTaskState;
+import org.elasticsearch.xcontent.ConstructingObjectParser;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+
+import static org.elasticsearch.xcontent.ConstructingObjectParser.constructorArg;
+
+/**
+ * The checkpoint and progress of an export job, kept in the cluster state with its persistent task.
+ * A job that is restarted on another node resumes from its checkpoint.
+ * @param index The position of the index being exported in the job's indexes.
+ * @param nextBucket The start of the first bucket of the index that is not exported yet, or -1 if the index is not started.
+ * @param docsExported The number of documents exported so far.
+ * @param bytesRead The number of source bytes read so far.
+ * @param filesWritten The number of files written so far.
+ */
+public record UbiExportTaskState(int index, long nextBucket, long docsExported, long bytesRead, long filesWritten)
+        implements PersistentTaskState {
+
+    private static final ParseField INDEX = new ParseField("index");
+    private static final ParseField NEXT_BUCKET = new ParseField("next_bucket");
+    private static final ParseField DOCS_EXPORTED = new ParseField("docs_exported");
+    private static final ParseField BYTES_READ = new ParseField("bytes_read");
+    private static final ParseField FILES_WRITTEN = new ParseField("files_written");
+
+    private static final ConstructingObjectParser<UbiExportTaskState, Void> PARSER = new ConstructingObjectParser<>(
+            UbiExportTaskParams.NAME,
+            args -> new UbiExportTaskState((Integer) args[0], (Long) args[1], (Long) args[2], (Long) args[3], (Long) args[4]));
+
+    static {
+        PARSER.declareInt(constructorArg(), INDEX);
+        PARSER.declareLong(constructorArg(), NEXT_BUCKET);
+        PARSER.declareLong(constructorArg(), DOCS_EXPORTED);
+        PARSER.declareLong(constructorArg(), BYTES_READ);
+        PARSER.declareLong(constructorArg(), FILES_WRITTEN);
+    }
+
+    /**
+     * Reads the state from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the state cannot be read.
+     */
+    public UbiExportTaskState(final StreamInput in) throws IOException {
+        this(in.readVInt(), in.readZLong(), in.readVLong(), in.readVLong(), in.readVLong());
+    }
+
+    /**
+     * Parses the state.
+     * @param parser The {@link XContentParser}.
+     * @return The parsed {@link UbiExportTaskState}.
+     */
+    public static UbiExportTaskState fromXContent(final XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return UbiExportTaskParams.NAME;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(index);
+        out.writeZLong(nextBucket);
+        out.writeVLong(docsExported);
+        out.writeVLong(bytesRead);
+        out.writeVLong(filesWritten);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.field(INDEX.getPreferredName(), index);
+        builder.field(NEXT_BUCKET.getPreferredName(), nextBucket);
+        builder.field(DOCS_EXPORTED.getPreferredName(), docsExported);
+        builder.field(BYTES_READ.getPreferredName(), bytesRead);
+        builder.field(FILES_WRITTEN.getPreferredName(), filesWritten);
+        return builder.endObject();
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The object IDs returned to the queries this node captured recently, by query ID, so that the
+ * events of those queries can be enriched with the rank of the clicked object and the objects
+ * shown alongside it without searching the queries index.
+ * <p>
+ * The pages of a query share its query ID, so each query keeps its most recent pages and an event
+ * is enriched from the page that showed its object.
+ * <p>
+ * The cache is bounded by the estimated memory of its entries and evicts the least recently used
+ * queries first. Queries also expire a while after they are captured. Only the queries captured
+ * on this node are cached, so events sent to another node are not enriched.
+ */
+public class UbiImpressionCache {
+
+    // The cache entry and the list that holds the pages.
+    private static final long ENTRY_OVERHEAD = 2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 5 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    // The Impressions record and the list that holds its object IDs.
+    private static final long PAGE_OVERHEAD = 2 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    // The most pages kept per query, so that paging far into the results does not grow an entry without bound.
+    private static final int MAX_PAGES = 10;
+
+    /**
+     * The objects returned to a page of a captured query.
+     * @param queryResponseId The ID of the query response.
+     * @param objectIds The object IDs of the hits, in rank order.
+     * @param offset The rank of the first hit, the <code>from</code> of the search.
+     */
+    public record Impressions(String queryResponseId, List<String> objectIds, int offset) {
+
+        /**
+         * Gets the rank of an object.
+         * @param objectId The object ID.
+         * @return The rank of the object, counting from 1 at the first hit of the first page, or -1 if it was not returned.
+         */
+        public int rankOf(final String objectId) {
+            final int position = objectId == null ? -1 : objectIds.indexOf(objectId);
+            return position < 0 ? -1 : offset + position + 1;
+        }
+
+    }
+
+    private final Cache<String, List<Impressions>> cache;
+
+    // Counted here rather than by the cache, which would also count the lookups of put.
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates the cache.
+     * @param settings The node {@link Settings}.
+     */
+    public UbiImpressionCache(final Settings settings) {
+
+        if (UbiSettings.EVENTS_IMPRESSION_CACHE_ENABLED.get(settings)) {
+            this.cache = CacheBuilder.<String, List<Impressions>>builder()
+                    .setMaximumWeight(UbiSettings.EVENTS_IMPRESSION_CACHE_SIZE.get(settings).getBytes())
+                    .setExpireAfterWrite(UbiSettings.EVENTS_IMPRESSION_CACHE_EXPIRE.get(settings))
+                    .weigher(UbiImpressionCache::weigh)
+                    .build();
+        } else {
+            this.cache = null;
+        }
+
+    }
+
+    /**
+     * Gets whether the cache is enabled.
+     * @return Whether queries are cached.
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Caches the objects returned to a captured query.
+     * @param queryResponse The {@link QueryResponse} of the query.
+     */
+    public void put(final QueryResponse queryResponse) {
+
+        if (cache == null || queryResponse.getQueryId() == null || queryResponse.getQueryResponseObjectIds().isEmpty()) {
+            return;
+        }
+
+        // The list is not copied: it is not changed once the query response is built.
+        final Impressions page = new Impressions(queryResponse.getQueryResponseId(), queryResponse.getQueryResponseObjectIds(),
+                queryResponse.getOffset());
+        final List<Impressions> previous = cache.get(queryResponse.getQueryId());
+
+        if (previous == null) {
+            cache.put(queryResponse.getQueryId(), List.of(page));
+            return;
+        }
+
+        // The pages are replaced rather than changed so that the entry is weighed again. A page captured at the
+        // same time as another page of the query may be lost, which only costs the enrichment of its events.
+        final List<Impressions> pages = new ArrayList<>(previous.size() + 1);
+        for (final Impressions other : previous) {
+            // A page that is searched again replaces its earlier capture.
+            if (other.offset() != page.offset()) {
+                pages.add(other);
+            }
+        }
+        pages.add(page);
+
+        cache.put(queryResponse.getQueryId(), List.copyOf(pages.subList(Math.max(0, pages.size() - MAX_PAGES), pages.size())));
+
+    }
+
+    /**
+     * Gets the objects returned to the last captured page of a query.
+     * @param queryId The query ID.
+     * @return The {@link Impressions}, or <code>null</code> if the query is not cached.
+     */
+    public Impressions get(final String queryId) {
+        return get(queryId, null);
+    }
+
+    /**
+     * Gets the objects returned to the page of a query that showed an object.
+     * @param queryId The query ID.
+     * @param objectId The object ID, or <code>null</code>.
+     * @return The {@link Impressions} of the latest page that showed the object, or of the last captured page if none did,
+     * or <code>null</code> if the query is not cached.
+     */
+    public Impressions get(final String queryId, final String objectId) {
+
+        final List<Impressions> pages = cache == null || queryId == null ? null : cache.get(queryId);
+
+        if (pages == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+
+        for (int i = pages.size() - 1; objectId != null && i >= 0; i--) {
+            if (pages.get(i).rankOf(objectId) > 0) {
+                return pages.get(i);
+            }
+        }
+
+        return pages.get(pages.size() - 1);
+
+    }
+
+    /**
+     * Gets the number of cached queries.
+     * @return The number of queries.
+     */
+    public long getCount() {
+        return cache == null ? 0 : cache.count();
+    }
+
+    /**
+     * Gets the estimated memory used by the cached queries.
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes() {
+        return cache == null ? 0 : cache.weight();
+    }
+
+    /**
+     * Gets the number of lookups that found their query.
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that did not find their query.
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of queries evicted to stay below the maximum size.
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return cache == null ? 0 : cache.stats().getEvictions();
+    }
+
+    /**
+     * Estimates the memory used by a cached query.
+     * Package-private so it can be tested.
+     * @param queryId The query ID.
+     * @param pages The {@link Impressions} of its pages.
+     * @return The estimated size in bytes.
+     */
+    static long weigh(final String queryId, final List<Impressions> pages) {
+
+        long bytes = ENTRY_OVERHEAD + RamUsageEstimator.sizeOf(queryId);
+
+        for (final Impressions impressions : pages) {
+            bytes += PAGE_OVERHEAD + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.sizeOf(impressions.queryResponseId());
+            for (final String objectId : impressions.objectIds()) {
+                bytes += RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.sizeOf(objectId);
+            }
+        }
+
+        return bytes;
+
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexAbstraction;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The capture defaults of indexes from their <code>index.ubi.*</code> settings, so that searches
+ * of an index can leave out the <code>ubi</code> extension or send only a <code>query_id</code>.
+ * <p>
+ * The settings are read from the cluster state whenever indexes, aliases or index settings change,
+ * into a map from the name of each configured index, and of each alias and data stream of one, to
+ * its defaults. Looking up a search is then a map lookup per index it names. Wildcard expressions
+ * are not resolved, so their searches only use the parameters they send.
+ */
+public class UbiIndexDefaults implements ClusterStateListener {
+
+    /**
+     * The capture defaults of an index.
+     * @param enabled Whether searches without the <code>ubi</code> extension are captured.
+     * @param objectIdField The object ID field of searches that do not give one, or <code>null</code>.
+     * @param queryCaptureMode How the query DSL is stored, or <code>null</code> to use <code>ubi.capture.query</code>.
+     * @param sampleRate The fraction of searches that are captured.
+     */
+    public record Defaults(boolean enabled, String objectIdField, UbiSettings.QueryCaptureMode queryCaptureMode, double sampleRate) {
+
+        /**
+         * Reads the defaults from the settings of an index.
+         * @param settings The index {@link Settings}.
+         * @return The {@link Defaults}.
+         */
+        static Defaults of(final Settings settings) {
+
+            final String objectIdField = UbiSettings.INDEX_OBJECT_ID_FIELD.get(settings);
+            final String queryCaptureMode = UbiSettings.INDEX_CAPTURE_QUERY.get(settings);
+
+            return new Defaults(
+                    UbiSettings.INDEX_ENABLED.get(settings),
+                    objectIdField.isEmpty() ? null : objectIdField,
+                    queryCaptureMode.isEmpty() ? null : UbiSettings.QueryCaptureMode.valueOf(queryCaptureMode.toUpperCase(Locale.ROOT)),
+                    UbiSettings.INDEX_SAMPLE_RATE.get(settings));
+
+        }
+
+    }
+
+    private volatile Map<String, Defaults> defaults = Map.of();
+
+    /**
+     * Creates the index defaults.
+     * @param clusterService The {@link ClusterService} to listen to for changes of the index settings.
+     */
+    public UbiIndexDefaults(final ClusterService clusterService) {
+        clusterService.addListener(this);
+    }
+
+    /**
+     * Gets the defaults of a search.
+     * @param indices The index expressions of the search.
+     * @return The {@link Defaults} of the first expression that names a configured index, alias or data stream,
+     * or <code>null</code> if none does.
+     */
+    public Defaults get(final String[] indices) {
+
+        final Map<String, Defaults> current = defaults;
+
+        if (current.isEmpty() || indices == null) {
+            return null;
+        }
+
+        for (final String index : indices) {
+            final Defaults indexDefaults = current.get(index);
+            if (indexDefaults != null) {
+                return indexDefaults;
+            }
+        }
+
+        return null;
+
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+
+        final Metadata metadata = event.state().metadata();
+        final Metadata previous = event.previousState().metadata();
+
+        // Most metadata changes, such as mappings, templates and persistent tasks, leave the index settings as they were.
+        if (metadata.sameIndicesLookup(previous) && (metadata.indices() == previous.indices() || sameSettings(metadata, previous))) {
+            return;
+        }
+
+        defaults = resolve(metadata);
+
+    }
+
+    private static boolean sameSettings(final Metadata metadata, final Metadata previous) {
+
+        for (final IndexMetadata indexMetadata : metadata.indices().values()) {
+            final IndexMetadata previousIndexMetadata = previous.index(indexMetadata.getIndex().getName());
+            if (previousIndexMetadata == null || previousIndexMetadata.getSettingsVersion() != indexMetadata.getSettingsVersion()) {
+                return false;
+            }
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Reads the defaults of the configured indexes and of their aliases and data streams.
+     * Package-private so it can be tested.
+     * @param metadata The {@link Metadata} of the cluster.
+     * @return The defaults by index, alias and data stream name.
+     */
+    static Map<String, Defaults> resolve(final Metadata metadata) {
+
+        final Map<String, Defaults> byIndex = new HashMap<>();
+
+        for (final IndexMetadata indexMetadata : metadata.indices().values()) {
+            final Settings settings = indexMetadata.getSettings();
+            if (UbiSettings.getIndexSettings().stream().anyMatch(setting -> setting.exists(settings))) {
+                byIndex.put(indexMetadata.getIndex().getName(), Defaults.of(settings));
+            }
+        }
+
+        if (byIndex.isEmpty()) {
+            return Map.of();
+        }
+
+        final Map<String, Defaults> resolved = new HashMap<>(byIndex);
+
+        for (final IndexAbstraction abstraction : metadata.getIndicesLookup().values()) {
+
+            if (abstraction.getType() == IndexAbstraction.Type.CONCRETE_INDEX) {
+                continue;
+            }
+
+            // An alias or data stream takes the defaults of its write index, or else of its first configured index.
+            final Index writeIndex = abstraction.getWriteIndex();
+            Defaults aliasDefaults = writeIndex == null ? null : byIndex.get(writeIndex.getName());
+
+            for (int i = 0; aliasDefaults == null && i < abstraction.getIndices().size(); i++) {
+                aliasDefaults = byIndex.get(abstraction.getIndices().get(i).getName());
+            }
+
+            if (aliasDefaults != null) {
+                resolved.put(abstraction.getName(), aliasDefaults);
+            }
+
+        }
+
+        return Map.copyOf(resolved);
+
+    }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.template.put.TransportPutComposableIndexTemplateAction;
+import org.elasticsearch.action.datastreams.CreateDataStreamAction;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.ComposableIndexTemplate;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentParserConfiguration;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Installs the index templates of the UBI indexes and creates the indexes when the local node
+ * is the elected master.
+ * <p>
+ * In <code>index</code> storage mode each UBI index is a single index. In <code>data_stream</code>
+ * mode captured queries and events are written to data streams, which roll over to new backing
+ * indexes and delete old ones according to their lifecycle or ILM policy.
+ * <p>
+ * Everything is driven by cluster changes and done asynchronously, so searches never wait on it.
+ * A template is only put when the installed one is missing or was built from other settings, and
+ * an index is only created once its template is current. The {@link UbiDocumentWriter} holds its
+ * documents until all of the UBI indexes exist, so that writing them never creates an index.
+ */
+public class UbiIndexTemplateRegistry implements ClusterStateListener {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiIndexTemplateRegistry.class);
+
+    /**
+     * The version of the UBI index templates, increased whenever the templates change.
+     */
+    public static final long TEMPLATE_VERSION = 7;
+
+    // Higher than the built-in templates so that the UBI templates win over catch-all patterns.
+    private static final long TEMPLATE_PRIORITY = 200;
+
+    // The mappings are read from the classpath once.
+    private static final List<UbiIndex> UBI_INDEXES = List.of(
+            new UbiIndex(QueryDocument.UBI_QUERIES_INDEX, loadMapping("/queries-mapping.json"), true),
+            new UbiIndex(RestUbiEventsAction.UBI_EVENTS_INDEX, loadMapping("/events-mapping.json"), true),
+            new UbiIndex(UbiQueryRollup.UBI_QUERY_ROLLUPS_INDEX, loadMapping("/query-rollups-mapping.json"), true),
+            // Query DSLs are written once by their hash, which is only unique within a single index, and are kept
+            // for as long as any captured query refers to them.
+            new UbiIndex(QueryDocument.UBI_QUERY_DSL_INDEX, loadMapping("/query-dsl-mapping.json"), false),
+            // Judgements are overwritten by (user query, object) on every run of the judgements job.
+            new UbiIndex(UbiJudgementsTaskExecutor.UBI_JUDGEMENTS_INDEX, loadMapping("/judgements-mapping.json"), false)
+    );
+
+    private final Client client;
+    private final UbiDocumentWriter writer;
+
+    private volatile UbiSettings.StorageMode storageMode;
+    private volatile int numberOfShards;
+    private volatile TimeValue retention;
+    private volatile String lifecyclePolicy;
+
+    // The templates built from the current settings, by index name.
+    private volatile Map<String, ComposableIndexTemplate> templates;
+
+    // The templates being put and the indexes being created.
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the registry and listens for cluster changes.
+     * @param client The {@link Client} that installs the templates.
+     * @param clusterService The {@link ClusterService}.
+     * @param writer The {@link UbiDocumentWriter} that is held until the UBI indexes exist.
+     */
+    public UbiIndexTemplateRegistry(final Client client, final ClusterService clusterService, final UbiDocumentWriter writer) {
+
+        this.client = client;
+        this.writer = writer;
+
+        final Settings settings = clusterService.getSettings();
+        this.storageMode = UbiSettings.STORAGE_MODE.get(settings);
+        this.numberOfShards = UbiSettings.STORAGE_NUMBER_OF_SHARDS.get(settings);
+        this.retention = UbiSettings.STORAGE_RETENTION.get(settings);
+        this.lifecyclePolicy = UbiSettings.STORAGE_LIFECYCLE_POLICY.get(settings);
+        this.templates = buildTemplates();
+
+        // Settings are applied before listeners are notified, so the new templates are put
+        // by the same cluster change.
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.STORAGE_MODE, value -> {
+            this.storageMode = value;
+            this.templates = buildTemplates();
+        });
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.STORAGE_NUMBER_OF_SHARDS, value -> {
+            this.numberOfShards = value;
+            this.templates = buildTemplates();
+        });
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.STORAGE_RETENTION, value -> {
+            this.retention = value;
+            this.templates = buildTemplates();
+        });
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.STORAGE_LIFECYCLE_POLICY, value -> {
+            this.lifecyclePolicy = value;
+            this.templates = buildTemplates();
+        });
+
+        writer.setReady(false);
+        clusterService.addListener(this);
+
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+
+        if (event.state().blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)) {
+            return;
+        }
+
+        final Metadata metadata = event.state().metadata();
+
+        // Every node holds its writer until the indexes exist.
+        writer.setReady(UBI_INDEXES.stream().allMatch(ubiIndex -> metadata.hasIndexAbstraction(ubiIndex.name())));
+
+        if (!event.localNodeMaster()) {
+            return;
+        }
+
+        final Map<String, ComposableIndexTemplate> currentTemplates = this.templates;
+
+        for (final UbiIndex ubiIndex : UBI_INDEXES) {
+
+            final ComposableIndexTemplate template = currentTemplates.get(ubiIndex.name());
+
+            if (template == null) {
+                continue;
+            }
+
+            if (!isCurrent(metadata.templatesV2().get(ubiIndex.name()), template)) {
+                putTemplate(ubiIndex.name(), template);
+            } else if (!metadata.hasIndexAbstraction(ubiIndex.name())) {
+                createIndex(ubiIndex.name(), template.getDataStreamTemplate() != null);
+            }
+
+        }
+
+    }
+
+    /**
+     * Tells whether an installed template is the one the current settings build.
+     * Package-private so it can be tested.
+     * @param installed The installed {@link ComposableIndexTemplate}, or <code>null</code>.
+     * @param template The {@link ComposableIndexTemplate} built from the current settings.
+     * @return <code>true</code> if the installed template does not need to be put again.
+     */
+    static boolean isCurrent(final ComposableIndexTemplate installed, final ComposableIndexTemplate template) {
+        // The settings the template was built from are kept in its metadata.
+        return installed != null
+                && Objects.equals(installed.version(), template.version())
+                && Objects.equals(installed.metadata(), template.metadata());
+    }
+
+    private void putTemplate(final String name, final ComposableIndexTemplate template) {
+
+        if (!pending.add("template:" + name)) {
+            return;
+        }
+
+        final TransportPutComposableIndexTemplateAction.Request request =
+                new TransportPutComposableIndexTemplateAction.Request(name).indexTemplate(template).cause("ubi");
+
+        execute(() -> client.execute(TransportPutComposableIndexTemplateAction.TYPE, request, ActionListener.runAfter(ActionListener.wrap(
+                response -> LOGGER.info("Installed the index template of [{}]", name),
+                e -> LOGGER.warn("Unable to install the index template of [" + name + "]", e)
+        ), () -> pending.remove("template:" + name))));
+
+    }
+
+    private void createIndex(final String name, final boolean dataStream) {
+
+        if (!pending.add("index:" + name)) {
+            return;
+        }
+
+        final ActionListener<Object> listener = ActionListener.runAfter(ActionListener.wrap(
+                response -> LOGGER.info("Created the UBI {} [{}]", dataStream ? "data stream" : "index", name),
+                e -> {
+                    // Another node may have created it first.
+                    if (!(ExceptionsHelper.unwrapCause(e) instanceof ResourceAlreadyExistsException)) {
+                        LOGGER.warn("Unable to create the UBI index [" + name + "]", e);
+                    }
+                }
+        ), () -> pending.remove("index:" + name));
+
+        // The settings and mappings come from the template.
+        if (dataStream) {
+            execute(() -> client.execute(CreateDataStreamAction.INSTANCE, new CreateDataStreamAction.Request(name),
+                    listener.map(response -> response)));
+        } else {
+            execute(() -> client.admin().indices().create(new CreateIndexRequest(name), listener.map(response -> response)));
+        }
+
+    }
+
+    private void execute(final Runnable action) {
+
+        final ThreadContext threadContext = client.threadPool().getThreadContext();
+
+        // The templates and indexes are created by the plugin, not on behalf of a user.
+        final ThreadContext.StoredContext storedContext = threadContext.stashContext();
+
+        try {
+            threadContext.markAsSystemContext();
+            action.run();
+        } finally {
+            storedContext.restore();
+        }
+
+    }
+
+    private Map<String, ComposableIndexTemplate> buildTemplates() {
+
+        final Map<String, ComposableIndexTemplate> built = new HashMap<>();
+
+        for (final UbiIndex ubiIndex : UBI_INDEXES) {
+            try {
+                built.put(ubiIndex.name(), buildTemplate(ubiIndex.name(), ubiIndex.mapping(),
+                        ubiIndex.dataStream() && storageMode == UbiSettings.StorageMode.DATA_STREAM,
+                        numberOfShards, retention, lifecyclePolicy));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Unable to build the index template of [{}]", ubiIndex.name(), e);
+            }
+        }
+
+        return Map.copyOf(built);
+
+    }
+
+    /**
+     * Builds the index template of a UBI index.
+     * Package-private so it can be tested.
+     * @param name The name of the index or data stream.
+     * @param mapping The mappings.
+     * @param dataStream Whether the template creates a data stream.
+     * @param numberOfShards The number of primary shards.
+     * @param retention How long a data stream keeps data, or <code>-1</code> to keep it forever.
+     * @param lifecyclePolicy The ILM policy of a data stream, or an empty string to use the data stream lifecycle.
+     * @return The {@link ComposableIndexTemplate}.
+     * @throws IOException Thrown if the template cannot be built.
+     */
+    static ComposableIndexTemplate buildTemplate(final String name, final BytesReference mapping, final boolean dataStream,
+                                                 final int numberOfShards, final TimeValue retention,
+                                                 final String lifecyclePolicy) throws IOException {
+
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+
+            builder.startObject();
+            builder.array("index_patterns", name);
+            builder.field("priority", TEMPLATE_PRIORITY);
+            builder.field("version", TEMPLATE_VERSION);
+
+            builder.startObject("template");
+
+            builder.startObject("settings");
+            builder.field(IndexMetadata.SETTING_NUMBER_OF_SHARDS, numberOfShards);
+            builder.field(IndexMetadata.SETTING_AUTO_EXPAND_REPLICAS, "0-2");
+            // Single indexes have no rollover alias, and the query DSLs and judgements must outlive old queries and events.
+            if (dataStream && !lifecyclePolicy.isEmpty()) {
+                builder.field("index.lifecycle.name", lifecyclePolicy);
+            }
+            builder.endObject();
+
+            builder.rawField("mappings", mapping.streamInput(), XContentType.JSON);
+
+            // An ILM policy takes precedence over the data stream lifecycle.
+            if (dataStream && lifecyclePolicy.isEmpty()) {
+                builder.startObject("lifecycle");
+                if (retention.millis() >= 0) {
+                    builder.field("data_retention", retention.getStringRep());
+                }
+                builder.endObject();
+            }
+
+            builder.endObject();
+
+            if (dataStream) {
+                builder.startObject("data_stream").endObject();
+            }
+
+            builder.startObject("_meta");
+            builder.field("managed_by", "ubi");
+            builder.field("storage", storageFingerprint(dataStream, numberOfShards, retention, lifecyclePolicy));
+            builder.endObject();
+
+            builder.endObject();
+
+            try (XContentParser parser = XContentHelper.createParserNotCompressed(
+                    XContentParserConfiguration.EMPTY, BytesReference.bytes(builder), XContentType.JSON)) {
+                return ComposableIndexTemplate.parse(parser);
+            }
+
+        }
+
+    }
+
+    private static String storageFingerprint(final boolean dataStream, final int numberOfShards,
+                                             final TimeValue retention, final String lifecyclePolicy) {
+        return (dataStream ? "data_stream" : "index") + ";shards=" + numberOfShards
+                + ";retention=" + retention.getStringRep() + ";policy=" + lifecyclePolicy;
+    }
+
+    /**
+     * Reads a mapping from the classpath.
+     * Package-private so it can be tested.
+     * @param fileName The classpath resource of the mapping.
+     * @return The mapping.
+     */
+    static BytesReference loadMapping(final String fileName) {
+        try (InputStream is = UbiIndexTemplateRegistry.class.getResourceAsStream(fileName)) {
+            if (is == null) {
+                throw new IllegalStateException("Unable to get mapping from resource [" + fileName + "]");
+            }
+            return new BytesArray(is.readAllBytes());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to get mapping from resource [" + fileName + "]", e);
+        }
+    }
+
+    private record UbiIndex(String name, BytesReference mapping, boolean dataStream) {}
+
+}
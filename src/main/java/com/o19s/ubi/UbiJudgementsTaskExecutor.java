@@ -0,0 +1,423 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.persistent.AllocatedPersistentTask;
+import org.elasticsearch.persistent.PersistentTaskState;
+import org.elasticsearch.persistent.PersistentTasksExecutor;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs judgements jobs, which compute implicit relevance judgements from the captured queries
+ * and click events with a {@link ClickModel} and write them to the judgements index.
+ * <p>
+ * The queries index is read a page at a time in slices, in parallel, from a point in time so
+ * that the job sees one consistent snapshot however long it runs. The click events of each page
+ * are looked up by <code>query_id</code> from a point in time of the events index, so only a page
+ * of queries and their clicks are held at once besides the (user query, object) pairs. When the
+ * pairs do not fit in <code>max_pairs</code> the user queries are split into partitions that are
+ * computed one pass at a time.
+ * <p>
+ * The job runs on the generic thread pool of the node it is assigned to, checks for
+ * cancellation between pages and reports its progress in its persistent task state.
+ */
+public class UbiJudgementsTaskExecutor extends PersistentTasksExecutor<UbiJudgementsTaskParams> {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiJudgementsTaskExecutor.class);
+
+    /**
+     * The index of implicit relevance judgements.
+     */
+    public static final String UBI_JUDGEMENTS_INDEX = "ubi_judgements";
+
+    private static final int BULK_SIZE = 1000;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final String[] QUERY_FIELDS = {
+            "query_id", "user_query", "query_response_object_ids", "query_response_object_ids_packed", "query_response_offset"};
+    private static final String[] EVENT_FIELDS = {"query_id", "event_attributes.object.object_id"};
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final PointInTimeReader reader;
+
+    /**
+     * Creates the executor.
+     * @param client The {@link Client} that reads the UBI indexes and writes the judgements.
+     * @param clusterService The {@link ClusterService}.
+     * @param threadPool The {@link ThreadPool}.
+     */
+    public UbiJudgementsTaskExecutor(final Client client, final ClusterService clusterService, final ThreadPool threadPool) {
+        super(UbiJudgementsTaskParams.NAME, threadPool.generic());
+        this.client = client;
+        this.threadPool = threadPool;
+        this.reader = new PointInTimeReader(client, clusterService, threadPool);
+    }
+
+    @Override
+    protected void nodeOperation(final AllocatedPersistentTask task, final UbiJudgementsTaskParams params,
+                                 final PersistentTaskState state) {
+
+        final Progress progress = new Progress(task);
+        final ClickModel clickModel = new ClickModel(params.getMaxPairs());
+        final long timestamp = threadPool.absoluteTimeInMillis();
+
+        try {
+
+            final int slices = params.getSlices() > 0 ? params.getSlices() : reader.autoSlices(QueryDocument.UBI_QUERIES_INDEX);
+
+            for (int partition = 0; partition < params.getPartitions() && !task.isCancelled(); partition++) {
+
+                progress.report("reading", partition, true);
+                read(task, params, clickModel, partition, slices, progress);
+
+                if (task.isCancelled()) {
+                    break;
+                }
+
+                progress.report("writing", partition, true);
+                write(clickModel.judgements(), timestamp, progress);
+                clickModel.clearPairs();
+
+            }
+
+            if (task.isCancelled()) {
+                LOGGER.info("UBI judgements job was cancelled after reading [{}] queries", progress.queriesRead.get());
+            } else {
+                LOGGER.info("UBI judgements job read [{}] queries and [{}] clicks and wrote [{}] judgements",
+                        progress.queriesRead.get(), progress.clicksRead.get(), progress.judgementsWritten.get());
+            }
+
+            task.markAsCompleted();
+
+        } catch (Exception e) {
+            LOGGER.warn("UBI judgements job failed", e);
+            task.markAsFailed(e);
+        }
+
+    }
+
+    private void read(final AllocatedPersistentTask task, final UbiJudgementsTaskParams params, final ClickModel clickModel,
+                      final int partition, final int slices, final Progress progress) throws Exception {
+
+        final BytesReference queriesPit = reader.open(QueryDocument.UBI_QUERIES_INDEX);
+
+        try {
+
+            final BytesReference eventsPit = reader.open(RestUbiEventsAction.UBI_EVENTS_INDEX);
+
+            try {
+
+                reader.readSlices(slices, (slice, failed) ->
+                        readSlice(task, params, clickModel, partition, slice, slices, queriesPit, eventsPit, progress, failed));
+
+            } finally {
+                reader.close(eventsPit);
+            }
+
+        } finally {
+            reader.close(queriesPit);
+        }
+
+    }
+
+    private void readSlice(final AllocatedPersistentTask task, final UbiJudgementsTaskParams params, final ClickModel clickModel,
+                           final int partition, final int slice, final int slices, final BytesReference queriesPit,
+                           final BytesReference eventsPit, final Progress progress, final AtomicBoolean failed) throws IOException {
+
+        Object[] searchAfter = null;
+
+        while (!task.isCancelled() && !failed.get()) {
+
+            final SearchSourceBuilder source = PointInTimeReader.page(queriesPit, slice, slices, params.getPageSize(), searchAfter)
+                    .fetchSource(QUERY_FIELDS, null);
+
+            // Every page of a query shares its query ID, so the pages are kept apart.
+            final List<CapturedQuery> queries = new ArrayList<>();
+
+            final SearchResponse response = client.search(new SearchRequest().source(source)).actionGet();
+
+            try {
+
+                final SearchHit[] hits = response.getHits().getHits();
+
+                if (hits.length == 0) {
+                    return;
+                }
+
+                for (final SearchHit hit : hits) {
+                    final CapturedQuery query = CapturedQuery.fromSource(hit.getSourceAsMap());
+                    if (query != null) {
+                        queries.add(query);
+                    }
+                }
+
+                searchAfter = hits[hits.length - 1].getSortValues();
+                progress.queriesRead.addAndGet(hits.length);
+
+            } finally {
+                response.decRef();
+            }
+
+            final Set<String> queryIds = new HashSet<>();
+            queries.forEach(query -> queryIds.add(query.queryId()));
+
+            record(clickModel, queries, readClicks(eventsPit, params, queryIds, progress), partition, params.getPartitions());
+
+            progress.report("reading", partition, false);
+
+        }
+
+    }
+
+    /**
+     * Counts the captured queries in the click model.
+     * Package-private so it can be tested.
+     * @param clickModel The {@link ClickModel}.
+     * @param queries The captured queries. Each page of a query is a captured query of its own.
+     * @param clicks The IDs of the clicked objects by query ID.
+     * @param partition The partition of the user queries being counted.
+     * @param partitions The number of partitions.
+     */
+    static void record(final ClickModel clickModel, final List<CapturedQuery> queries, final Map<String, Set<String>> clicks,
+                       final int partition, final int partitions) {
+
+        for (final CapturedQuery query : queries) {
+
+            // The clicks of a query ID are matched against the objects of each of its pages.
+            final Set<String> clicked = clicks.getOrDefault(query.queryId(), Set.of());
+
+            // The priors are counted on the first pass only, over every user query.
+            if (partition == 0) {
+                clickModel.recordPriors(query.objectIds(), query.offset(), clicked);
+            }
+
+            if (query.userQuery() != null && Math.floorMod(query.userQuery().hashCode(), partitions) == partition) {
+                clickModel.recordPairs(query.userQuery(), query.objectIds(), query.offset(), clicked);
+            }
+
+        }
+
+    }
+
+    private Map<String, Set<String>> readClicks(final BytesReference eventsPit, final UbiJudgementsTaskParams params,
+                                                final Set<String> queryIds, final Progress progress) {
+
+        final Map<String, Set<String>> clicks = new HashMap<>();
+
+        if (queryIds.isEmpty()) {
+            return clicks;
+        }
+
+        final QueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termsQuery("query_id", queryIds))
+                .filter(QueryBuilders.termQuery("action_name", params.getClickAction()));
+
+        Object[] searchAfter = null;
+        int read;
+
+        do {
+
+            final SearchSourceBuilder source = PointInTimeReader.page(eventsPit, 0, 1, params.getPageSize(), searchAfter)
+                    .query(query)
+                    .fetchSource(EVENT_FIELDS, null);
+
+            final SearchResponse response = client.search(new SearchRequest().source(source)).actionGet();
+
+            try {
+
+                final SearchHit[] hits = response.getHits().getHits();
+
+                for (final SearchHit hit : hits) {
+
+                    final Map<String, Object> event = hit.getSourceAsMap();
+                    final Object queryId = event.get("query_id");
+                    final Object objectId = XContentMapValues.extractValue("event_attributes.object.object_id", event);
+
+                    if (queryId != null && objectId != null) {
+                        clicks.computeIfAbsent(queryId.toString(), k -> new HashSet<>()).add(objectId.toString());
+                    }
+
+                }
+
+                read = hits.length;
+
+                if (read > 0) {
+                    searchAfter = hits[read - 1].getSortValues();
+                    progress.clicksRead.addAndGet(read);
+                }
+
+            } finally {
+                response.decRef();
+            }
+
+        } while (read == params.getPageSize());
+
+        return clicks;
+
+    }
+
+    private void write(final List<ClickModel.Judgement> judgements, final long timestamp, final Progress progress) throws IOException {
+
+        for (int from = 0; from < judgements.size(); from += BULK_SIZE) {
+
+            final BulkRequest bulkRequest = new BulkRequest();
+
+            for (final ClickModel.Judgement judgement : judgements.subList(from, Math.min(from + BULK_SIZE, judgements.size()))) {
+                bulkRequest.add(new IndexRequest(UBI_JUDGEMENTS_INDEX).id(id(judgement)).source(toXContent(judgement, timestamp)));
+            }
+
+            final BulkResponse bulkResponse = client.bulk(bulkRequest).actionGet();
+
+            if (bulkResponse.hasFailures()) {
+                throw new ElasticsearchException("Unable to write UBI judgements: " + bulkResponse.buildFailureMessage());
+            }
+
+            progress.judgementsWritten.addAndGet(bulkRequest.numberOfActions());
+
+        }
+
+    }
+
+    private static String id(final ClickModel.Judgement judgement) {
+        final byte[] key = (judgement.userQuery() + '\n' + judgement.objectId()).getBytes(StandardCharsets.UTF_8);
+        final MurmurHash3.Hash128 hash = MurmurHash3.hash128(key, 0, key.length, 0, new MurmurHash3.Hash128());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash.getBytes());
+    }
+
+    private static XContentBuilder toXContent(final ClickModel.Judgement judgement, final long timestamp) throws IOException {
+
+        final XContentBuilder builder = XContentFactory.jsonBuilder();
+
+        builder.startObject();
+        builder.field("@timestamp", timestamp);
+        builder.field("user_query", judgement.userQuery());
+        builder.field("object_id", judgement.objectId());
+        builder.field("impressions", judgement.impressions());
+        builder.field("clicks", judgement.clicks());
+        builder.field("ctr", judgement.ctr());
+        builder.field("expected_clicks", judgement.expectedClicks());
+        builder.field("coec", judgement.coec());
+        builder.endObject();
+
+        return builder;
+
+    }
+
+    /**
+     * The fields of a captured query that the click model needs.
+     * @param queryId The ID of the query.
+     * @param userQuery The normalized user query, or <code>null</code> if there is none.
+     * @param objectIds The IDs of the objects returned, in rank order.
+     * @param offset The position of the first object.
+     */
+    record CapturedQuery(String queryId, String userQuery, List<String> objectIds, int offset) {
+
+        /**
+         * Reads a captured query from its source.
+         * @param source The source of a query document.
+         * @return The {@link CapturedQuery}, or <code>null</code> if it has no ID or returned no objects.
+         * @throws IOException Thrown if the packed object IDs cannot be read.
+         */
+        static CapturedQuery fromSource(final Map<String, Object> source) throws IOException {
+
+            final Object queryId = source.get("query_id");
+            final List<String> objectIds = new ArrayList<>();
+
+            if (source.get("query_response_object_ids_packed") instanceof String packed) {
+                objectIds.addAll(ObjectIdCodec.decode(Base64.getDecoder().decode(packed)));
+            } else if (source.get("query_response_object_ids") instanceof List<?> list) {
+                list.forEach(objectId -> objectIds.add(String.valueOf(objectId)));
+            }
+
+            if (queryId == null || objectIds.isEmpty()) {
+                return null;
+            }
+
+            final String userQuery = source.get("user_query") instanceof String s ? UbiQueryRollup.normalize(s) : null;
+            final int offset = source.get("query_response_offset") instanceof Number n ? n.intValue() : 0;
+
+            return new CapturedQuery(queryId.toString(), userQuery, objectIds, offset);
+
+        }
+
+    }
+
+    private static final class Progress {
+
+        private final AllocatedPersistentTask task;
+        private final AtomicLong queriesRead = new AtomicLong();
+        private final AtomicLong clicksRead = new AtomicLong();
+        private final AtomicLong judgementsWritten = new AtomicLong();
+        private final AtomicLong lastReport = new AtomicLong(System.nanoTime());
+
+        private Progress(final AllocatedPersistentTask task) {
+            this.task = task;
+        }
+
+        // Updating the task state is a cluster state update, so progress is reported every few seconds at most.
+        private void report(final String phase, final int partition, final boolean force) {
+
+            final long now = System.nanoTime();
+            final long last = lastReport.get();
+
+            if (!force && (now - last < REPORT_INTERVAL_NANOS || !lastReport.compareAndSet(last, now))) {
+                return;
+            }
+
+            task.updatePersistentTaskState(
+                    new UbiJudgementsTaskState(phase, partition, queriesRead.get(), clicksRead.get(), judgementsWritten.get()),
+                    ActionListener.wrap(t -> {}, e -> LOGGER.debug("Unable to report the progress of the UBI judgements job", e)));
+
+        }
+
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.xcontent.ConstructingObjectParser;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import static org.elasticsearch.xcontent.ConstructingObjectParser.optionalConstructorArg;
+
+/**
+ * The parameters of a judgements job, see {@link UbiJudgementsTaskExecutor}.
+ */
+public class UbiJudgementsTaskParams implements PersistentTaskParams {
+
+    /**
+     * The name of the judgements persistent task.
+     */
+    public static final String NAME = "ubi/judgements";
+
+    private static final ParseField PAGE_SIZE = new ParseField("page_size");
+    private static final ParseField SLICES = new ParseField("slices");
+    private static final ParseField PARTITIONS = new ParseField("partitions");
+    private static final ParseField MAX_PAIRS = new ParseField("max_pairs");
+    private static final ParseField CLICK_ACTION = new ParseField("click_action");
+
+    private static final ConstructingObjectParser<UbiJudgementsTaskParams, Void> PARSER = new ConstructingObjectParser<>(NAME,
+            args -> new UbiJudgementsTaskParams((Integer) args[0], (Integer) args[1], (Integer) args[2], (Integer) args[3],
+                    (String) args[4]));
+
+    static {
+        PARSER.declareInt(optionalConstructorArg(), PAGE_SIZE);
+        PARSER.declareInt(optionalConstructorArg(), SLICES);
+        PARSER.declareInt(optionalConstructorArg(), PARTITIONS);
+        PARSER.declareInt(optionalConstructorArg(), MAX_PAIRS);
+        PARSER.declareString(optionalConstructorArg(), CLICK_ACTION);
+    }
+
+    private final int pageSize;
+    private final int slices;
+    private final int partitions;
+    private final int maxPairs;
+    private final String clickAction;
+
+    /**
+     * Creates the parameters. Parameters that are <code>null</code> get their default.
+     * @param pageSize The number of captured queries read per page, 500 by default.
+     * @param slices The number of slices read in parallel, or 0 for one per shard of the queries index, up to 8.
+     * @param partitions The number of passes the user queries are split into, 1 by default.
+     * @param maxPairs The maximum number of (user query, object) pairs held in memory per pass, 200000 by default.
+     * @param clickAction The <code>action_name</code> of click events, <code>click</code> by default.
+     */
+    public UbiJudgementsTaskParams(final Integer pageSize, final Integer slices, final Integer partitions, final Integer maxPairs,
+                                   final String clickAction) {
+
+        this.pageSize = pageSize == null ? 500 : pageSize;
+        this.slices = slices == null ? 0 : slices;
+        this.partitions = partitions == null ? 1 : partitions;
+        this.maxPairs = maxPairs == null ? 200_000 : maxPairs;
+        this.clickAction = clickAction == null ? "click" : clickAction;
+
+        if (this.pageSize < 1 || this.pageSize > 10_000) {
+            throw new IllegalArgumentException("[page_size] must be between 1 and 10000 but was [" + this.pageSize + "]");
+        }
+        if (this.slices < 0 || this.slices > 1024) {
+            throw new IllegalArgumentException("[slices] must be between 0 and 1024 but was [" + this.slices + "]");
+        }
+        if (this.partitions < 1) {
+            throw new IllegalArgumentException("[partitions] must be at least 1 but was [" + this.partitions + "]");
+        }
+        if (this.maxPairs < 1) {
+            throw new IllegalArgumentException("[max_pairs] must be at least 1 but was [" + this.maxPairs + "]");
+        }
+
+    }
+
+    /**
+     * Reads the parameters from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the parameters cannot be read.
+     */
+    public UbiJudgementsTaskParams(final StreamInput in) throws IOException {
+        this(in.readVInt(), in.readVInt(), in.readVInt(), in.readVInt(), in.readString());
+    }
+
+    /**
+     * Parses the parameters.
+     * @param parser The {@link XContentParser}.
+     * @return The parsed {@link UbiJudgementsTaskParams}.
+     */
+    public static UbiJudgementsTaskParams fromXContent(final XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        // Only nodes with this version of the plugin can run the job.
+        return TransportVersion.current();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(pageSize);
+        out.writeVInt(slices);
+        out.writeVInt(partitions);
+        out.writeVInt(maxPairs);
+        out.writeString(clickAction);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.field(PAGE_SIZE.getPreferredName(), pageSize);
+        builder.field(SLICES.getPreferredName(), slices);
+        builder.field(PARTITIONS.getPreferredName(), partitions);
+        builder.field(MAX_PAIRS.getPreferredName(), maxPairs);
+        builder.field(CLICK_ACTION.getPreferredName(), clickAction);
+        return builder.endObject();
+    }
+
+    /**
+     * Gets the number of captured queries read per page.
+     * @return The page size.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the number of slices read in parallel.
+     * @return The number of slices, or 0 for one per shard.
+     */
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Gets the number of passes the user queries are split into.
+     * @return The number of partitions.
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Gets the maximum number of (user query, object) pairs held in memory per pass.
+     * @return The maximum number of pairs.
+     */
+    public int getMaxPairs() {
+        return maxPairs;
+    }
+
+    /**
+     * Gets the <code>action_name</code> of click events.
+     * @return The click action.
+     */
+    public String getClickAction() {
+        return clickAction;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final UbiJudgementsTaskParams that = (UbiJudgementsTaskParams) o;
+        return pageSize == that.pageSize && slices == that.slices && partitions == that.partitions && maxPairs == that.maxPairs
+                && clickAction.equals(that.clickAction);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(pageSize, slices, partitions, maxPairs, clickAction);
+    }
+
+}
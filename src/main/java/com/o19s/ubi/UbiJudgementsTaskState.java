@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.persistent.PersistentTaskState;
+import org.elasticsearch.xcontent.ConstructingObjectParser;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+
+import static org.elasticsearch.xcontent.ConstructingObjectParser.constructorArg;
+
+/**
+ * The progress of a judgements job, kept in the cluster state with its persistent task.
+ * @param phase What the job is doing, <code>reading</code> or <code>writing</code>.
+ * @param partition The partition of user queries being computed, from 0.
+ * @param queriesRead The number of captured queries read so far, over all partitions.
+ * @param clicksRead The number of click events read so far, over all partitions.
+ * @param judgementsWritten The number of judgements written so far.
+ */
+public record UbiJudgementsTaskState(String phase, int partition, long queriesRead, long clicksRead, long judgementsWritten)
+        implements PersistentTaskState {
+
+    private static final ParseField PHASE = new ParseField("phase");
+    private static final ParseField PARTITION = new ParseField("partition");
+    private static final ParseField QUERIES_READ = new ParseField("queries_read");
+    private static final ParseField CLICKS_READ = new ParseField("clicks_read");
+    private static final ParseField JUDGEMENTS_WRITTEN = new ParseField("judgements_written");
+
+    private static final ConstructingObjectParser<UbiJudgementsTaskState, Void> PARSER = new ConstructingObjectParser<>(
+            UbiJudgementsTaskParams.NAME,
+            args -> new UbiJudgementsTaskState((String) args[0], (Integer) args[1], (Long) args[2], (Long) args[3], (Long) args[4]));
+
+    static {
+        PARSER.declareString(constructorArg(), PHASE);
+        PARSER.declareInt(constructorArg(), PARTITION);
+        PARSER.declareLong(constructorArg(), QUERIES_READ);
+        PARSER.declareLong(constructorArg(), CLICKS_READ);
+        PARSER.declareLong(constructorArg(), JUDGEMENTS_WRITTEN);
+    }
+
+    /**
+     * Reads the state from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the state cannot be read.
+     */
+    public UbiJudgementsTaskState(final StreamInput in) throws IOException {
+        this(in.readString(), in.readVInt(), in.readVLong(), in.readVLong(), in.readVLong());
+    }
+
+    /**
+     * Parses the state.
+     * @param parser The {@link XContentParser}.
+     * @return The parsed {@link UbiJudgementsTaskState}.
+     */
+    public static UbiJudgementsTaskState fromXContent(final XContentParser parser) {
+        return PARSER.apply(parser, null);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return UbiJudgementsTaskParams.NAME;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeString(phase);
+        out.writeVInt(partition);
+        out.writeVLong(queriesRead);
+        out.writeVLong(clicksRead);
+        out.writeVLong(judgementsWritten);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.field(PHASE.getPreferredName(), phase);
+        builder.field(PARTITION.getPreferredName(), partition);
+        builder.field(QUERIES_READ.getPreferredName(), queriesRead);
+        builder.field(CLICKS_READ.getPreferredName(), clicksRead);
+        builder.field(JUDGEMENTS_WRITTEN.getPreferredName(), judgementsWritten);
+        return builder.endObject();
+    }
+
+}
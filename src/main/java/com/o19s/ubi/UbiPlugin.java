@@ -16,25 +16,62 @@
  */
 package com.o19s.ubi;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.settings.SettingsModule;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.features.NodeFeature;
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.persistent.PersistentTaskState;
+import org.elasticsearch.persistent.PersistentTasksExecutor;
 import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.PersistentTaskPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.ParseField;
 import com.o19s.ubi.ext.UbiParametersExtBuilder;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
 
 /**
  * elasticsearch User Behavior Insights
  */
-public class UbiPlugin extends Plugin implements ActionPlugin, SearchPlugin {
+public class UbiPlugin extends Plugin implements ActionPlugin, SearchPlugin, PersistentTaskPlugin {
+
+    /**
+     * The name of the thread pool that parses posted events, and captures queries when <code>ubi.capture.async</code> is enabled.
+     */
+    public static final String UBI_THREAD_POOL_NAME = "ubi";
+
+    private static final int UBI_THREAD_POOL_QUEUE_SIZE = 1000;
 
     private ActionFilter ubiActionFilter;
+    private Environment environment;
+    private UbiPopularity popularity;
 
     /**
      * Creates a new instance of {@link UbiPlugin}.
@@ -49,9 +86,149 @@ public class UbiPlugin extends Plugin implements ActionPlugin, SearchPlugin {
     @Override
     public Collection<?> createComponents(PluginServices services) {
 
-        this.ubiActionFilter = new UbiActionFilter(services.client());
-        return Collections.emptyList();
+        final UbiStats stats = new UbiStats();
+
+        this.environment = services.environment();
+
+        final UbiDocumentWriter writer = new UbiDocumentWriter(services.client(), services.threadPool(), services.environment().settings(), stats);
+
+        final CaptureSampler sampler = new CaptureSampler(services.environment().settings(),
+                services.clusterService().getClusterSettings());
+
+        final UbiQueryRollup rollup = new UbiQueryRollup(writer, services.threadPool(), services.clusterService(),
+                services.nodeEnvironment().nodeId());
+
+        final UbiTrending trending = new UbiTrending(services.threadPool(), services.clusterService());
+
+        this.popularity = new UbiPopularity(services.client(), services.threadPool(), services.clusterService());
+
+        final UbiImpressionCache impressions = new UbiImpressionCache(services.environment().settings());
+
+        final CaptureIndexAllowlist allowlist = new CaptureIndexAllowlist(services.clusterService());
+
+        final UbiIndexDefaults indexDefaults = new UbiIndexDefaults(services.clusterService());
+
+        this.ubiActionFilter = new UbiActionFilter(writer, sampler, allowlist, indexDefaults, stats, rollup, trending, impressions,
+                services.clusterService());
+
+        stats.registerMetrics(services.telemetryProvider().getMeterRegistry(), sampler, writer, impressions);
 
+        // Installs the templates and creates the UBI indexes in the background.
+        final UbiIndexTemplateRegistry templateRegistry =
+                new UbiIndexTemplateRegistry(services.client(), services.clusterService(), writer);
+
+        final List<Object> components = new ArrayList<>();
+
+        // Stopped before the writer so that its last interval is written.
+        components.add(rollup);
+
+        // Started and stopped by the node, and injected into the stats and events actions.
+        components.add(writer);
+
+        components.add(templateRegistry);
+
+        // Injected into the stats action.
+        components.add(stats);
+        components.add(sampler);
+
+        // Injected into the trending action.
+        components.add(trending);
+
+        // Refreshed on a schedule while the node runs.
+        components.add(popularity);
+
+        // Injected into the stats and events actions.
+        components.add(impressions);
+
+        if (UbiSettings.SPOOL_ENABLED.get(services.environment().settings())) {
+            final UbiSpool spool = new UbiSpool(services.nodeEnvironment().nodeDataPaths()[0].resolve("ubi_spool"),
+                    services.environment().settings(), services.threadPool(), writer, stats);
+            writer.setSpool(spool);
+            // Started and stopped by the node, which replays it while it runs.
+            components.add(spool);
+        }
+
+        return components;
+
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(
+            Settings settings,
+            NamedWriteableRegistry namedWriteableRegistry,
+            RestController restController,
+            ClusterSettings clusterSettings,
+            IndexScopedSettings indexScopedSettings,
+            SettingsFilter settingsFilter,
+            IndexNameExpressionResolver indexNameExpressionResolver,
+            Supplier<DiscoveryNodes> nodesInCluster,
+            Predicate<NodeFeature> clusterSupportsFeature
+    ) {
+        return List.of(new RestUbiEventsAction(settings), new RestUbiStatsAction(), new RestUbiTrendingAction(),
+                new RestUbiJudgementsAction(), new RestUbiExportAction());
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return List.of(
+                new ActionHandler<>(UbiEventsAction.INSTANCE, TransportUbiEventsAction.class),
+                new ActionHandler<>(UbiStatsAction.INSTANCE, TransportUbiStatsAction.class),
+                new ActionHandler<>(UbiTrendingAction.INSTANCE, TransportUbiTrendingAction.class)
+        );
+    }
+
+    @Override
+    public List<PersistentTasksExecutor<?>> getPersistentTasksExecutor(ClusterService clusterService, ThreadPool threadPool,
+                                                                       Client client, SettingsModule settingsModule,
+                                                                       IndexNameExpressionResolver expressionResolver) {
+        // Called after createComponents, so the environment is set.
+        return List.of(
+                new UbiJudgementsTaskExecutor(client, clusterService, threadPool),
+                new UbiExportTaskExecutor(client, clusterService, threadPool, environment)
+        );
+    }
+
+    @Override
+    public List<NamedWriteableRegistry.Entry> getNamedWriteables() {
+        return List.of(
+                new NamedWriteableRegistry.Entry(PersistentTaskParams.class, UbiJudgementsTaskParams.NAME, UbiJudgementsTaskParams::new),
+                new NamedWriteableRegistry.Entry(PersistentTaskState.class, UbiJudgementsTaskParams.NAME, UbiJudgementsTaskState::new),
+                new NamedWriteableRegistry.Entry(PersistentTaskParams.class, UbiExportTaskParams.NAME, UbiExportTaskParams::new),
+                new NamedWriteableRegistry.Entry(PersistentTaskState.class, UbiExportTaskParams.NAME, UbiExportTaskState::new)
+        );
+    }
+
+    @Override
+    public List<NamedXContentRegistry.Entry> getNamedXContent() {
+        // The judgements job is kept in the cluster state, which is also persisted as XContent.
+        return List.of(
+                new NamedXContentRegistry.Entry(PersistentTaskParams.class, new ParseField(UbiJudgementsTaskParams.NAME),
+                        UbiJudgementsTaskParams::fromXContent),
+                new NamedXContentRegistry.Entry(PersistentTaskState.class, new ParseField(UbiJudgementsTaskParams.NAME),
+                        UbiJudgementsTaskState::fromXContent),
+                new NamedXContentRegistry.Entry(PersistentTaskParams.class, new ParseField(UbiExportTaskParams.NAME),
+                        UbiExportTaskParams::fromXContent),
+                new NamedXContentRegistry.Entry(PersistentTaskState.class, new ParseField(UbiExportTaskParams.NAME),
+                        UbiExportTaskState::fromXContent)
+        );
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+
+        // A bounded pool so that a capture backlog is rejected instead of growing without limit.
+        final int size = Math.max(1, EsExecutors.allocatedProcessors(settings) / 2);
+
+        return singletonList(new FixedExecutorBuilder(settings, UBI_THREAD_POOL_NAME, size, UBI_THREAD_POOL_QUEUE_SIZE,
+                "thread_pool." + UBI_THREAD_POOL_NAME, EsExecutors.TaskTrackingConfig.DO_NOT_TRACK));
+
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        final List<Setting<?>> settings = new ArrayList<>(UbiSettings.getSettings());
+        settings.addAll(UbiSettings.getIndexSettings());
+        return settings;
     }
 
     @Override
@@ -67,4 +244,12 @@ public class UbiPlugin extends Plugin implements ActionPlugin, SearchPlugin {
 
     }
 
+    @Override
+    public List<RescorerSpec<?>> getRescorers() {
+        // The rescorer reads the popularity table of the node, which is created after the rescorers are registered.
+        return singletonList(new RescorerSpec<>(UbiPopularityRescorerBuilder.NAME,
+                in -> new UbiPopularityRescorerBuilder(in, () -> popularity),
+                parser -> UbiPopularityRescorerBuilder.fromXContent(parser, () -> popularity)));
+    }
+
 }
@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the {@link PopularityTable} of this node, the click and impression counts of objects
+ * that the popularity rescorer boosts results by.
+ * <p>
+ * The table is refreshed on a schedule on the data nodes. Each refresh counts the clicks in the
+ * events index and the captured queries that returned each object since the previous refresh,
+ * with composite aggregations, adds them to a copy of the table and swaps the copy in. A refresh
+ * that a shard fails is discarded, so that its window is counted again by the next one. Searches
+ * read whichever table is current without locking. The first refresh reads back as far as
+ * <code>ubi.popularity.lookback</code>. Each refresh stops a minute short of now so that events
+ * still in the writer's queue are counted by the next one.
+ */
+public class UbiPopularity extends AbstractLifecycleComponent {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiPopularity.class);
+
+    private static final long REFRESH_LAG_MILLIS = TimeValue.timeValueMinutes(1).millis();
+    private static final int COMPOSITE_SIZE = 1000;
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final ClusterService clusterService;
+    private final TimeValue refreshInterval;
+    private final long lookbackMillis;
+    private final int maxObjects;
+
+    private volatile boolean enabled;
+    private volatile String clickAction;
+    private volatile PopularityTable table = PopularityTable.EMPTY;
+
+    // Guarded by this.
+    private long refreshedUntil = -1;
+
+    private volatile Scheduler.Cancellable scheduledRefresh;
+
+    /**
+     * Creates the popularity table.
+     * @param client The {@link Client} that reads the UBI indexes.
+     * @param threadPool The {@link ThreadPool} that refreshes the table.
+     * @param clusterService The {@link ClusterService}.
+     */
+    public UbiPopularity(final Client client, final ThreadPool threadPool, final ClusterService clusterService) {
+        this.client = client;
+        this.threadPool = threadPool;
+        this.clusterService = clusterService;
+        this.refreshInterval = UbiSettings.POPULARITY_REFRESH_INTERVAL.get(clusterService.getSettings());
+        this.lookbackMillis = UbiSettings.POPULARITY_LOOKBACK.get(clusterService.getSettings()).millis();
+        this.maxObjects = UbiSettings.POPULARITY_MAX_OBJECTS.get(clusterService.getSettings());
+        this.enabled = UbiSettings.POPULARITY_ENABLED.get(clusterService.getSettings());
+        this.clickAction = UbiSettings.POPULARITY_CLICK_ACTION.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.POPULARITY_ENABLED, this::setEnabled);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.POPULARITY_CLICK_ACTION,
+                value -> this.clickAction = value);
+    }
+
+    /**
+     * Gets the current table.
+     * @return The {@link PopularityTable}, which is never changed once returned.
+     */
+    public PopularityTable table() {
+        return table;
+    }
+
+    /**
+     * Adds the clicks and impressions since the last refresh to the table.
+     * Package-private so it can be tested.
+     */
+    synchronized void refresh() throws IOException {
+
+        if (!enabled || !clusterService.localNode().canContainData()) {
+            return;
+        }
+
+        final long to = threadPool.absoluteTimeInMillis() - REFRESH_LAG_MILLIS;
+        final long from = refreshedUntil < 0 ? to - lookbackMillis : refreshedUntil;
+
+        if (to <= from) {
+            return;
+        }
+
+        final PopularityTable next = table.copy();
+        final int[] dropped = new int[1];
+
+        final BoolQueryBuilder clicks = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery("@timestamp").gte(from).lt(to).format("epoch_millis"))
+                .filter(QueryBuilders.termQuery("action_name", clickAction));
+        count(RestUbiEventsAction.UBI_EVENTS_INDEX, "event_attributes.object.object_id", clicks,
+                (objectId, count) -> dropped[0] += next.add(PopularityTable.key(objectId), count, 0, maxObjects) ? 0 : 1);
+
+        final BoolQueryBuilder impressions = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery("@timestamp").gte(from).lt(to).format("epoch_millis"));
+        count(QueryDocument.UBI_QUERIES_INDEX, "query_response_object_ids", impressions,
+                (objectId, count) -> dropped[0] += next.add(PopularityTable.key(objectId), 0, count, maxObjects) ? 0 : 1);
+        countPacked(impressions,
+                (objectId, count) -> dropped[0] += next.add(PopularityTable.key(objectId), 0, count, maxObjects) ? 0 : 1);
+
+        // Both counts are swapped in together, or neither is if a search failed.
+        table = next;
+        refreshedUntil = to;
+
+        if (dropped[0] > 0) {
+            LOGGER.warn("The UBI popularity table is full at [{}] objects, [{}] new objects were not counted", maxObjects, dropped[0]);
+        }
+
+    }
+
+    private void count(final String index, final String field, final BoolQueryBuilder query, final ObjectCounter counter) {
+
+        Map<String, Object> after = null;
+
+        do {
+
+            final CompositeAggregationBuilder composite = new CompositeAggregationBuilder("objects",
+                    List.of(new TermsValuesSourceBuilder("object_id").field(field))).size(COMPOSITE_SIZE);
+
+            if (after != null) {
+                composite.aggregateAfter(after);
+            }
+
+            final SearchRequest searchRequest = new SearchRequest(index)
+                    .indicesOptions(IndicesOptions.lenientExpandOpen())
+                    .source(new SearchSourceBuilder().size(0).trackTotalHits(false).query(query).aggregation(composite));
+
+            final SearchResponse response = client.search(searchRequest).actionGet();
+
+            try {
+
+                checkShards(response, index);
+
+                if (response.getAggregations() == null) {
+                    // The index does not exist yet.
+                    return;
+                }
+
+                final CompositeAggregation objects = response.getAggregations().get("objects");
+
+                for (final CompositeAggregation.Bucket bucket : objects.getBuckets()) {
+                    final int count = (int) Math.min(Integer.MAX_VALUE, bucket.getDocCount());
+                    counter.count(String.valueOf(bucket.getKey().get("object_id")), count);
+                }
+
+                after = objects.getBuckets().isEmpty() ? null : objects.afterKey();
+
+            } finally {
+                response.decRef();
+            }
+
+        } while (after != null);
+
+    }
+
+    /**
+     * Counts the impressions of the captured queries whose object IDs are packed, which cannot be aggregated,
+     * by reading and decoding them page by page.
+     * @param query The query of the captured queries to count.
+     * @param counter Counts the impressions of each object.
+     */
+    private void countPacked(final BoolQueryBuilder query, final ObjectCounter counter) throws IOException {
+
+        final BoolQueryBuilder packed = QueryBuilders.boolQuery()
+                .filter(query)
+                .filter(QueryBuilders.existsQuery("query_response_object_ids_packed"));
+
+        Object[] after = null;
+        int read;
+
+        do {
+
+            // The query response ID is unique, so it is enough to page by.
+            final SearchSourceBuilder source = new SearchSourceBuilder()
+                    .size(COMPOSITE_SIZE)
+                    .trackTotalHits(false)
+                    .query(packed)
+                    .sort("query_response_id")
+                    .fetchSource("query_response_object_ids_packed", null);
+
+            if (after != null) {
+                source.searchAfter(after);
+            }
+
+            final SearchRequest searchRequest = new SearchRequest(QueryDocument.UBI_QUERIES_INDEX)
+                    .indicesOptions(IndicesOptions.lenientExpandOpen())
+                    .source(source);
+
+            final SearchResponse response = client.search(searchRequest).actionGet();
+
+            try {
+
+                checkShards(response, QueryDocument.UBI_QUERIES_INDEX);
+
+                final SearchHit[] hits = response.getHits().getHits();
+
+                for (final SearchHit hit : hits) {
+                    if (hit.getSourceAsMap().get("query_response_object_ids_packed") instanceof String encoded) {
+                        for (final String objectId : ObjectIdCodec.decode(Base64.getDecoder().decode(encoded))) {
+                            counter.count(objectId, 1);
+                        }
+                    }
+                }
+
+                read = hits.length;
+                after = read == 0 ? null : hits[read - 1].getSortValues();
+
+            } finally {
+                response.decRef();
+            }
+
+        } while (read == COMPOSITE_SIZE);
+
+    }
+
+    private static void checkShards(final SearchResponse response, final String index) {
+        // A partial count would be swapped in and its window never counted again.
+        if (response.getFailedShards() > 0) {
+            throw new ElasticsearchException("Unable to count the popularity of objects in [" + index + "], ["
+                    + response.getFailedShards() + "] shards failed", response.getShardFailures()[0].getCause());
+        }
+    }
+
+    private void setEnabled(final boolean enabled) {
+
+        this.enabled = enabled;
+
+        if (!enabled) {
+            // Free the table, which is read from scratch if the rescorer is enabled again.
+            synchronized (this) {
+                table = PopularityTable.EMPTY;
+                refreshedUntil = -1;
+            }
+        }
+
+    }
+
+    @Override
+    protected void doStart() {
+        scheduledRefresh = threadPool.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                LOGGER.warn("Unable to refresh the UBI popularity table", e);
+            }
+        }, refreshInterval, threadPool.generic());
+    }
+
+    @Override
+    protected void doStop() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel();
+        }
+    }
+
+    @Override
+    protected void doClose() {}
+
+    @FunctionalInterface
+    private interface ObjectCounter {
+        void count(String objectId, int count);
+    }
+
+}
@@ -0,0 +1,522 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.SearchExecutionContext;
+import org.elasticsearch.search.rescore.RescoreContext;
+import org.elasticsearch.search.rescore.Rescorer;
+import org.elasticsearch.search.rescore.RescorerBuilder;
+import org.elasticsearch.xcontent.ConstructingObjectParser;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.xcontent.ConstructingObjectParser.optionalConstructorArg;
+
+/**
+ * The <code>ubi_popularity</code> rescorer, which boosts the top hits by how often their objects
+ * were clicked, according to the {@link PopularityTable} of the node that runs the shard search.
+ * <pre>
+ * "rescore": {
+ *   "window_size": 100,
+ *   "ubi_popularity": { "object_id_field": "sku", "signal": "ctr", "weight": 2.0, "boost_mode": "multiply" }
+ * }
+ * </pre>
+ */
+public class UbiPopularityRescorerBuilder extends RescorerBuilder<UbiPopularityRescorerBuilder> {
+
+    /**
+     * The name of the rescorer.
+     */
+    public static final String NAME = "ubi_popularity";
+
+    private static final ParseField OBJECT_ID_FIELD = new ParseField("object_id_field");
+    private static final ParseField SIGNAL = new ParseField("signal");
+    private static final ParseField WEIGHT = new ParseField("weight");
+    private static final ParseField BOOST_MODE = new ParseField("boost_mode");
+
+    // The first byte of the IDs that Uid stores as UTF-8.
+    private static final int UTF8_ID = 0xff;
+
+    private static final ConstructingObjectParser<UbiPopularityRescorerBuilder, Supplier<UbiPopularity>> PARSER =
+            new ConstructingObjectParser<>(NAME, false, (args, popularity) -> new UbiPopularityRescorerBuilder((String) args[0],
+                    args[1] == null ? null : Signal.fromString((String) args[1]), (Float) args[2],
+                    args[3] == null ? null : BoostMode.fromString((String) args[3]), popularity));
+
+    static {
+        PARSER.declareString(optionalConstructorArg(), OBJECT_ID_FIELD);
+        PARSER.declareString(optionalConstructorArg(), SIGNAL);
+        PARSER.declareFloat(optionalConstructorArg(), WEIGHT);
+        PARSER.declareString(optionalConstructorArg(), BOOST_MODE);
+    }
+
+    /**
+     * The engagement signal of an object.
+     */
+    public enum Signal {
+
+        /**
+         * The click-through rate, smoothed so that an object shown a few times does not outrank one shown often.
+         */
+        CTR,
+
+        /**
+         * The log of the number of clicks.
+         */
+        CLICKS;
+
+        static Signal fromString(final String value) {
+            return Signal.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+
+        float of(final int clicks, final int impressions) {
+            if (this == CTR) {
+                return clicks / (impressions + 10f);
+            }
+            return (float) Math.log1p(clicks);
+        }
+
+    }
+
+    /**
+     * How the weighted signal is combined with the score of a hit.
+     */
+    public enum BoostMode {
+
+        /**
+         * The score times one plus the weighted signal.
+         */
+        MULTIPLY,
+
+        /**
+         * The score plus the weighted signal.
+         */
+        SUM;
+
+        static BoostMode fromString(final String value) {
+            return BoostMode.valueOf(value.toUpperCase(Locale.ROOT));
+        }
+
+        float combine(final float score, final float weightedSignal) {
+            return this == MULTIPLY ? score * (1 + weightedSignal) : score + weightedSignal;
+        }
+
+    }
+
+    private final String objectIdField;
+    private final Signal signal;
+    private final float weight;
+    private final BoostMode boostMode;
+    private final Supplier<UbiPopularity> popularity;
+
+    /**
+     * Creates the rescorer. Parameters that are <code>null</code> get their default.
+     * @param objectIdField The keyword field that holds the object ID of a hit, <code>_id</code> by default.
+     * @param signal The {@link Signal}, the click-through rate by default.
+     * @param weight The weight of the signal, 1 by default.
+     * @param boostMode The {@link BoostMode}, multiply by default.
+     * @param popularity Supplies the {@link UbiPopularity} of the node.
+     */
+    public UbiPopularityRescorerBuilder(final String objectIdField, final Signal signal, final Float weight, final BoostMode boostMode,
+                                        final Supplier<UbiPopularity> popularity) {
+
+        this.objectIdField = objectIdField == null ? IdFieldMapper.NAME : objectIdField;
+        this.signal = signal == null ? Signal.CTR : signal;
+        this.weight = weight == null ? 1f : weight;
+        this.boostMode = boostMode == null ? BoostMode.MULTIPLY : boostMode;
+        this.popularity = popularity;
+
+        if (Float.isFinite(this.weight) == false) {
+            throw new IllegalArgumentException("[" + WEIGHT.getPreferredName() + "] must be finite but was [" + this.weight + "]");
+        }
+
+    }
+
+    /**
+     * Reads the rescorer from a stream.
+     * @param in The {@link StreamInput}.
+     * @param popularity Supplies the {@link UbiPopularity} of the node.
+     * @throws IOException Thrown if the rescorer cannot be read.
+     */
+    public UbiPopularityRescorerBuilder(final StreamInput in, final Supplier<UbiPopularity> popularity) throws IOException {
+        super(in);
+        this.objectIdField = in.readString();
+        this.signal = in.readEnum(Signal.class);
+        this.weight = in.readFloat();
+        this.boostMode = in.readEnum(BoostMode.class);
+        this.popularity = popularity;
+    }
+
+    /**
+     * Parses the rescorer.
+     * @param parser The {@link XContentParser}.
+     * @param popularity Supplies the {@link UbiPopularity} of the node.
+     * @return The parsed {@link UbiPopularityRescorerBuilder}.
+     */
+    public static UbiPopularityRescorerBuilder fromXContent(final XContentParser parser, final Supplier<UbiPopularity> popularity) {
+        return PARSER.apply(parser, popularity);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    @Override
+    public TransportVersion getMinimalSupportedVersion() {
+        // Only nodes with this version of the plugin can read the rescorer.
+        return TransportVersion.current();
+    }
+
+    @Override
+    protected void doWriteTo(final StreamOutput out) throws IOException {
+        out.writeString(objectIdField);
+        out.writeEnum(signal);
+        out.writeFloat(weight);
+        out.writeEnum(boostMode);
+    }
+
+    @Override
+    protected void doXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(OBJECT_ID_FIELD.getPreferredName(), objectIdField);
+        builder.field(SIGNAL.getPreferredName(), signal.name().toLowerCase(Locale.ROOT));
+        builder.field(WEIGHT.getPreferredName(), weight);
+        builder.field(BOOST_MODE.getPreferredName(), boostMode.name().toLowerCase(Locale.ROOT));
+        builder.endObject();
+    }
+
+    @Override
+    public UbiPopularityRescorerBuilder rewrite(final QueryRewriteContext ctx) {
+        return this;
+    }
+
+    @Override
+    protected RescoreContext innerBuildContext(final int windowSize, final SearchExecutionContext context) {
+
+        if (IdFieldMapper.NAME.equals(objectIdField) == false) {
+
+            final MappedFieldType fieldType = context.getFieldType(objectIdField);
+
+            // An index without the field is rescored as if none of its objects were clicked.
+            if (fieldType != null && (KeywordFieldMapper.CONTENT_TYPE.equals(fieldType.typeName()) == false
+                    || fieldType.hasDocValues() == false)) {
+                throw new IllegalArgumentException("[" + NAME + "] requires [" + objectIdField
+                        + "] to be a keyword field with doc values but it is of type [" + fieldType.typeName() + "]");
+            }
+
+        }
+
+        return new PopularityRescoreContext(windowSize, popularity.get().table());
+
+    }
+
+    /**
+     * Gets the field that holds the object ID of a hit.
+     * @return The field.
+     */
+    public String getObjectIdField() {
+        return objectIdField;
+    }
+
+    /**
+     * Gets the signal the hits are boosted by.
+     * @return The {@link Signal}.
+     */
+    public Signal getSignal() {
+        return signal;
+    }
+
+    /**
+     * Gets the weight of the signal.
+     * @return The weight.
+     */
+    public float getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets how the signal is combined with the score.
+     * @return The {@link BoostMode}.
+     */
+    public BoostMode getBoostMode() {
+        return boostMode;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (super.equals(o) == false) {
+            return false;
+        }
+        final UbiPopularityRescorerBuilder that = (UbiPopularityRescorerBuilder) o;
+        return objectIdField.equals(that.objectIdField) && signal == that.signal && weight == that.weight && boostMode == that.boostMode;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), objectIdField, signal, weight, boostMode);
+    }
+
+    /**
+     * The rescore context of a shard search, which holds the table that was current when the search started
+     * so that every hit of the shard is boosted by the same counts.
+     */
+    private class PopularityRescoreContext extends RescoreContext {
+
+        private final PopularityTable table;
+
+        PopularityRescoreContext(final int windowSize, final PopularityTable table) {
+            super(windowSize, new PopularityRescorer());
+            this.table = table;
+        }
+
+    }
+
+    private class PopularityRescorer implements Rescorer {
+
+        @Override
+        public TopDocs rescore(final TopDocs topDocs, final IndexSearcher searcher, final RescoreContext rescoreContext)
+                throws IOException {
+
+            final PopularityTable table = ((PopularityRescoreContext) rescoreContext).table;
+            final int window = Math.min(rescoreContext.getWindowSize(), topDocs.scoreDocs.length);
+
+            // The window is read in doc ID order so that each leaf's doc values are only read forward.
+            final ScoreDoc[] hits = Arrays.copyOf(topDocs.scoreDocs, window);
+            Arrays.sort(hits, (a, b) -> Integer.compare(a.doc, b.doc));
+
+            final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            final int[] rescored = new int[window];
+            final KeyScratch scratch = new KeyScratch();
+
+            ObjectKeys keys = null;
+            int leaf = -1;
+
+            for (int i = 0; i < window; i++) {
+
+                final ScoreDoc hit = hits[i];
+                final int hitLeaf = ReaderUtil.subIndex(hit.doc, leaves);
+
+                if (hitLeaf != leaf) {
+                    leaf = hitLeaf;
+                    keys = objectKeys(leaves.get(leaf), scratch);
+                }
+
+                final long key = keys.key(hit.doc - leaves.get(leaf).docBase);
+                hit.score = boost(table, key, hit.score);
+                // The hits are in doc ID order here, so the rescored docs are sorted.
+                rescored[i] = hit.doc;
+
+            }
+
+            Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+
+            // The hits outside the window keep their order after the window, as with the query rescorer.
+            final ScoreDoc[] scoreDocs = topDocs.scoreDocs.clone();
+            System.arraycopy(hits, 0, scoreDocs, 0, window);
+
+            rescoreContext.setRescoredDocs(new SortedDocs(rescored));
+
+            return new TopDocs(topDocs.totalHits, scoreDocs);
+
+        }
+
+        @Override
+        public Explanation explain(final int topLevelDocId, final IndexSearcher searcher, final RescoreContext rescoreContext,
+                                   final Explanation sourceExplanation) throws IOException {
+
+            if (rescoreContext.isRescored(topLevelDocId) == false) {
+                return sourceExplanation;
+            }
+
+            final PopularityTable table = ((PopularityRescoreContext) rescoreContext).table;
+            final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            final LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(topLevelDocId, leaves));
+            final long key = objectKeys(leaf, new KeyScratch()).key(topLevelDocId - leaf.docBase);
+
+            final float score = sourceExplanation.getValue().floatValue();
+            final int clicks = key == 0 ? 0 : table.clicks(key);
+            final int impressions = key == 0 ? 0 : table.impressions(key);
+
+            return Explanation.match(boost(table, key, score), NAME + ", " + boostMode.name().toLowerCase(Locale.ROOT) + " of:",
+                    sourceExplanation,
+                    Explanation.match(weight * signal.of(clicks, impressions),
+                            weight + " * " + signal.name().toLowerCase(Locale.ROOT) + " of [" + clicks + "] clicks and ["
+                                    + impressions + "] impressions"));
+
+        }
+
+        private float boost(final PopularityTable table, final long key, final float score) {
+
+            if (key == 0) {
+                return score;
+            }
+
+            return boostMode.combine(score, weight * signal.of(table.clicks(key), table.impressions(key)));
+
+        }
+
+        private ObjectKeys objectKeys(final LeafReaderContext leaf, final KeyScratch scratch) throws IOException {
+
+            if (IdFieldMapper.NAME.equals(objectIdField)) {
+
+                final StoredFields storedFields = leaf.reader().storedFields();
+
+                return doc -> {
+                    scratch.key = 0;
+                    storedFields.document(doc, scratch);
+                    return scratch.key;
+                };
+
+            }
+
+            final SortedSetDocValues values = DocValues.getSortedSet(leaf.reader(), objectIdField);
+
+            return doc -> {
+                if (values.advanceExact(doc) == false) {
+                    return 0;
+                }
+                // A hit with several object IDs is boosted by the first.
+                final BytesRef objectId = values.lookupOrd(values.nextOrd());
+                return PopularityTable.key(objectId.bytes, objectId.offset, objectId.length, scratch.hash);
+            };
+
+        }
+
+    }
+
+    /**
+     * Reads the key of the object ID of the docs of a leaf, in doc ID order.
+     */
+    @FunctionalInterface
+    private interface ObjectKeys {
+
+        /**
+         * Gets the key of the object ID of a doc.
+         * @param doc The doc ID in the leaf.
+         * @return The key, or 0 if the doc has no object ID.
+         */
+        long key(int doc) throws IOException;
+
+    }
+
+    /**
+     * Gets the key of a stored <code>_id</code>.
+     * Package-private so it can be tested.
+     * @param value The stored <code>_id</code>, as encoded by {@link Uid#encodeId(String)}.
+     * @param hash A hash to reuse.
+     * @param utf8 A buffer to reuse for IDs that are not stored as UTF-8.
+     * @return The key.
+     */
+    static long idKey(final byte[] value, final MurmurHash3.Hash128 hash, final BytesRefBuilder utf8) {
+
+        if (value.length > 0 && Byte.toUnsignedInt(value[0]) == UTF8_ID) {
+            // IDs that are neither base64 nor numbers are stored as UTF-8, which is what the table is keyed by.
+            return PopularityTable.key(value, 1, value.length - 1, hash);
+        }
+
+        utf8.copyChars(Uid.decodeId(value));
+        return PopularityTable.key(utf8.bytes(), 0, utf8.length(), hash);
+
+    }
+
+    /**
+     * The hash and buffer reused for the keys of the hits of a rescore, which also reads the key of a hit's <code>_id</code>.
+     */
+    private static class KeyScratch extends StoredFieldVisitor {
+
+        private final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+        private final BytesRefBuilder utf8 = new BytesRefBuilder();
+
+        // The key of the last _id read, or 0 if it has none.
+        private long key;
+
+        @Override
+        public Status needsField(final FieldInfo fieldInfo) {
+            if (IdFieldMapper.NAME.equals(fieldInfo.name)) {
+                return Status.YES;
+            }
+            return key == 0 ? Status.NO : Status.STOP;
+        }
+
+        @Override
+        public void binaryField(final FieldInfo fieldInfo, final byte[] value) {
+            key = idKey(value, hash, utf8);
+        }
+
+    }
+
+    /**
+     * The rescored docs, as a set over their sorted doc IDs so that no doc ID is boxed.
+     */
+    private static class SortedDocs extends AbstractSet<Integer> {
+
+        private final int[] docs;
+
+        SortedDocs(final int[] docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return o instanceof Integer doc && Arrays.binarySearch(docs, doc) >= 0;
+        }
+
+        @Override
+        public Iterator<Integer> iterator() {
+            return Arrays.stream(docs).iterator();
+        }
+
+        @Override
+        public int size() {
+            return docs.length;
+        }
+
+    }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Counts the searches with UBI parameters per normalized user query and writes the counts
+ * of each interval to the query rollups index, so that top queries and zero-result rates
+ * can be read from a few documents instead of aggregated from every captured query.
+ * <p>
+ * Every search is counted, whether or not it is sampled for capture. Each node writes one
+ * document per user query and interval. The result counts are kept in power-of-two buckets,
+ * so their percentiles are the upper bound of the bucket they fall in.
+ */
+public class UbiQueryRollup extends AbstractLifecycleComponent {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiQueryRollup.class);
+
+    /**
+     * The index of query rollups.
+     */
+    public static final String UBI_QUERY_ROLLUPS_INDEX = "ubi_query_rollups";
+
+    /**
+     * The user query that searches are counted under once an interval has reached its maximum number of user queries.
+     */
+    public static final String OTHER_QUERIES = "_other";
+
+    // The longest user query that is counted on its own, the ignore_above of its keyword field.
+    private static final int MAX_USER_QUERY_LENGTH = 256;
+
+    // Compiled once, since every captured search is normalized for the rollups and the trending sketches.
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final UbiDocumentWriter writer;
+    private final ThreadPool threadPool;
+    private final String nodeId;
+    private final TimeValue interval;
+    private final int maxQueries;
+
+    private volatile boolean enabled;
+    private volatile Map<String, Counters> counters = new ConcurrentHashMap<>();
+    private volatile long intervalStart;
+
+    private volatile Scheduler.Cancellable scheduledFlush;
+
+    /**
+     * Creates the rollup.
+     * @param writer The {@link UbiDocumentWriter} that writes the rollups.
+     * @param threadPool The {@link ThreadPool} that flushes the rollups.
+     * @param clusterService The {@link ClusterService}.
+     * @param nodeId The ID of the node, stored with each rollup.
+     */
+    public UbiQueryRollup(final UbiDocumentWriter writer, final ThreadPool threadPool, final ClusterService clusterService,
+                          final String nodeId) {
+        this.writer = writer;
+        this.threadPool = threadPool;
+        this.nodeId = nodeId;
+        this.interval = UbiSettings.ROLLUP_INTERVAL.get(clusterService.getSettings());
+        this.maxQueries = UbiSettings.ROLLUP_MAX_QUERIES.get(clusterService.getSettings());
+        this.enabled = UbiSettings.ROLLUP_ENABLED.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.ROLLUP_ENABLED, value -> this.enabled = value);
+        this.intervalStart = threadPool.absoluteTimeInMillis();
+    }
+
+    /**
+     * Counts a search.
+     * @param userQuery The user query of the search, which may be <code>null</code>.
+     * @param searchResponse The response to the search.
+     */
+    public void record(final String userQuery, final SearchResponse searchResponse) {
+
+        if (!enabled) {
+            return;
+        }
+
+        final String key = normalize(userQuery);
+
+        if (key == null) {
+            return;
+        }
+
+        final Map<String, Counters> counters = this.counters;
+        Counters queryCounters = counters.get(key);
+
+        if (queryCounters == null) {
+            // The size is approximate, which is enough to bound the memory used.
+            queryCounters = counters.computeIfAbsent(counters.size() < maxQueries ? key : OTHER_QUERIES, k -> new Counters());
+        }
+
+        queryCounters.add(resultCount(searchResponse));
+
+    }
+
+    /**
+     * Queues the rollups of the current interval on the writer and starts a new interval.
+     * A search counted while the intervals are switched may be missed.
+     * Package-private so it can be tested.
+     */
+    synchronized void flush() {
+
+        final Map<String, Counters> flushed = counters;
+        final long start = intervalStart;
+        final long end = threadPool.absoluteTimeInMillis();
+
+        counters = new ConcurrentHashMap<>();
+        intervalStart = end;
+
+        if (flushed.isEmpty()) {
+            return;
+        }
+
+        final List<RollupDocument> documents = new ArrayList<>(flushed.size());
+        flushed.forEach((userQuery, queryCounters) -> documents.add(new RollupDocument(nodeId, start, end, userQuery, queryCounters)));
+
+        final int added = writer.addAll(documents);
+        LOGGER.debug("Queued {} of {} query rollups", added, documents.size());
+
+    }
+
+    /**
+     * Normalizes a user query so that searches that differ only in case or whitespace are counted together.
+     * @param userQuery The user query.
+     * @return The normalized user query, or <code>null</code> if there is none.
+     */
+    static String normalize(final String userQuery) {
+
+        if (userQuery == null) {
+            return null;
+        }
+
+        final String normalized = WHITESPACE.matcher(userQuery.trim()).replaceAll(" ").toLowerCase(Locale.ROOT);
+
+        if (normalized.isEmpty()) {
+            return null;
+        }
+
+        return normalized.length() > MAX_USER_QUERY_LENGTH ? normalized.substring(0, MAX_USER_QUERY_LENGTH) : normalized;
+
+    }
+
+    private static long resultCount(final SearchResponse searchResponse) {
+        final TotalHits totalHits = searchResponse.getHits().getTotalHits();
+        // The total is not tracked when track_total_hits is false.
+        return totalHits == null ? searchResponse.getHits().getHits().length : totalHits.value;
+    }
+
+    @Override
+    protected void doStart() {
+        scheduledFlush = threadPool.scheduleWithFixedDelay(this::flush, interval, threadPool.generic());
+    }
+
+    @Override
+    protected void doStop() {
+
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel();
+        }
+
+        // The rollups are stopped before the writer, which flushes them on its way down.
+        flush();
+
+    }
+
+    @Override
+    protected void doClose() {}
+
+    /**
+     * The counts of one user query in one interval.
+     */
+    static final class Counters {
+
+        // Bucket 0 counts searches without results, bucket b counts result counts in [2^(b-1), 2^b).
+        private final int[] buckets = new int[Long.SIZE + 1];
+
+        private long searches;
+        private long zeroResults;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        synchronized void add(final long resultCount) {
+
+            searches++;
+            sum += resultCount;
+            min = Math.min(min, resultCount);
+            max = Math.max(max, resultCount);
+
+            if (resultCount == 0) {
+                zeroResults++;
+            }
+
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(resultCount)]++;
+
+        }
+
+        synchronized long searches() {
+            return searches;
+        }
+
+        synchronized long zeroResults() {
+            return zeroResults;
+        }
+
+        /**
+         * Gets an upper bound of a percentile of the result counts.
+         * @param percentile The percentile, between 0 and 100.
+         * @return The upper bound of the bucket the percentile falls in, no larger than the maximum result count.
+         */
+        synchronized long percentile(final double percentile) {
+
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * searches));
+            long seen = 0;
+
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank) {
+                    final long upperBound = bucket == 0 ? 0 : (1L << bucket) - 1;
+                    return Math.max(min, Math.min(max, upperBound));
+                }
+            }
+
+            return max;
+
+        }
+
+        synchronized void toXContent(final XContentBuilder builder) throws IOException {
+            builder.field("searches", searches);
+            builder.field("zero_results", zeroResults);
+            builder.startObject("result_count");
+            builder.field("min", min);
+            builder.field("max", max);
+            builder.field("sum", sum);
+            builder.field("p50", percentile(50));
+            builder.field("p90", percentile(90));
+            builder.field("p99", percentile(99));
+            builder.endObject();
+        }
+
+    }
+
+    /**
+     * The rollup of one user query in one interval on one node.
+     */
+    static final class RollupDocument implements UbiDocument {
+
+        private static final long BASE_SIZE_IN_BYTES = 384;
+
+        private final String nodeId;
+        private final long start;
+        private final long end;
+        private final String userQuery;
+        private final Counters counters;
+
+        RollupDocument(final String nodeId, final long start, final long end, final String userQuery, final Counters counters) {
+            this.nodeId = nodeId;
+            this.start = start;
+            this.end = end;
+            this.userQuery = userQuery;
+            this.counters = counters;
+        }
+
+        @Override
+        public long estimatedSizeInBytes() {
+            return BASE_SIZE_IN_BYTES + userQuery.length();
+        }
+
+        @Override
+        public void addTo(final BulkRequest bulkRequest) throws IOException {
+
+            try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+
+                builder.startObject();
+                builder.field("@timestamp", start);
+                builder.field("interval_end", end);
+                builder.field("node_id", nodeId);
+                builder.field("user_query", userQuery);
+                counters.toXContent(builder);
+                builder.endObject();
+
+                // The ID makes a retried write of the same rollup a conflict instead of a second count.
+                bulkRequest.add(new IndexRequest(UBI_QUERY_ROLLUPS_INDEX)
+                        .id(id())
+                        .opType(DocWriteRequest.OpType.CREATE)
+                        .source(builder));
+
+            }
+
+        }
+
+        private String id() {
+            final byte[] key = (nodeId + '\n' + start + '\n' + userQuery).getBytes(StandardCharsets.UTF_8);
+            final MurmurHash3.Hash128 hash = MurmurHash3.hash128(key, 0, key.length, 0, new MurmurHash3.Hash128());
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash.getBytes());
+        }
+
+    }
+
+}
@@ -17,11 +17,7 @@
 package com.o19s.ubi;
 
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.ShardSearchFailure;
-import org.elasticsearch.search.SearchHits;
-import org.elasticsearch.search.aggregations.InternalAggregations;
 import org.elasticsearch.search.profile.SearchProfileResults;
-import org.elasticsearch.search.suggest.Suggest;
 import com.o19s.ubi.ext.UbiParametersExtBuilder;
 import org.elasticsearch.xcontent.ToXContent;
 import org.elasticsearch.xcontent.XContentBuilder;
@@ -30,39 +26,74 @@ import java.io.IOException;
 
 /**
  * A UBI search response.
+ * <p>
+ * It shares the hits, aggregations, suggestions and profile results of the original search response
+ * instead of copying them, and holds a reference to the original response until it is released itself.
+ * The UBI query ID is written after the response header.
  */
 public class UbiSearchResponse extends SearchResponse {
 
     private static final String EXT_SECTION_NAME = "ext";
     private static final String UBI_QUERY_ID_FIELD_NAME = "query_id";
 
+    private final SearchResponse delegate;
     private final String queryId;
 
-    public UbiSearchResponse(
-            SearchHits hits,
-            InternalAggregations aggregations,
-            Suggest suggest,
-            boolean timedOut,
-            Boolean terminatedEarly,
-            SearchProfileResults profileResults,
-            int numReducePhases,
-            String scrollId,
-            int totalShards,
-            int successfulShards,
-            int skippedShards,
-            long tookInMillis,
-            ShardSearchFailure[] shardFailures,
-            Clusters clusters,
-            String queryId
-    ) {
-        super(hits, aggregations, suggest, timedOut, terminatedEarly, profileResults, numReducePhases, scrollId, totalShards, successfulShards, skippedShards, tookInMillis, shardFailures, clusters);
+    /**
+     * Creates a UBI search response for a search response.
+     * @param delegate The original {@link SearchResponse}. It is kept alive until this response is released.
+     * @param queryId The UBI query ID.
+     */
+    public UbiSearchResponse(final SearchResponse delegate, final String queryId) {
+
+        super(
+                delegate.getHits(),
+                delegate.getAggregations(),
+                delegate.getSuggest(),
+                delegate.isTimedOut(),
+                delegate.isTerminatedEarly(),
+                delegate.getProfileResults().isEmpty() ? null : new SearchProfileResults(delegate.getProfileResults()),
+                delegate.getNumReducePhases(),
+                delegate.getScrollId(),
+                delegate.getTotalShards(),
+                delegate.getSuccessfulShards(),
+                delegate.getSkippedShards(),
+                delegate.getTookInMillis(),
+                delegate.getShardFailures(),
+                delegate.getClusters(),
+                delegate.pointInTimeId()
+        );
+
+        delegate.mustIncRef();
+        this.delegate = delegate;
         this.queryId = queryId;
+
+    }
+
+    /**
+     * Gets the UBI query ID returned with the response.
+     * @return The query ID.
+     */
+    public String getQueryId() {
+        return queryId;
+    }
+
+    @Override
+    public boolean decRef() {
+
+        if (super.decRef()) {
+            delegate.decRef();
+            return true;
+        }
+
+        return false;
+
     }
 
     @Override
     public XContentBuilder headerToXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
 
-        innerToXContentChunked(params);
+        super.headerToXContent(builder, params);
 
         builder.startObject(EXT_SECTION_NAME);
         builder.startObject(UbiParametersExtBuilder.UBI_PARAMETER_NAME);
@@ -74,4 +105,4 @@ public class UbiSearchResponse extends SearchResponse {
 
     }
 
-}
\ No newline at end of file
+}
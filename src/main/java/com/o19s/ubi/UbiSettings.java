@@ -0,0 +1,525 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.settings.SecureSetting;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The settings registered by the UBI plugin.
+ */
+public final class UbiSettings {
+
+    /**
+     * What the {@link UbiDocumentWriter} does when its queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the document being added.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued document to make room for the one being added.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * Where the object ID of each hit is read from.
+     */
+    public enum ObjectIdSource {
+        /**
+         * Stream each hit's <code>_source</code> until the object ID field is found.
+         */
+        SOURCE,
+        /**
+         * The same as {@link #SOURCE}. The object ID field used to be added to the <code>fields</code> of the search,
+         * which changed the hits returned to the caller and the captured query.
+         */
+        FIELDS
+    }
+
+    /**
+     * The UBI parameter whose hash decides whether a query is sampled.
+     */
+    public enum SampleKey {
+        /**
+         * Sample by client so that all of the queries of a client are captured or none are.
+         */
+        CLIENT_ID,
+        /**
+         * Sample by query so that all of the pages of a query are captured or none are.
+         */
+        QUERY_ID
+    }
+
+    /**
+     * How the plugin generates query IDs and query response IDs.
+     */
+    public enum IdGeneratorType {
+        /**
+         * Time-ordered IDs like the document IDs generated by Elasticsearch.
+         */
+        TIME,
+        /**
+         * Random base64 IDs.
+         */
+        RANDOM,
+        /**
+         * Random version 4 UUIDs.
+         */
+        UUID
+    }
+
+    /**
+     * How the query DSL of a captured query is stored.
+     */
+    public enum QueryCaptureMode {
+        /**
+         * Store the whole query DSL.
+         */
+        FULL,
+        /**
+         * Store the query DSL up to a maximum size.
+         */
+        TRUNCATED,
+        /**
+         * Store a hash of the query DSL, and each distinct query DSL once in a separate index.
+         */
+        HASH,
+        /**
+         * Do not store the query DSL.
+         */
+        NONE
+    }
+
+    /**
+     * How the object IDs of a captured query's response are stored.
+     */
+    public enum ObjectIdStorage {
+        /**
+         * An array of keywords in <code>query_response_object_ids</code>, in rank order.
+         */
+        KEYWORDS,
+        /**
+         * Numeric object IDs packed into the binary <code>query_response_object_ids_packed</code> field,
+         * falling back to keywords when an ID is not numeric.
+         */
+        PACKED
+    }
+
+    /**
+     * How captured queries and events are stored.
+     */
+    public enum StorageMode {
+        /**
+         * In the <code>ubi_queries</code> and <code>ubi_events</code> indexes.
+         */
+        INDEX,
+        /**
+         * In the <code>ubi_queries</code> and <code>ubi_events</code> data streams, which roll over
+         * to new backing indexes and can delete old ones.
+         */
+        DATA_STREAM
+    }
+
+    /**
+     * Whether searches are captured at all. When disabled, the filter passes every request through untouched.
+     */
+    public static final Setting<Boolean> ENABLED = Setting.boolSetting(
+            "ubi.enabled", true, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The index, alias and data stream patterns whose searches are captured, or empty to capture searches of any index.
+     */
+    public static final Setting<List<String>> CAPTURE_INDICES = Setting.stringListSetting(
+            "ubi.capture.indices", Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * Whether searches of an index are captured when they have no <code>ubi</code> extension.
+     */
+    public static final Setting<Boolean> INDEX_ENABLED = Setting.boolSetting(
+            "index.ubi.enabled", false, Setting.Property.IndexScope, Setting.Property.Dynamic);
+
+    /**
+     * The object ID field of searches of an index that do not give one.
+     */
+    public static final Setting<String> INDEX_OBJECT_ID_FIELD = Setting.simpleString(
+            "index.ubi.object_id_field", Setting.Property.IndexScope, Setting.Property.Dynamic);
+
+    /**
+     * How the query DSL of searches of an index is stored, or empty to use <code>ubi.capture.query</code>.
+     */
+    public static final Setting<String> INDEX_CAPTURE_QUERY = Setting.simpleString(
+            "index.ubi.capture_query", "", value -> {
+                if (!value.isEmpty()) {
+                    QueryCaptureMode.valueOf(value.toUpperCase(Locale.ROOT));
+                }
+            }, Setting.Property.IndexScope, Setting.Property.Dynamic);
+
+    /**
+     * The fraction of the searches of an index that are captured, on top of <code>ubi.capture.sample_rate</code>.
+     */
+    public static final Setting<Double> INDEX_SAMPLE_RATE = Setting.doubleSetting(
+            "index.ubi.sample_rate", 1.0, 0.0, 1.0, Setting.Property.IndexScope, Setting.Property.Dynamic);
+
+    /**
+     * The maximum number of UBI documents buffered on a node waiting to be written.
+     */
+    public static final Setting<Integer> WRITER_QUEUE_SIZE = Setting.intSetting(
+            "ubi.writer.queue_size", 10_000, 1, Setting.Property.NodeScope);
+
+    /**
+     * The maximum number of documents in a single bulk request.
+     */
+    public static final Setting<Integer> WRITER_BULK_ACTIONS = Setting.intSetting(
+            "ubi.writer.bulk_actions", 500, 1, Setting.Property.NodeScope);
+
+    /**
+     * The maximum size of a single bulk request.
+     */
+    public static final Setting<ByteSizeValue> WRITER_BULK_SIZE = Setting.byteSizeSetting(
+            "ubi.writer.bulk_size", new ByteSizeValue(5, ByteSizeUnit.MB), Setting.Property.NodeScope);
+
+    /**
+     * How often buffered documents are flushed regardless of how many are queued.
+     */
+    public static final Setting<TimeValue> WRITER_FLUSH_INTERVAL = Setting.timeSetting(
+            "ubi.writer.flush_interval", TimeValue.timeValueSeconds(1), TimeValue.timeValueMillis(10), Setting.Property.NodeScope);
+
+    /**
+     * The maximum number of bulk requests in flight at once.
+     */
+    public static final Setting<Integer> WRITER_CONCURRENT_REQUESTS = Setting.intSetting(
+            "ubi.writer.concurrent_requests", 1, 1, Setting.Property.NodeScope);
+
+    /**
+     * What to do when the writer queue is full.
+     */
+    public static final Setting<OverflowPolicy> WRITER_OVERFLOW_POLICY = Setting.enumSetting(
+            OverflowPolicy.class, "ubi.writer.overflow_policy", OverflowPolicy.DROP_NEWEST, Setting.Property.NodeScope);
+
+    /**
+     * Where the object ID of each hit is read from. Deprecated, since the object ID is always read from the hit's
+     * <code>fields</code> when the search asks for the field, and otherwise from its <code>_source</code>.
+     */
+    public static final Setting<ObjectIdSource> OBJECT_ID_SOURCE = Setting.enumSetting(
+            ObjectIdSource.class, "ubi.object_id.source", ObjectIdSource.SOURCE, Setting.Property.NodeScope, Setting.Property.Dynamic,
+            Setting.Property.DeprecatedWarning);
+
+    /**
+     * The fraction of queries that are captured.
+     */
+    public static final Setting<Double> CAPTURE_SAMPLE_RATE = Setting.doubleSetting(
+            "ubi.capture.sample_rate", 1.0, 0.0, 1.0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The UBI parameter whose hash decides whether a query is sampled.
+     */
+    public static final Setting<SampleKey> CAPTURE_SAMPLE_KEY = Setting.enumSetting(
+            SampleKey.class, "ubi.capture.sample_key", SampleKey.QUERY_ID, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The maximum number of queries captured per second on each node, or <code>0</code> for no limit.
+     */
+    public static final Setting<Integer> CAPTURE_MAX_PER_SECOND = Setting.intSetting(
+            "ubi.capture.max_per_second", 0, 0, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How the plugin generates query IDs and query response IDs.
+     */
+    public static final Setting<IdGeneratorType> ID_GENERATOR = Setting.enumSetting(
+            IdGeneratorType.class, "ubi.id_generator", IdGeneratorType.TIME, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * Whether queries are captured on the <code>ubi</code> thread pool after the search response has been returned,
+     * instead of on the thread that completes the search. The searches of a multi-search are always captured on the pool.
+     */
+    public static final Setting<Boolean> CAPTURE_ASYNC = Setting.boolSetting(
+            "ubi.capture.async", false, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How the query DSL of a captured query is stored.
+     */
+    public static final Setting<QueryCaptureMode> CAPTURE_QUERY = Setting.enumSetting(
+            QueryCaptureMode.class, "ubi.capture.query", QueryCaptureMode.FULL, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The maximum size of the query DSL stored when queries are captured in <code>truncated</code> mode.
+     */
+    public static final Setting<ByteSizeValue> CAPTURE_QUERY_MAX_SIZE = Setting.byteSizeSetting(
+            "ubi.capture.query_max_size", new ByteSizeValue(4, ByteSizeUnit.KB), ByteSizeValue.ZERO,
+            new ByteSizeValue(Integer.MAX_VALUE, ByteSizeUnit.BYTES), Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How the object IDs of a captured query's response are stored.
+     */
+    public static final Setting<ObjectIdStorage> CAPTURE_OBJECT_IDS = Setting.enumSetting(
+            ObjectIdStorage.class, "ubi.capture.object_ids", ObjectIdStorage.KEYWORDS, Setting.Property.NodeScope,
+            Setting.Property.Dynamic);
+
+    /**
+     * How long after a query ID is captured that later captures of it, such as the next pages of its results,
+     * are written without their query DSL, or <code>0</code> to always write the query DSL.
+     */
+    public static final Setting<TimeValue> CAPTURE_COALESCE_WINDOW = Setting.timeSetting(
+            "ubi.capture.coalesce_window", TimeValue.ZERO, TimeValue.ZERO, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The maximum number of events accepted in one request to the events endpoint.
+     */
+    public static final Setting<Integer> EVENTS_MAX_PER_REQUEST = Setting.intSetting(
+            "ubi.events.max_per_request", 1000, 1, Setting.Property.NodeScope);
+
+    /**
+     * The request header that holds the client IP address when the events endpoint is behind a proxy,
+     * or empty to use the address of the connection.
+     */
+    public static final Setting<String> EVENTS_CLIENT_IP_HEADER = Setting.simpleString(
+            "ubi.events.client_ip_header", "", Setting.Property.NodeScope);
+
+    /**
+     * The secret salt added to client IP addresses before they are hashed, kept in the keystore.
+     * Without it events get no client IP hash, since an unsalted hash of an IPv4 address is easily reversed.
+     */
+    public static final Setting<SecureString> EVENTS_CLIENT_IP_SALT = SecureSetting.secureString(
+            "ubi.events.client_ip_salt", null);
+
+    /**
+     * Whether this node caches the object IDs returned to the queries it captures, to add them to the events of those queries.
+     */
+    public static final Setting<Boolean> EVENTS_IMPRESSION_CACHE_ENABLED = Setting.boolSetting(
+            "ubi.events.impression_cache.enabled", false, Setting.Property.NodeScope);
+
+    /**
+     * The estimated memory the impression cache may use. The least recently used queries are evicted to stay below it.
+     */
+    public static final Setting<ByteSizeValue> EVENTS_IMPRESSION_CACHE_SIZE = Setting.byteSizeSetting(
+            "ubi.events.impression_cache.size", new ByteSizeValue(32, ByteSizeUnit.MB), Setting.Property.NodeScope);
+
+    /**
+     * How long a query stays in the impression cache after it is captured.
+     */
+    public static final Setting<TimeValue> EVENTS_IMPRESSION_CACHE_EXPIRE = Setting.timeSetting(
+            "ubi.events.impression_cache.expire", TimeValue.timeValueMinutes(30), TimeValue.timeValueSeconds(1),
+            Setting.Property.NodeScope);
+
+    /**
+     * Whether queries and events are stored in indexes or data streams.
+     */
+    public static final Setting<StorageMode> STORAGE_MODE = Setting.enumSetting(
+            StorageMode.class, "ubi.storage.mode", StorageMode.INDEX, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The number of primary shards of the UBI indexes, or of each backing index of the UBI data streams.
+     */
+    public static final Setting<Integer> STORAGE_NUMBER_OF_SHARDS = Setting.intSetting(
+            "ubi.storage.number_of_shards", 1, 1, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How long the UBI data streams keep data, or <code>-1</code> to keep it forever.
+     */
+    public static final Setting<TimeValue> STORAGE_RETENTION = Setting.timeSetting(
+            "ubi.storage.retention", TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * The ILM policy of the UBI data streams, used instead of the data stream lifecycle when it is set.
+     * Only valid in <code>data_stream</code> storage mode, since rolling over a single index needs a rollover alias.
+     */
+    public static final Setting<String> STORAGE_LIFECYCLE_POLICY = Setting.simpleString(
+            "ubi.storage.lifecycle_policy", "", new Setting.Validator<>() {
+
+                @Override
+                public void validate(final String value) {
+                }
+
+                @Override
+                public void validate(final String value, final Map<Setting<?>, Object> settings) {
+                    if (!value.isEmpty() && settings.get(STORAGE_MODE) != StorageMode.DATA_STREAM) {
+                        throw new IllegalArgumentException("[ubi.storage.lifecycle_policy] requires [ubi.storage.mode] to be "
+                                + "[data_stream], since the UBI indexes of [index] mode have no rollover alias");
+                    }
+                }
+
+                @Override
+                public Iterator<Setting<?>> settings() {
+                    return List.<Setting<?>>of(STORAGE_MODE).iterator();
+                }
+
+            }, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * Whether documents that could not be written are spooled to disk and written again later.
+     */
+    public static final Setting<Boolean> SPOOL_ENABLED = Setting.boolSetting(
+            "ubi.spool.enabled", false, Setting.Property.NodeScope);
+
+    /**
+     * The maximum size of the spool on disk. The oldest segments are deleted to stay below it.
+     */
+    public static final Setting<ByteSizeValue> SPOOL_MAX_SIZE = Setting.byteSizeSetting(
+            "ubi.spool.max_size", new ByteSizeValue(1, ByteSizeUnit.GB), Setting.Property.NodeScope);
+
+    /**
+     * The size at which a spool segment is closed and a new one is started.
+     */
+    public static final Setting<ByteSizeValue> SPOOL_SEGMENT_SIZE = Setting.byteSizeSetting(
+            "ubi.spool.segment_size", new ByteSizeValue(16, ByteSizeUnit.MB), Setting.Property.NodeScope);
+
+    /**
+     * Whether searches with UBI parameters are counted in the query rollups.
+     */
+    public static final Setting<Boolean> ROLLUP_ENABLED = Setting.boolSetting(
+            "ubi.rollup.enabled", false, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How often the query rollups of the node are written to the query rollups index.
+     */
+    public static final Setting<TimeValue> ROLLUP_INTERVAL = Setting.timeSetting(
+            "ubi.rollup.interval", TimeValue.timeValueMinutes(1), TimeValue.timeValueSeconds(1), Setting.Property.NodeScope);
+
+    /**
+     * The maximum number of distinct user queries counted in one interval. Searches for other
+     * user queries are counted together.
+     */
+    public static final Setting<Integer> ROLLUP_MAX_QUERIES = Setting.intSetting(
+            "ubi.rollup.max_queries", 10_000, 1, Setting.Property.NodeScope);
+
+    /**
+     * Whether captured queries are added to the trending sketches.
+     */
+    public static final Setting<Boolean> TRENDING_ENABLED = Setting.boolSetting(
+            "ubi.trending.enabled", false, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How long each window of the trending sketches lasts. The sketches cover the current and the previous window.
+     */
+    public static final Setting<TimeValue> TRENDING_WINDOW = Setting.timeSetting(
+            "ubi.trending.window", TimeValue.timeValueMinutes(5), TimeValue.timeValueSeconds(1), Setting.Property.NodeScope);
+
+    /**
+     * The number of user queries and objects the top-K summaries of the trending sketches keep.
+     */
+    public static final Setting<Integer> TRENDING_CAPACITY = Setting.intSetting(
+            "ubi.trending.capacity", 1000, 10, 100_000, Setting.Property.NodeScope);
+
+    /**
+     * Whether this node keeps a table of the click and impression counts of objects for the popularity rescorer.
+     */
+    public static final Setting<Boolean> POPULARITY_ENABLED = Setting.boolSetting(
+            "ubi.popularity.enabled", false, Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    /**
+     * How often the popularity table is refreshed with the clicks and captured queries since the last refresh.
+     */
+    public static final Setting<TimeValue> POPULARITY_REFRESH_INTERVAL = Setting.timeSetting(
+            "ubi.popularity.refresh_interval", TimeValue.timeValueMinutes(5), TimeValue.timeValueSeconds(10), Setting.Property.NodeScope);
+
+    /**
+     * How far back the first refresh of the popularity table reads.
+     */
+    public static final Setting<TimeValue> POPULARITY_LOOKBACK = Setting.timeSetting(
+            "ubi.popularity.lookback", TimeValue.timeValueDays(30), TimeValue.timeValueMinutes(1), Setting.Property.NodeScope);
+
+    /**
+     * The maximum number of objects in the popularity table.
+     */
+    public static final Setting<Integer> POPULARITY_MAX_OBJECTS = Setting.intSetting(
+            "ubi.popularity.max_objects", 1_000_000, 1, 1 << 28, Setting.Property.NodeScope);
+
+    /**
+     * The <code>action_name</code> of the events counted as clicks in the popularity table.
+     */
+    public static final Setting<String> POPULARITY_CLICK_ACTION = Setting.simpleString(
+            "ubi.popularity.click_action", "click", Setting.Property.NodeScope, Setting.Property.Dynamic);
+
+    private UbiSettings() {}
+
+    /**
+     * Gets the index settings registered by the plugin.
+     * @return A list of {@link Setting settings}.
+     */
+    public static List<Setting<?>> getIndexSettings() {
+        return List.of(
+                INDEX_ENABLED,
+                INDEX_OBJECT_ID_FIELD,
+                INDEX_CAPTURE_QUERY,
+                INDEX_SAMPLE_RATE
+        );
+    }
+
+    /**
+     * Gets the node and cluster settings registered by the plugin.
+     * @return A list of {@link Setting settings}.
+     */
+    public static List<Setting<?>> getSettings() {
+        return List.of(
+                ENABLED,
+                CAPTURE_INDICES,
+                WRITER_QUEUE_SIZE,
+                WRITER_BULK_ACTIONS,
+                WRITER_BULK_SIZE,
+                WRITER_FLUSH_INTERVAL,
+                WRITER_CONCURRENT_REQUESTS,
+                WRITER_OVERFLOW_POLICY,
+                OBJECT_ID_SOURCE,
+                CAPTURE_SAMPLE_RATE,
+                CAPTURE_SAMPLE_KEY,
+                CAPTURE_MAX_PER_SECOND,
+                ID_GENERATOR,
+                CAPTURE_ASYNC,
+                CAPTURE_QUERY,
+                CAPTURE_QUERY_MAX_SIZE,
+                CAPTURE_OBJECT_IDS,
+                CAPTURE_COALESCE_WINDOW,
+                EVENTS_MAX_PER_REQUEST,
+                EVENTS_CLIENT_IP_HEADER,
+                EVENTS_CLIENT_IP_SALT,
+                EVENTS_IMPRESSION_CACHE_ENABLED,
+                EVENTS_IMPRESSION_CACHE_SIZE,
+                EVENTS_IMPRESSION_CACHE_EXPIRE,
+                STORAGE_MODE,
+                STORAGE_NUMBER_OF_SHARDS,
+                STORAGE_RETENTION,
+                STORAGE_LIFECYCLE_POLICY,
+                SPOOL_ENABLED,
+                SPOOL_MAX_SIZE,
+                SPOOL_SEGMENT_SIZE,
+                ROLLUP_ENABLED,
+                ROLLUP_INTERVAL,
+                ROLLUP_MAX_QUERIES,
+                TRENDING_ENABLED,
+                TRENDING_WINDOW,
+                TRENDING_CAPACITY,
+                POPULARITY_ENABLED,
+                POPULARITY_REFRESH_INTERVAL,
+                POPULARITY_LOOKBACK,
+                POPULARITY_MAX_OBJECTS,
+                POPULARITY_CLICK_ACTION
+        );
+    }
+
+}
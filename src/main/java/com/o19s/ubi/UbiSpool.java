@@ -0,0 +1,502 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.TransportVersion;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.IOUtils;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only spool on the node's disk for UBI documents that the cluster rejected.
+ * <p>
+ * Documents are appended to the active segment file, which is closed once it reaches the
+ * segment size. Closed segments are replayed oldest first, a batch at a time, by handing
+ * their documents back to the {@link UbiDocumentWriter} while its queue holds less than a
+ * bulk request and the UBI indexes exist. Replay backs off while documents keep being spooled. A segment is
+ * deleted once it has been replayed, and the oldest segments are deleted when the spool
+ * would grow beyond its maximum size. The replay position is checkpointed to disk after each batch
+ * the writer takes, so a restart resumes the replay instead of writing the batches again.
+ * <p>
+ * Each segment starts with a header of the magic number and the transport version its
+ * documents were serialized with. Each record is its length, its CRC32 and the serialized
+ * document, so a record torn by a crash ends the replay of its segment.
+ */
+public class UbiSpool extends AbstractLifecycleComponent {
+
+    private static final Logger LOGGER = LogManager.getLogger(UbiSpool.class);
+
+    private static final int MAGIC = 0x55424953;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    // The generation and position of the next record to replay, and their CRC32.
+    private static final String CHECKPOINT_FILE = "replay.checkpoint";
+    private static final int CHECKPOINT_SIZE = 20;
+
+    private static final TimeValue REPLAY_INTERVAL = TimeValue.timeValueSeconds(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeValue.timeValueMinutes(5).millis();
+
+    private final Path directory;
+    private final long maxSizeInBytes;
+    private final long segmentSizeInBytes;
+    private final int replayBatchSize;
+    private final ThreadPool threadPool;
+    private final UbiDocumentWriter writer;
+    private final UbiStats stats;
+
+    // The sizes of the closed segments by generation, oldest first.
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+
+    private FileChannel active;
+    private long activeGeneration;
+    private long activeSize;
+
+    private long replayGeneration = -1;
+    private long replayPosition;
+
+    private long backoffMillis = REPLAY_INTERVAL.millis();
+    private long nextReplayTime;
+    private boolean spooledSinceReplay;
+
+    private volatile Scheduler.Cancellable scheduledReplay;
+
+    /**
+     * Creates the spool.
+     * @param directory The directory of the segment files.
+     * @param settings The node {@link Settings}.
+     * @param threadPool The {@link ThreadPool} that replays the spool.
+     * @param writer The {@link UbiDocumentWriter} that replayed documents are handed to.
+     * @param stats The {@link UbiStats} that record the spool.
+     */
+    public UbiSpool(final Path directory, final Settings settings, final ThreadPool threadPool,
+                    final UbiDocumentWriter writer, final UbiStats stats) {
+        this.directory = directory;
+        this.maxSizeInBytes = UbiSettings.SPOOL_MAX_SIZE.get(settings).getBytes();
+        this.segmentSizeInBytes = UbiSettings.SPOOL_SEGMENT_SIZE.get(settings).getBytes();
+        this.replayBatchSize = UbiSettings.WRITER_BULK_ACTIONS.get(settings);
+        this.threadPool = threadPool;
+        this.writer = writer;
+        this.stats = stats;
+    }
+
+    /**
+     * Appends documents to the spool. This method writes to disk and must not be called
+     * on a transport thread.
+     * @param requests The documents that could not be written.
+     */
+    public synchronized void append(final List<DocWriteRequest<?>> requests) {
+
+        int spooled = 0;
+
+        try {
+
+            for (final DocWriteRequest<?> request : requests) {
+
+                final byte[] record = serialize(request);
+
+                // Make room by deleting whole segments, oldest first.
+                while (sizeInBytes() + RECORD_HEADER_SIZE + record.length > maxSizeInBytes && !segments.isEmpty()) {
+                    deleteSegment(segments.firstKey(), false);
+                }
+
+                if (sizeInBytes() + RECORD_HEADER_SIZE + record.length > maxSizeInBytes) {
+                    stats.onSpoolDropped(1);
+                    continue;
+                }
+
+                if (active == null) {
+                    openSegment();
+                }
+
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+
+                final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+                buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+                writeFully(active, buffer);
+                activeSize += buffer.limit();
+                spooled++;
+
+                if (activeSize >= segmentSizeInBytes) {
+                    closeSegment();
+                }
+
+            }
+
+            if (active != null) {
+                active.force(false);
+            }
+
+        } catch (IOException e) {
+            LOGGER.warn("Unable to spool UBI documents", e);
+            stats.onSpoolDropped(requests.size() - spooled);
+        }
+
+        stats.onSpooled(spooled);
+        stats.setSpoolSize(sizeInBytes());
+
+        // Documents are still being rejected, so wait longer before replaying.
+        spooledSinceReplay = true;
+        nextReplayTime = threadPool.relativeTimeInMillis() + backoffMillis;
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+
+    }
+
+    /**
+     * Hands the next batch of spooled documents to the writer if it is ready for them.
+     * Package-private so it can be tested.
+     */
+    void replay() {
+
+        final List<UbiDocument> documents = new ArrayList<>();
+
+        synchronized (this) {
+
+            // Replay no faster than the writer sends bulk requests.
+            if (!writer.isReady() || writer.getQueueSize() >= replayBatchSize || threadPool.relativeTimeInMillis() < nextReplayTime) {
+                return;
+            }
+
+            if (!spooledSinceReplay) {
+                backoffMillis = REPLAY_INTERVAL.millis();
+            }
+            spooledSinceReplay = false;
+
+            try {
+
+                if (segments.isEmpty() && active != null) {
+                    closeSegment();
+                }
+
+                if (segments.isEmpty()) {
+                    return;
+                }
+
+                readBatch(segments.firstKey(), documents);
+
+            } catch (IOException e) {
+                LOGGER.warn("Unable to replay the UBI spool", e);
+            }
+
+            stats.setSpoolSize(sizeInBytes());
+
+        }
+
+        if (!documents.isEmpty()) {
+            LOGGER.debug("Replaying {} spooled UBI documents", documents.size());
+            stats.onReplayed(writer.addAll(documents));
+            checkpoint();
+        }
+
+    }
+
+    /**
+     * Records the replay position once the writer has taken a batch, so that a restart does not replay it again.
+     */
+    private synchronized void checkpoint() {
+
+        // The segment was deleted once its last batch was read, which deleted its checkpoint too.
+        if (replayGeneration == -1) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        buffer.putLong(replayGeneration).putLong(replayPosition);
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, CHECKPOINT_SIZE - 4);
+        buffer.putInt((int) crc.getValue()).flip();
+
+        final Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+
+        try {
+
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, buffer);
+                channel.force(false);
+            }
+
+            // The checkpoint is replaced atomically, so a crash leaves either the old or the new one.
+            Files.move(temp, checkpointPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            IOUtils.fsync(directory, true);
+
+        } catch (IOException e) {
+            LOGGER.warn("Unable to checkpoint the UBI spool, its last batch may be replayed again after a restart", e);
+        }
+
+    }
+
+    private void readCheckpoint() throws IOException {
+
+        final Path checkpoint = checkpointPath();
+
+        if (!Files.exists(checkpoint)) {
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+
+        if (buffer.limit() == CHECKPOINT_SIZE) {
+
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, CHECKPOINT_SIZE - 4);
+
+            final long generation = buffer.getLong(0);
+            final long position = buffer.getLong(8);
+            final Long size = segments.get(generation);
+
+            if ((int) crc.getValue() == buffer.getInt(16) && size != null && position >= HEADER_SIZE && position <= size) {
+                replayGeneration = generation;
+                replayPosition = position;
+                return;
+            }
+
+        }
+
+        // The checkpoint is of a segment that has since been deleted, or was torn.
+        Files.deleteIfExists(checkpoint);
+
+    }
+
+    private void readBatch(final long generation, final List<UbiDocument> documents) throws IOException {
+
+        boolean done = false;
+
+        try (FileChannel channel = FileChannel.open(segmentPath(generation), StandardOpenOption.READ)) {
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (readFully(channel, header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                LOGGER.warn("Deleting UBI spool segment [{}] with an invalid header", generation);
+                deleteSegment(generation, true);
+                return;
+            }
+
+            final TransportVersion version = TransportVersion.fromId(header.getInt(4));
+            if (!TransportVersion.isCompatible(version)) {
+                LOGGER.warn("Deleting UBI spool segment [{}] written by an incompatible version", generation);
+                deleteSegment(generation, true);
+                return;
+            }
+
+            if (replayGeneration != generation) {
+                replayGeneration = generation;
+                replayPosition = HEADER_SIZE;
+            }
+
+            final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+            while (documents.size() < replayBatchSize) {
+
+                recordHeader.clear();
+                if (readFully(channel, recordHeader, replayPosition) < RECORD_HEADER_SIZE) {
+                    done = true;
+                    break;
+                }
+
+                final int length = recordHeader.getInt(0);
+                final ByteBuffer record = ByteBuffer.allocate(Math.max(length, 0));
+                if (length < 0 || readFully(channel, record, replayPosition + RECORD_HEADER_SIZE) < length) {
+                    LOGGER.warn("UBI spool segment [{}] ends with a torn record", generation);
+                    done = true;
+                    break;
+                }
+
+                final CRC32 crc = new CRC32();
+                crc.update(record.array());
+                if ((int) crc.getValue() != recordHeader.getInt(4)) {
+                    LOGGER.warn("UBI spool segment [{}] has a corrupt record, skipping the rest of it", generation);
+                    done = true;
+                    break;
+                }
+
+                replayPosition += RECORD_HEADER_SIZE + length;
+
+                final DocWriteRequest<?> request = deserialize(record.array(), version);
+                if (request instanceof IndexRequest) {
+                    documents.add(UbiDocument.of((IndexRequest) request));
+                }
+
+            }
+
+        }
+
+        if (done) {
+            deleteSegment(generation, true);
+        }
+
+    }
+
+    private static byte[] serialize(final DocWriteRequest<?> request) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.setTransportVersion(TransportVersion.current());
+            DocWriteRequest.writeDocumentRequest(out, request);
+            return BytesReference.toBytes(out.bytes());
+        }
+    }
+
+    private static DocWriteRequest<?> deserialize(final byte[] record, final TransportVersion version) throws IOException {
+        try (StreamInput in = new BytesArray(record).streamInput()) {
+            in.setTransportVersion(version);
+            return DocWriteRequest.readDocumentRequest(null, in);
+        }
+    }
+
+    private void openSegment() throws IOException {
+
+        active = FileChannel.open(segmentPath(activeGeneration),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(TransportVersion.current().id()).flip();
+        writeFully(active, header);
+        activeSize = HEADER_SIZE;
+
+    }
+
+    private void closeSegment() throws IOException {
+        active.force(false);
+        active.close();
+        active = null;
+        segments.put(activeGeneration, activeSize);
+        activeGeneration++;
+        activeSize = 0;
+    }
+
+    private void deleteSegment(final long generation, final boolean replayed) throws IOException {
+        final Long size = segments.remove(generation);
+        Files.deleteIfExists(segmentPath(generation));
+        if (generation == replayGeneration) {
+            replayGeneration = -1;
+            Files.deleteIfExists(checkpointPath());
+        }
+        if (!replayed) {
+            LOGGER.warn("Deleted UBI spool segment [{}] of {} bytes to stay below the maximum spool size", generation, size);
+        }
+    }
+
+    /**
+     * Gets the size of the spool on disk.
+     * @return The size in bytes.
+     */
+    public synchronized long sizeInBytes() {
+        return segments.values().stream().mapToLong(Long::longValue).sum() + activeSize;
+    }
+
+    private Path segmentPath(final long generation) {
+        return directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX);
+    }
+
+    private Path checkpointPath() {
+        return directory.resolve(CHECKPOINT_FILE);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position + read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    @Override
+    protected synchronized void doStart() {
+
+        try {
+
+            Files.createDirectories(directory);
+
+            // Segments left by a previous run are replayed like any other closed segment.
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (final Path file : files) {
+                    final String name = file.getFileName().toString();
+                    final long generation = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(generation, Files.size(file));
+                }
+            }
+
+            // The replay of the oldest segment resumes from where the previous run left it.
+            readCheckpoint();
+
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.error("Unable to open the UBI spool in [{}]", directory, e);
+        }
+
+        activeGeneration = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        stats.setSpoolSize(sizeInBytes());
+
+        scheduledReplay = threadPool.scheduleWithFixedDelay(this::replay, REPLAY_INTERVAL, threadPool.generic());
+
+    }
+
+    @Override
+    protected synchronized void doStop() {
+        if (scheduledReplay != null) {
+            scheduledReplay.cancel();
+        }
+    }
+
+    @Override
+    protected synchronized void doClose() throws IOException {
+        if (active != null) {
+            // The active segment is replayed on the next start.
+            active.force(false);
+            IOUtils.close(active);
+            active = null;
+        }
+    }
+
+}
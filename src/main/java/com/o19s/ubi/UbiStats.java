@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.telemetry.metric.LongHistogram;
+import org.elasticsearch.telemetry.metric.LongWithAttributes;
+import org.elasticsearch.telemetry.metric.MeterRegistry;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the UBI capture path on this node.
+ * <p>
+ * The counters are exposed through the <code>_ubi/stats</code> API and, together with
+ * histograms of capture time and bulk size and latency, through the telemetry API.
+ */
+public class UbiStats {
+
+    private final LongAdder capturesFailed = new LongAdder();
+    private final MeanMetric captureTime = new MeanMetric();
+    private final LongAdder queryBytes = new LongAdder();
+    private final LongAdder queriesRendered = new LongAdder();
+
+    private final MeanMetric bulkTime = new MeanMetric();
+    private final LongAdder bulkFailures = new LongAdder();
+    private final LongAdder bulkBytes = new LongAdder();
+    private final LongAdder documentsIndexed = new LongAdder();
+    private final LongAdder documentsFailed = new LongAdder();
+
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder spoolDropped = new LongAdder();
+    private volatile long spoolSizeInBytes;
+
+    private volatile LongHistogram captureTimeHistogram = LongHistogram.NOOP;
+    private volatile LongHistogram bulkTimeHistogram = LongHistogram.NOOP;
+    private volatile LongHistogram bulkSizeHistogram = LongHistogram.NOOP;
+
+    /**
+     * Creates empty stats.
+     */
+    public UbiStats() {}
+
+    /**
+     * Registers the UBI metrics with the telemetry API.
+     * @param meterRegistry The {@link MeterRegistry}.
+     * @param sampler The {@link CaptureSampler} whose counters are reported.
+     * @param writer The {@link UbiDocumentWriter} whose counters are reported.
+     * @param impressions The {@link UbiImpressionCache} whose counters are reported.
+     */
+    public void registerMetrics(final MeterRegistry meterRegistry, final CaptureSampler sampler, final UbiDocumentWriter writer,
+                                final UbiImpressionCache impressions) {
+
+        meterRegistry.registerLongAsyncCounter("es.ubi.capture.sampled.total",
+                "Queries captured", "count", () -> new LongWithAttributes(sampler.getSampledCount()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.capture.dropped_by_sampling.total",
+                "Queries not captured because they were not sampled", "count",
+                () -> new LongWithAttributes(sampler.getDroppedBySamplingCount()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.capture.dropped_by_rate_limit.total",
+                "Queries not captured because of the rate limit", "count",
+                () -> new LongWithAttributes(sampler.getDroppedByRateLimitCount()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.capture.failed.total",
+                "Queries that could not be captured", "count", () -> new LongWithAttributes(capturesFailed.sum()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.capture.query.size.total",
+                "Bytes of captured query DSL", "bytes", () -> new LongWithAttributes(queryBytes.sum()));
+        meterRegistry.registerLongGauge("es.ubi.writer.queue.current",
+                "UBI documents waiting to be written", "count", () -> new LongWithAttributes(writer.getQueueSize()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.writer.dropped.total",
+                "UBI documents dropped by the writer", "count", () -> new LongWithAttributes(writer.getDroppedCount()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.writer.indexed.total",
+                "UBI documents indexed", "count", () -> new LongWithAttributes(documentsIndexed.sum()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.writer.failed.total",
+                "UBI documents that failed to index", "count", () -> new LongWithAttributes(documentsFailed.sum()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.spool.spooled.total",
+                "UBI documents spooled to disk", "count", () -> new LongWithAttributes(spooled.sum()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.spool.replayed.total",
+                "Spooled UBI documents written again", "count", () -> new LongWithAttributes(replayed.sum()));
+        meterRegistry.registerLongGauge("es.ubi.spool.size.current",
+                "Size of the UBI spool on disk", "bytes", () -> new LongWithAttributes(spoolSizeInBytes));
+        meterRegistry.registerLongAsyncCounter("es.ubi.impression_cache.hits.total",
+                "Events enriched from the impression cache", "count", () -> new LongWithAttributes(impressions.getHits()));
+        meterRegistry.registerLongAsyncCounter("es.ubi.impression_cache.misses.total",
+                "Events whose query was not in the impression cache", "count", () -> new LongWithAttributes(impressions.getMisses()));
+        meterRegistry.registerLongGauge("es.ubi.impression_cache.size.current",
+                "Estimated memory used by the impression cache", "bytes", () -> new LongWithAttributes(impressions.getSizeInBytes()));
+
+        captureTimeHistogram = meterRegistry.registerLongHistogram("es.ubi.capture.time.histogram",
+                "Time spent capturing a search on the coordinating node", "micros");
+        bulkTimeHistogram = meterRegistry.registerLongHistogram("es.ubi.writer.bulk.time.histogram",
+                "Time taken by a UBI bulk request", "ms");
+        bulkSizeHistogram = meterRegistry.registerLongHistogram("es.ubi.writer.bulk.size.histogram",
+                "Size of a UBI bulk request", "bytes");
+
+    }
+
+    /**
+     * Records the time spent capturing a search.
+     * @param tookInNanos The time in nanoseconds.
+     */
+    public void onCapture(final long tookInNanos) {
+        captureTime.inc(tookInNanos);
+        captureTimeHistogram.record(TimeUnit.NANOSECONDS.toMicros(tookInNanos));
+    }
+
+    /**
+     * Records a search that could not be captured.
+     */
+    public void onCaptureFailure() {
+        capturesFailed.increment();
+    }
+
+    /**
+     * Records the size of a rendered query DSL.
+     * @param sizeInBytes The size in bytes.
+     */
+    public void onQueryRendered(final long sizeInBytes) {
+        queryBytes.add(sizeInBytes);
+        queriesRendered.increment();
+    }
+
+    /**
+     * Gets the mean size of the query DSL rendered so far.
+     * @return The mean size in bytes, or <code>-1</code> if no query was rendered yet.
+     */
+    public long getMeanQuerySizeInBytes() {
+        final long rendered = queriesRendered.sum();
+        return rendered == 0 ? -1 : queryBytes.sum() / rendered;
+    }
+
+    /**
+     * Records a completed bulk request.
+     * @param documents The number of documents in the request.
+     * @param failedDocuments The number of documents that failed to index.
+     * @param sizeInBytes The estimated size of the request.
+     * @param tookInMillis The time the request took.
+     */
+    public void onBulk(final int documents, final int failedDocuments, final long sizeInBytes, final long tookInMillis) {
+        bulkTime.inc(tookInMillis);
+        bulkBytes.add(sizeInBytes);
+        documentsIndexed.add(documents - failedDocuments);
+        documentsFailed.add(failedDocuments);
+        bulkTimeHistogram.record(tookInMillis);
+        bulkSizeHistogram.record(sizeInBytes);
+    }
+
+    /**
+     * Records a bulk request that failed as a whole.
+     * @param documents The number of documents in the request.
+     * @param sizeInBytes The estimated size of the request.
+     * @param tookInMillis The time until the request failed.
+     */
+    public void onBulkFailure(final int documents, final long sizeInBytes, final long tookInMillis) {
+        bulkFailures.increment();
+        onBulk(documents, documents, sizeInBytes, tookInMillis);
+    }
+
+    /**
+     * Records documents appended to the spool.
+     * @param documents The number of documents.
+     */
+    public void onSpooled(final int documents) {
+        spooled.add(documents);
+    }
+
+    /**
+     * Records spooled documents handed back to the writer.
+     * @param documents The number of documents.
+     */
+    public void onReplayed(final int documents) {
+        replayed.add(documents);
+    }
+
+    /**
+     * Records documents that could not be spooled.
+     * @param documents The number of documents.
+     */
+    public void onSpoolDropped(final int documents) {
+        spoolDropped.add(documents);
+    }
+
+    /**
+     * Sets the size of the spool on disk.
+     * @param sizeInBytes The size in bytes.
+     */
+    public void setSpoolSize(final long sizeInBytes) {
+        this.spoolSizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Takes a snapshot of the stats.
+     * @param sampler The {@link CaptureSampler}.
+     * @param writer The {@link UbiDocumentWriter}.
+     * @param impressions The {@link UbiImpressionCache}.
+     * @return A {@link Snapshot}.
+     */
+    public Snapshot snapshot(final CaptureSampler sampler, final UbiDocumentWriter writer, final UbiImpressionCache impressions) {
+        return new Snapshot(
+                sampler.getSampledCount(),
+                sampler.getDroppedBySamplingCount(),
+                sampler.getDroppedByRateLimitCount(),
+                capturesFailed.sum(),
+                captureTime.sum(),
+                queryBytes.sum(),
+                writer.getQueueSize(),
+                writer.getDroppedCount(),
+                bulkTime.count(),
+                bulkFailures.sum(),
+                documentsIndexed.sum(),
+                documentsFailed.sum(),
+                bulkBytes.sum(),
+                bulkTime.sum(),
+                spooled.sum(),
+                replayed.sum(),
+                spoolDropped.sum(),
+                spoolSizeInBytes,
+                impressions.getCount(),
+                impressions.getSizeInBytes(),
+                impressions.getHits(),
+                impressions.getMisses(),
+                impressions.getEvictions()
+        );
+    }
+
+    /**
+     * The stats of a node at a point in time.
+     * @param sampled The number of queries captured.
+     * @param droppedBySampling The number of queries not captured because they were not sampled.
+     * @param droppedByRateLimit The number of queries not captured because of the rate limit.
+     * @param failed The number of queries that could not be captured.
+     * @param captureTimeInNanos The total time spent capturing searches.
+     * @param querySizeInBytes The total size of the captured query DSL.
+     * @param queueSize The number of documents waiting to be written.
+     * @param dropped The number of documents dropped by the writer.
+     * @param bulkRequests The number of bulk requests sent.
+     * @param bulkFailures The number of bulk requests that failed as a whole.
+     * @param indexed The number of documents indexed.
+     * @param indexFailed The number of documents that failed to index.
+     * @param bulkSizeInBytes The total size of the bulk requests.
+     * @param bulkTimeInMillis The total time taken by the bulk requests.
+     * @param spooled The number of documents spooled to disk.
+     * @param replayed The number of spooled documents handed back to the writer.
+     * @param spoolDropped The number of documents that could not be spooled.
+     * @param spoolSizeInBytes The size of the spool on disk.
+     * @param impressionCacheCount The number of queries in the impression cache.
+     * @param impressionCacheSizeInBytes The estimated memory used by the impression cache.
+     * @param impressionCacheHits The number of events whose query was in the impression cache.
+     * @param impressionCacheMisses The number of events whose query was not in the impression cache.
+     * @param impressionCacheEvictions The number of queries evicted from the impression cache.
+     */
+    public record Snapshot(long sampled, long droppedBySampling, long droppedByRateLimit, long failed,
+                           long captureTimeInNanos, long querySizeInBytes, long queueSize, long dropped,
+                           long bulkRequests, long bulkFailures, long indexed, long indexFailed,
+                           long bulkSizeInBytes, long bulkTimeInMillis, long spooled, long replayed,
+                           long spoolDropped, long spoolSizeInBytes, long impressionCacheCount, long impressionCacheSizeInBytes,
+                           long impressionCacheHits, long impressionCacheMisses, long impressionCacheEvictions)
+            implements Writeable, ToXContentFragment {
+
+        /**
+         * Reads a snapshot from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the snapshot cannot be read.
+         */
+        public Snapshot(final StreamInput in) throws IOException {
+            this(in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(),
+                    in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(),
+                    in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(),
+                    in.readVLong(), in.readVLong());
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            out.writeVLong(sampled);
+            out.writeVLong(droppedBySampling);
+            out.writeVLong(droppedByRateLimit);
+            out.writeVLong(failed);
+            out.writeVLong(captureTimeInNanos);
+            out.writeVLong(querySizeInBytes);
+            out.writeVLong(queueSize);
+            out.writeVLong(dropped);
+            out.writeVLong(bulkRequests);
+            out.writeVLong(bulkFailures);
+            out.writeVLong(indexed);
+            out.writeVLong(indexFailed);
+            out.writeVLong(bulkSizeInBytes);
+            out.writeVLong(bulkTimeInMillis);
+            out.writeVLong(spooled);
+            out.writeVLong(replayed);
+            out.writeVLong(spoolDropped);
+            out.writeVLong(spoolSizeInBytes);
+            out.writeVLong(impressionCacheCount);
+            out.writeVLong(impressionCacheSizeInBytes);
+            out.writeVLong(impressionCacheHits);
+            out.writeVLong(impressionCacheMisses);
+            out.writeVLong(impressionCacheEvictions);
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+
+            builder.startObject("capture");
+            builder.field("attempted", sampled + droppedBySampling + droppedByRateLimit);
+            builder.field("sampled", sampled);
+            builder.field("dropped_by_sampling", droppedBySampling);
+            builder.field("dropped_by_rate_limit", droppedByRateLimit);
+            builder.field("failed", failed);
+            builder.field("time_in_nanos", captureTimeInNanos);
+            builder.field("query_size_in_bytes", querySizeInBytes);
+            builder.endObject();
+
+            builder.startObject("writer");
+            builder.field("queue_size", queueSize);
+            builder.field("dropped", dropped);
+            builder.field("bulk_requests", bulkRequests);
+            builder.field("bulk_failures", bulkFailures);
+            builder.field("indexed", indexed);
+            builder.field("failed", indexFailed);
+            builder.field("bulk_size_in_bytes", bulkSizeInBytes);
+            builder.field("bulk_time_in_millis", bulkTimeInMillis);
+            builder.endObject();
+
+            builder.startObject("spool");
+            builder.field("spooled", spooled);
+            builder.field("replayed", replayed);
+            builder.field("dropped", spoolDropped);
+            builder.field("size_in_bytes", spoolSizeInBytes);
+            builder.endObject();
+
+            builder.startObject("impression_cache");
+            builder.field("count", impressionCacheCount);
+            builder.field("size_in_bytes", impressionCacheSizeInBytes);
+            builder.field("hits", impressionCacheHits);
+            builder.field("misses", impressionCacheMisses);
+            builder.field("evictions", impressionCacheEvictions);
+            builder.endObject();
+
+            return builder;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Gets the {@link UbiStats} of the nodes of the cluster.
+ */
+public class UbiStatsAction {
+
+    /**
+     * The action type.
+     */
+    public static final ActionType<Response> INSTANCE = new ActionType<>("cluster:monitor/ubi/stats");
+
+    private UbiStatsAction() {}
+
+    /**
+     * Requests the UBI stats of some nodes.
+     */
+    public static class Request extends BaseNodesRequest<Request> {
+
+        /**
+         * Creates a request.
+         * @param nodeIds The IDs of the nodes, or none for all nodes.
+         */
+        public Request(final String... nodeIds) {
+            super(nodeIds);
+        }
+
+    }
+
+    /**
+     * The request sent to each node.
+     */
+    public static class NodeRequest extends TransportRequest {
+
+        /**
+         * Creates a node request.
+         */
+        public NodeRequest() {}
+
+        /**
+         * Reads a node request from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the request cannot be read.
+         */
+        public NodeRequest(final StreamInput in) throws IOException {
+            super(in);
+        }
+
+    }
+
+    /**
+     * The UBI stats of a node.
+     */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private final UbiStats.Snapshot stats;
+
+        /**
+         * Creates a node response.
+         * @param node The {@link DiscoveryNode}.
+         * @param stats The stats of the node.
+         */
+        public NodeResponse(final DiscoveryNode node, final UbiStats.Snapshot stats) {
+            super(node);
+            this.stats = stats;
+        }
+
+        /**
+         * Reads a node response from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the response cannot be read.
+         */
+        public NodeResponse(final StreamInput in) throws IOException {
+            super(in);
+            this.stats = new UbiStats.Snapshot(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            stats.writeTo(out);
+        }
+
+        /**
+         * Gets the stats of the node.
+         * @return The {@link UbiStats.Snapshot}.
+         */
+        public UbiStats.Snapshot getStats() {
+            return stats;
+        }
+
+    }
+
+    /**
+     * The UBI stats of the nodes.
+     */
+    public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+        /**
+         * Creates a response.
+         * @param clusterName The {@link ClusterName}.
+         * @param nodes The responses of the nodes.
+         * @param failures The nodes that failed.
+         */
+        public Response(final ClusterName clusterName, final List<NodeResponse> nodes, final List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        @Override
+        protected List<NodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+            return in.readCollectionAsList(NodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(final StreamOutput out, final List<NodeResponse> nodes) throws IOException {
+            out.writeCollection(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+
+            builder.startObject("nodes");
+
+            for (final NodeResponse node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                builder.field("name", node.getNode().getName());
+                node.getStats().toXContent(builder, params);
+                builder.endObject();
+            }
+
+            builder.endObject();
+
+            return builder;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.sketch.CountMinSketch;
+import com.o19s.ubi.sketch.HyperLogLog;
+import com.o19s.ubi.sketch.SpaceSaving;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.threadpool.Scheduler;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps streaming sketches of the captured queries of this node, for views of what is being
+ * searched for right now without aggregating over the UBI indexes.
+ * <p>
+ * The sketches cover the current window and the one before it, so they always reflect between
+ * one and two windows of captures. Each window has a Space-Saving summary and a Count-Min sketch
+ * of the normalized user queries and of the returned object IDs, and a HyperLogLog sketch of the
+ * client IDs. All of them are merged across nodes by the trending action, and their memory does
+ * not grow with traffic.
+ * <p>
+ * Each window is split into stripes, one per group of threads, that are locked separately. Search
+ * threads only contend with the threads of their stripe, and a snapshot merges one stripe at a time,
+ * so it never stops every thread that records a query.
+ */
+public class UbiTrending extends AbstractLifecycleComponent {
+
+    private static final int COUNT_MIN_DEPTH = 4;
+    private static final int COUNT_MIN_WIDTH = 2048;
+    private static final int HYPERLOGLOG_PRECISION = 14;
+    private static final int MAX_STRIPES = 8;
+
+    private final ThreadPool threadPool;
+    private final TimeValue window;
+    private final int capacity;
+    private final int stripes;
+
+    private volatile boolean enabled;
+
+    // Each stripe is guarded by itself.
+    private volatile Windows windows;
+
+    private volatile Scheduler.Cancellable scheduledRotation;
+
+    /**
+     * Creates the sketches.
+     * @param threadPool The {@link ThreadPool} that starts new windows.
+     * @param clusterService The {@link ClusterService}.
+     */
+    public UbiTrending(final ThreadPool threadPool, final ClusterService clusterService) {
+        this.threadPool = threadPool;
+        this.window = UbiSettings.TRENDING_WINDOW.get(clusterService.getSettings());
+        this.capacity = UbiSettings.TRENDING_CAPACITY.get(clusterService.getSettings());
+        this.enabled = UbiSettings.TRENDING_ENABLED.get(clusterService.getSettings());
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(UbiSettings.TRENDING_ENABLED, value -> this.enabled = value);
+        // A power of two, so that a thread's stripe is a mask of its hash code.
+        this.stripes = Integer.highestOneBit(Math.min(EsExecutors.allocatedProcessors(clusterService.getSettings()), MAX_STRIPES));
+        this.windows = new Windows(newWindow(), newWindow());
+    }
+
+    /**
+     * Adds a captured query to the sketches.
+     * @param userQuery The user query, which may be <code>null</code>.
+     * @param clientId The client ID, which may be <code>null</code>.
+     * @param objectIds The IDs of the returned objects.
+     */
+    public void record(final String userQuery, final String clientId, final List<String> objectIds) {
+
+        if (!enabled) {
+            return;
+        }
+
+        final String normalizedUserQuery = UbiQueryRollup.normalize(userQuery);
+        final Sketches[] current = windows.current();
+        final Sketches stripe = current[Thread.currentThread().hashCode() & (current.length - 1)];
+
+        synchronized (stripe) {
+            stripe.add(normalizedUserQuery, clientId, objectIds);
+        }
+
+    }
+
+    /**
+     * Gets a copy of the sketches of the current and previous windows merged together.
+     * @return The {@link Sketches}.
+     */
+    public Sketches snapshot() {
+
+        final Windows snapshotWindows = windows;
+        final Sketches snapshot = new Sketches(capacity);
+
+        merge(snapshot, snapshotWindows.current());
+        merge(snapshot, snapshotWindows.previous());
+
+        return snapshot;
+
+    }
+
+    private static void merge(final Sketches snapshot, final Sketches[] window) {
+        for (final Sketches stripe : window) {
+            // Threads that read the windows before a rotation may still be adding to the previous window.
+            synchronized (stripe) {
+                snapshot.merge(stripe);
+            }
+        }
+    }
+
+    /**
+     * Starts a new window, dropping the oldest one.
+     * Package-private so it can be tested.
+     */
+    synchronized void rotate() {
+        windows = new Windows(newWindow(), windows.current());
+    }
+
+    private Sketches[] newWindow() {
+
+        final Sketches[] window = new Sketches[stripes];
+
+        for (int i = 0; i < stripes; i++) {
+            window[i] = new Sketches(capacity);
+        }
+
+        return window;
+
+    }
+
+    @Override
+    protected void doStart() {
+        scheduledRotation = threadPool.scheduleWithFixedDelay(this::rotate, window, threadPool.generic());
+    }
+
+    @Override
+    protected void doStop() {
+        if (scheduledRotation != null) {
+            scheduledRotation.cancel();
+        }
+    }
+
+    @Override
+    protected void doClose() {}
+
+    private record Windows(Sketches[] current, Sketches[] previous) {}
+
+    /**
+     * The sketches of captured queries.
+     */
+    public static class Sketches implements Writeable {
+
+        private final SpaceSaving topQueries;
+        private final CountMinSketch queryCounts;
+        private final SpaceSaving topObjects;
+        private final CountMinSketch objectCounts;
+        private final HyperLogLog clients;
+
+        private Sketches(final int capacity) {
+            this.topQueries = new SpaceSaving(capacity);
+            this.queryCounts = new CountMinSketch(COUNT_MIN_DEPTH, COUNT_MIN_WIDTH);
+            this.topObjects = new SpaceSaving(capacity);
+            this.objectCounts = new CountMinSketch(COUNT_MIN_DEPTH, COUNT_MIN_WIDTH);
+            this.clients = new HyperLogLog(HYPERLOGLOG_PRECISION);
+        }
+
+        /**
+         * Copies sketches.
+         * @param other The sketches to copy.
+         */
+        public Sketches(final Sketches other) {
+            this.topQueries = new SpaceSaving(other.topQueries);
+            this.queryCounts = new CountMinSketch(other.queryCounts);
+            this.topObjects = new SpaceSaving(other.topObjects);
+            this.objectCounts = new CountMinSketch(other.objectCounts);
+            this.clients = new HyperLogLog(other.clients);
+        }
+
+        /**
+         * Reads sketches from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the sketches cannot be read.
+         */
+        public Sketches(final StreamInput in) throws IOException {
+            this.topQueries = new SpaceSaving(in);
+            this.queryCounts = new CountMinSketch(in);
+            this.topObjects = new SpaceSaving(in);
+            this.objectCounts = new CountMinSketch(in);
+            this.clients = new HyperLogLog(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            topQueries.writeTo(out);
+            queryCounts.writeTo(out);
+            topObjects.writeTo(out);
+            objectCounts.writeTo(out);
+            clients.writeTo(out);
+        }
+
+        private void add(final String userQuery, final String clientId, final List<String> objectIds) {
+
+            if (userQuery != null) {
+                topQueries.add(userQuery, 1);
+                queryCounts.add(userQuery, 1);
+            }
+
+            if (clientId != null) {
+                clients.add(clientId);
+            }
+
+            for (final String objectId : objectIds) {
+                if (objectId != null) {
+                    topObjects.add(objectId, 1);
+                    objectCounts.add(objectId, 1);
+                }
+            }
+
+        }
+
+        /**
+         * Merges other sketches into these.
+         * @param other The other sketches.
+         */
+        public void merge(final Sketches other) {
+            topQueries.merge(other.topQueries);
+            queryCounts.merge(other.queryCounts);
+            topObjects.merge(other.topObjects);
+            objectCounts.merge(other.objectCounts);
+            clients.merge(other.clients);
+        }
+
+        /**
+         * Gets the most frequent user queries.
+         * @param size The maximum number of user queries.
+         * @return The user queries and their estimated counts, highest first.
+         */
+        public List<SpaceSaving.Entry> topQueries(final int size) {
+            return top(topQueries, queryCounts, size);
+        }
+
+        /**
+         * Gets the most frequently returned objects.
+         * @param size The maximum number of objects.
+         * @return The object IDs and their estimated counts, highest first.
+         */
+        public List<SpaceSaving.Entry> topObjects(final int size) {
+            return top(topObjects, objectCounts, size);
+        }
+
+        /**
+         * Estimates the number of distinct clients.
+         * @return The estimate.
+         */
+        public long distinctClients() {
+            return clients.cardinality();
+        }
+
+        /**
+         * Writes the top user queries, top objects and distinct clients.
+         * @param builder The {@link XContentBuilder}.
+         * @param size The maximum number of user queries and objects.
+         * @throws IOException Thrown if the sketches cannot be written.
+         */
+        public void toXContent(final XContentBuilder builder, final int size) throws IOException {
+
+            builder.field("distinct_clients", distinctClients());
+
+            builder.startArray("user_queries");
+            for (final SpaceSaving.Entry entry : topQueries(size)) {
+                builder.startObject().field("user_query", entry.key()).field("count", entry.count()).endObject();
+            }
+            builder.endArray();
+
+            builder.startArray("objects");
+            for (final SpaceSaving.Entry entry : topObjects(size)) {
+                builder.startObject().field("object_id", entry.key()).field("count", entry.count()).endObject();
+            }
+            builder.endArray();
+
+        }
+
+        // Both sketches overestimate, so the lower of their counts is the tighter bound.
+        private static List<SpaceSaving.Entry> top(final SpaceSaving summary, final CountMinSketch counts, final int size) {
+
+            final List<SpaceSaving.Entry> entries = new ArrayList<>(summary.size());
+
+            for (final SpaceSaving.Entry entry : summary.top(summary.size())) {
+                final long count = Math.min(entry.count(), counts.estimate(entry.key()));
+                entries.add(new SpaceSaving.Entry(entry.key(), count, Math.max(0, entry.error() - (entry.count() - count))));
+            }
+
+            entries.sort(Comparator.comparingLong(SpaceSaving.Entry::count).reversed());
+
+            return entries.subList(0, Math.min(size, entries.size()));
+
+        }
+
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Gets the {@link UbiTrending} sketches of the nodes of the cluster, merged together.
+ */
+public class UbiTrendingAction {
+
+    /**
+     * The action type.
+     */
+    public static final ActionType<Response> INSTANCE = new ActionType<>("cluster:monitor/ubi/trending");
+
+    /**
+     * The default number of user queries and objects returned.
+     */
+    public static final int DEFAULT_SIZE = 10;
+
+    private UbiTrendingAction() {}
+
+    /**
+     * Requests the trending user queries and objects.
+     */
+    public static class Request extends BaseNodesRequest<Request> {
+
+        private final int size;
+
+        /**
+         * Creates a request.
+         * @param size The maximum number of user queries and objects returned.
+         * @param nodeIds The IDs of the nodes, or none for all nodes.
+         */
+        public Request(final int size, final String... nodeIds) {
+            super(nodeIds);
+            this.size = size;
+        }
+
+        /**
+         * Gets the maximum number of user queries and objects returned.
+         * @return The size.
+         */
+        public int getSize() {
+            return size;
+        }
+
+    }
+
+    /**
+     * The request sent to each node.
+     */
+    public static class NodeRequest extends TransportRequest {
+
+        /**
+         * Creates a node request.
+         */
+        public NodeRequest() {}
+
+        /**
+         * Reads a node request from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the request cannot be read.
+         */
+        public NodeRequest(final StreamInput in) throws IOException {
+            super(in);
+        }
+
+    }
+
+    /**
+     * The trending sketches of a node.
+     */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private final UbiTrending.Sketches sketches;
+
+        /**
+         * Creates a node response.
+         * @param node The {@link DiscoveryNode}.
+         * @param sketches The sketches of the node.
+         */
+        public NodeResponse(final DiscoveryNode node, final UbiTrending.Sketches sketches) {
+            super(node);
+            this.sketches = sketches;
+        }
+
+        /**
+         * Reads a node response from a stream.
+         * @param in The {@link StreamInput}.
+         * @throws IOException Thrown if the response cannot be read.
+         */
+        public NodeResponse(final StreamInput in) throws IOException {
+            super(in);
+            this.sketches = new UbiTrending.Sketches(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            sketches.writeTo(out);
+        }
+
+        /**
+         * Gets the sketches of the node.
+         * @return The {@link UbiTrending.Sketches}.
+         */
+        public UbiTrending.Sketches getSketches() {
+            return sketches;
+        }
+
+    }
+
+    /**
+     * The trending sketches of the nodes.
+     */
+    public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+        private final int size;
+
+        /**
+         * Creates a response.
+         * @param clusterName The {@link ClusterName}.
+         * @param nodes The responses of the nodes.
+         * @param failures The nodes that failed.
+         * @param size The maximum number of user queries and objects returned.
+         */
+        public Response(final ClusterName clusterName, final List<NodeResponse> nodes, final List<FailedNodeException> failures,
+                        final int size) {
+            super(clusterName, nodes, failures);
+            this.size = size;
+        }
+
+        @Override
+        protected List<NodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+            return in.readCollectionAsList(NodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(final StreamOutput out, final List<NodeResponse> nodes) throws IOException {
+            out.writeCollection(nodes);
+        }
+
+        /**
+         * Merges the sketches of the nodes.
+         * @return The merged {@link UbiTrending.Sketches}, or <code>null</code> if no node responded.
+         */
+        public UbiTrending.Sketches getSketches() {
+
+            UbiTrending.Sketches merged = null;
+
+            for (final NodeResponse node : getNodes()) {
+                if (merged == null) {
+                    merged = new UbiTrending.Sketches(node.getSketches());
+                } else {
+                    merged.merge(node.getSketches());
+                }
+            }
+
+            return merged;
+
+        }
+
+        @Override
+        public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+
+            final UbiTrending.Sketches sketches = getSketches();
+
+            if (sketches != null) {
+                sketches.toXContent(builder, size);
+            }
+
+            return builder;
+
+        }
+
+    }
+
+}
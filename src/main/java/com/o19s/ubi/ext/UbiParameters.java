@@ -17,6 +17,7 @@
 package com.o19s.ubi.ext;
 
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.UUIDs;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Writeable;
@@ -27,8 +28,6 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.UUID;
 
 /**
  * The UBI parameters available in the ext.
@@ -42,6 +41,14 @@ public class UbiParameters implements Writeable, ToXContentObject {
     private static final ParseField OBJECT_ID_FIELD = new ParseField("object_id_field");
     private static final ParseField QUERY_ATTRIBUTES = new ParseField("query_attributes");
 
+    // The leading byte of the query attributes on the wire. Plugins cannot define transport versions, so the format is
+    // marked in-band: earlier versions of the plugin wrote a generic value, whose leading byte is its type, and the
+    // typed format uses a byte that is not a generic value type.
+    private static final byte NULL_QUERY_ATTRIBUTES = -1;
+    private static final byte GENERIC_LINKED_MAP = 9;
+    private static final byte GENERIC_MAP = 10;
+    private static final byte TYPED_QUERY_ATTRIBUTES = 100;
+
     static {
         PARSER = new ObjectParser<>(UbiParametersExtBuilder.UBI_PARAMETER_NAME, UbiParameters::new);
         PARSER.declareString(UbiParameters::setQueryId, QUERY_ID);
@@ -58,24 +65,18 @@ public class UbiParameters implements Writeable, ToXContentObject {
      */
     public static UbiParameters getUbiParameters(final SearchRequest request) {
 
-        UbiParametersExtBuilder builder = null;
+        if (request.source() == null || request.source().ext() == null) {
+            return null;
+        }
 
-        if (request.source() != null && request.source().ext() != null && !request.source().ext().isEmpty()) {
-            final Optional<SearchExtBuilder> b = request.source()
-                    .ext()
-                    .stream()
-                    .filter(bldr -> UbiParametersExtBuilder.UBI_PARAMETER_NAME.equals(bldr.getWriteableName()))
-                    .findFirst();
-            if (b.isPresent()) {
-                builder = (UbiParametersExtBuilder) b.get();
+        // A plain loop, as this runs for every search the filter sees.
+        for (final SearchExtBuilder builder : request.source().ext()) {
+            if (UbiParametersExtBuilder.UBI_PARAMETER_NAME.equals(builder.getWriteableName())) {
+                return ((UbiParametersExtBuilder) builder).getParams();
             }
         }
 
-        if (builder != null) {
-            return builder.getParams();
-        } else {
-            return null;
-        }
+        return null;
 
     }
 
@@ -95,13 +96,36 @@ public class UbiParameters implements Writeable, ToXContentObject {
      * @param input The {@link StreamInput} to read parameters from.
      * @throws IOException Thrown if the parameters cannot be read.
      */
-    @SuppressWarnings("unchecked")
     public UbiParameters(StreamInput input) throws IOException {
         this.queryId = input.readString();
         this.userQuery = input.readOptionalString();
         this.clientId = input.readOptionalString();
         this.objectIdField = input.readOptionalString();
-        this.queryAttributes = (Map<String, String>) input.readGenericValue();
+        this.queryAttributes = readQueryAttributes(input);
+    }
+
+    private static Map<String, String> readQueryAttributes(final StreamInput input) throws IOException {
+
+        final byte format = input.readByte();
+
+        switch (format) {
+            case NULL_QUERY_ATTRIBUTES:
+                return null;
+            case TYPED_QUERY_ATTRIBUTES:
+                return input.readMap(StreamInput::readString);
+            case GENERIC_LINKED_MAP:
+            case GENERIC_MAP:
+                // A generic map whose type byte was read above: its size, then each key and value as generic values.
+                final int size = input.readVInt();
+                final Map<String, String> queryAttributes = new HashMap<>(size);
+                for (int i = 0; i < size; i++) {
+                    queryAttributes.put((String) input.readGenericValue(), (String) input.readGenericValue());
+                }
+                return queryAttributes;
+            default:
+                throw new IOException("Unknown format [" + format + "] of UBI query attributes");
+        }
+
     }
 
     /**
@@ -136,7 +160,13 @@ public class UbiParameters implements Writeable, ToXContentObject {
         out.writeOptionalString(userQuery);
         out.writeOptionalString(clientId);
         out.writeOptionalString(objectIdField);
-        out.writeGenericValue(queryAttributes);
+        if (queryAttributes == null) {
+            out.writeByte(NULL_QUERY_ATTRIBUTES);
+        } else {
+            // Each value is written as a string, without the type byte of a generic value.
+            out.writeByte(TYPED_QUERY_ATTRIBUTES);
+            out.writeMap(queryAttributes, StreamOutput::writeString);
+        }
     }
 
     /**
@@ -173,15 +203,23 @@ public class UbiParameters implements Writeable, ToXContentObject {
 
     /**
      * Get the query ID.
-     * @return The query ID, or a random UUID if the query ID is <code>null</code>.
+     * @return The query ID, or a new time-based ID if the query ID is <code>null</code>.
      */
     public String getQueryId() {
         if(queryId == null) {
-            queryId = UUID.randomUUID().toString();
+            queryId = UUIDs.base64UUID();
         }
         return queryId;
     }
 
+    /**
+     * Gets whether a query ID has been set.
+     * @return <code>true</code> if the query ID is set.
+     */
+    public boolean hasQueryId() {
+        return queryId != null;
+    }
+
     /**
      * Set the query ID.
      * @param queryId The query ID.
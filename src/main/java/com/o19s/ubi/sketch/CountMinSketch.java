@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi.sketch;
+
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+
+/**
+ * A Count-Min sketch, which estimates how often a key was added in a fixed amount of memory.
+ * An estimate is never lower than the true count. It is higher by at most a small fraction
+ * of the total count with high probability.
+ * <p>
+ * The sketch is not thread-safe.
+ */
+public class CountMinSketch implements Writeable {
+
+    private final int depth;
+    private final int width;
+    private final long[] counts;
+
+    /**
+     * Creates an empty sketch.
+     * @param depth The number of rows, each with its own hash.
+     * @param width The number of counters in each row.
+     */
+    public CountMinSketch(final int depth, final int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counts = new long[depth * width];
+    }
+
+    /**
+     * Copies a sketch.
+     * @param other The sketch to copy.
+     */
+    public CountMinSketch(final CountMinSketch other) {
+        this.depth = other.depth;
+        this.width = other.width;
+        this.counts = other.counts.clone();
+    }
+
+    /**
+     * Reads a sketch from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the sketch cannot be read.
+     */
+    public CountMinSketch(final StreamInput in) throws IOException {
+        this.depth = in.readVInt();
+        this.width = in.readVInt();
+        this.counts = in.readVLongArray();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(depth);
+        out.writeVInt(width);
+        out.writeVLongArray(counts);
+    }
+
+    /**
+     * Adds a key.
+     * @param key The key.
+     * @param count How many times the key is added.
+     */
+    public void add(final String key, final long count) {
+
+        final MurmurHash3.Hash128 hash = SketchHash.hash(key);
+
+        for (int row = 0; row < depth; row++) {
+            counts[index(hash, row)] += count;
+        }
+
+    }
+
+    /**
+     * Estimates how often a key was added.
+     * @param key The key.
+     * @return The estimate, which is never lower than the true count.
+     */
+    public long estimate(final String key) {
+
+        final MurmurHash3.Hash128 hash = SketchHash.hash(key);
+        long estimate = Long.MAX_VALUE;
+
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts[index(hash, row)]);
+        }
+
+        return estimate;
+
+    }
+
+    /**
+     * Adds the counts of another sketch of the same size to this sketch.
+     * @param other The other sketch.
+     */
+    public void merge(final CountMinSketch other) {
+
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Cannot merge a Count-Min sketch of [" + other.depth + "x" + other.width
+                    + "] into one of [" + depth + "x" + width + "]");
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+
+    }
+
+    private int index(final MurmurHash3.Hash128 hash, final int row) {
+        // Each row's hash is derived from the two halves of one 128 bit hash.
+        final long rowHash = hash.h1 + row * hash.h2;
+        return row * width + (int) Long.remainderUnsigned(rowHash, width);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi.sketch;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct keys in a fixed amount of memory.
+ * With a precision of <code>p</code> it uses <code>2^p</code> one byte registers and its
+ * standard error is about <code>1.04 / sqrt(2^p)</code>.
+ * <p>
+ * The sketch is not thread-safe.
+ */
+public class HyperLogLog implements Writeable {
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Creates an empty sketch.
+     * @param precision The number of hash bits that pick a register, between 4 and 18.
+     */
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 18 but was [" + precision + "]");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Copies a sketch.
+     * @param other The sketch to copy.
+     */
+    public HyperLogLog(final HyperLogLog other) {
+        this.precision = other.precision;
+        this.registers = other.registers.clone();
+    }
+
+    /**
+     * Reads a sketch from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the sketch cannot be read.
+     */
+    public HyperLogLog(final StreamInput in) throws IOException {
+        this.precision = in.readVInt();
+        this.registers = in.readByteArray();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(precision);
+        out.writeByteArray(registers);
+    }
+
+    /**
+     * Adds a key.
+     * @param key The key.
+     */
+    public void add(final String key) {
+
+        final long hash = SketchHash.hash(key).h1;
+        final int register = (int) (hash >>> (Long.SIZE - precision));
+
+        // The position of the first set bit after the register bits, 1 based.
+        final int rank = Math.min(Long.numberOfLeadingZeros(hash << precision), Long.SIZE - precision) + 1;
+
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+
+    }
+
+    /**
+     * Estimates the number of distinct keys added.
+     * @return The estimate.
+     */
+    public long cardinality() {
+
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+
+        for (final byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        final double alpha = 0.7213 / (1 + 1.079 / m);
+        final double estimate = alpha * m * m / sum;
+
+        // Linear counting is more accurate while many registers are still empty.
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+
+        return Math.round(estimate);
+
+    }
+
+    /**
+     * Merges another sketch of the same precision into this one.
+     * @param other The other sketch.
+     */
+    public void merge(final HyperLogLog other) {
+
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge a HyperLogLog sketch of precision [" + other.precision
+                    + "] into one of precision [" + precision + "]");
+        }
+
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+        }
+
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi.sketch;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.hash.MurmurHash3;
+
+/**
+ * Hashes the keys of the sketches. Every node hashes the same way, so that sketches can be merged.
+ */
+final class SketchHash {
+
+    private SketchHash() {}
+
+    /**
+     * Hashes a key.
+     * @param key The key.
+     * @return The 128 bit murmur3 hash of the UTF-8 bytes of the key.
+     */
+    static MurmurHash3.Hash128 hash(final String key) {
+        final BytesRef bytes = new BytesRef(key);
+        return MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, 0, new MurmurHash3.Hash128());
+    }
+
+}
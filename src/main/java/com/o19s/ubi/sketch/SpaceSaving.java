@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi.sketch;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A Space-Saving summary, which keeps the most frequent keys in a fixed number of counters.
+ * When every counter is taken, a new key replaces the key with the lowest count and inherits
+ * that count as its error. Any key added more often than the total count divided by the
+ * capacity is guaranteed to be in the summary.
+ * <p>
+ * The summary is not thread-safe.
+ */
+public class SpaceSaving implements Writeable {
+
+    /**
+     * A key in the summary.
+     * @param key The key.
+     * @param count How often the key was added, overestimated by at most its error.
+     * @param error How much the count may be overestimated.
+     */
+    public record Entry(String key, long count, long error) {}
+
+    private static final Comparator<Counter> BY_COUNT = Comparator.<Counter>comparingLong(counter -> counter.count)
+            .thenComparingLong(counter -> counter.sequence);
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+
+    private long sequence;
+
+    /**
+     * Creates an empty summary.
+     * @param capacity The number of keys the summary keeps.
+     */
+    public SpaceSaving(final int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Copies a summary.
+     * @param other The summary to copy.
+     */
+    public SpaceSaving(final SpaceSaving other) {
+        this(other.capacity);
+        for (final Counter counter : other.byCount) {
+            put(counter.key, counter.count, counter.error);
+        }
+    }
+
+    /**
+     * Reads a summary from a stream.
+     * @param in The {@link StreamInput}.
+     * @throws IOException Thrown if the summary cannot be read.
+     */
+    public SpaceSaving(final StreamInput in) throws IOException {
+        this(in.readVInt());
+        final int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            put(in.readString(), in.readVLong(), in.readVLong());
+        }
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVInt(capacity);
+        out.writeVInt(byCount.size());
+        for (final Counter counter : byCount) {
+            out.writeString(counter.key);
+            out.writeVLong(counter.count);
+            out.writeVLong(counter.error);
+        }
+    }
+
+    /**
+     * Adds a key.
+     * @param key The key.
+     * @param count How many times the key is added.
+     */
+    public void add(final String key, final long count) {
+
+        final Counter counter = counters.get(key);
+
+        if (counter != null) {
+            byCount.remove(counter);
+            counter.count += count;
+            byCount.add(counter);
+        } else if (counters.size() < capacity) {
+            put(key, count, 0);
+        } else {
+            final Counter min = byCount.pollFirst();
+            counters.remove(min.key);
+            put(key, min.count + count, min.count);
+        }
+
+    }
+
+    /**
+     * Merges another summary into this one. A key missing from a full summary may have been
+     * added up to that summary's lowest count times, which is added to its count and error.
+     * @param other The other summary.
+     */
+    public void merge(final SpaceSaving other) {
+
+        final long minCount = minCount();
+        final long otherMinCount = other.minCount();
+
+        final Set<String> keys = new HashSet<>(counters.keySet());
+        keys.addAll(other.counters.keySet());
+
+        final List<Counter> merged = new ArrayList<>(keys.size());
+
+        for (final String key : keys) {
+
+            final Counter counter = counters.get(key);
+            final Counter otherCounter = other.counters.get(key);
+
+            final long count = (counter == null ? minCount : counter.count) + (otherCounter == null ? otherMinCount : otherCounter.count);
+            final long error = (counter == null ? minCount : counter.error) + (otherCounter == null ? otherMinCount : otherCounter.error);
+
+            merged.add(new Counter(key, count, error, 0));
+
+        }
+
+        merged.sort(BY_COUNT.reversed());
+
+        counters.clear();
+        byCount.clear();
+
+        for (int i = 0; i < Math.min(capacity, merged.size()); i++) {
+            put(merged.get(i).key, merged.get(i).count, merged.get(i).error);
+        }
+
+    }
+
+    /**
+     * Gets the keys with the highest counts.
+     * @param size The maximum number of keys.
+     * @return The keys, highest count first.
+     */
+    public List<Entry> top(final int size) {
+
+        final List<Entry> top = new ArrayList<>(Math.min(size, byCount.size()));
+
+        for (final Counter counter : byCount.descendingSet()) {
+            if (top.size() == size) {
+                break;
+            }
+            top.add(new Entry(counter.key, counter.count, counter.error));
+        }
+
+        return top;
+
+    }
+
+    /**
+     * Gets the number of keys in the summary.
+     * @return The number of keys.
+     */
+    public int size() {
+        return counters.size();
+    }
+
+    // A key that is not in a full summary may have been added this many times.
+    private long minCount() {
+        return counters.size() < capacity || byCount.isEmpty() ? 0 : byCount.first().count;
+    }
+
+    private void put(final String key, final long count, final long error) {
+        final Counter counter = new Counter(key, count, error, sequence++);
+        counters.put(key, counter);
+        byCount.add(counter);
+    }
+
+    private static final class Counter {
+
+        private final String key;
+        private final long error;
+        // Breaks ties between equal counts, so that the oldest key is replaced first.
+        private final long sequence;
+        private long count;
+
+        private Counter(final String key, final long count, final long error, final long sequence) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+            this.sequence = sequence;
+        }
+
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+public class CaptureSamplerTests extends ESTestCase {
+
+    public void testCapturesEverythingByDefault() {
+
+        final CaptureSampler sampler = sampler(Settings.EMPTY);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sampler.shouldCapture(parameters("query-" + i, "client")));
+        }
+
+        assertEquals(100, sampler.getSampledCount());
+        assertEquals(0, sampler.getDroppedBySamplingCount());
+
+    }
+
+    public void testSamplesNothingAtZeroRate() {
+
+        final CaptureSampler sampler = sampler(Settings.builder().put(UbiSettings.CAPTURE_SAMPLE_RATE.getKey(), 0.0).build());
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(sampler.shouldCapture(parameters("query-" + i, "client")));
+        }
+
+        assertEquals(100, sampler.getDroppedBySamplingCount());
+
+    }
+
+    public void testIndexSampleRateLowersTheClusterRate() {
+
+        final CaptureSampler sampler = sampler(Settings.EMPTY);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(sampler.shouldCapture(parameters("query-" + i, "client"), 0.0));
+            assertTrue(sampler.shouldCapture(parameters("query-" + i, "client"), 1.0));
+        }
+
+        assertEquals(100, sampler.getDroppedBySamplingCount());
+
+    }
+
+    public void testSamplingByClientIdKeepsSessionsTogether() {
+
+        final CaptureSampler sampler = sampler(Settings.builder()
+                .put(UbiSettings.CAPTURE_SAMPLE_RATE.getKey(), 0.5)
+                .put(UbiSettings.CAPTURE_SAMPLE_KEY.getKey(), UbiSettings.SampleKey.CLIENT_ID)
+                .build());
+
+        for (int client = 0; client < 20; client++) {
+            final boolean first = sampler.shouldCapture(parameters("query-0", "client-" + client));
+            for (int query = 1; query < 10; query++) {
+                assertEquals(first, sampler.shouldCapture(parameters("query-" + query, "client-" + client)));
+            }
+        }
+
+    }
+
+    public void testRateLimit() {
+
+        final CaptureSampler sampler = sampler(Settings.builder().put(UbiSettings.CAPTURE_MAX_PER_SECOND.getKey(), 5).build());
+
+        int captured = 0;
+        for (int i = 0; i < 20; i++) {
+            if (sampler.shouldCapture(parameters("query-" + i, "client"))) {
+                captured++;
+            }
+        }
+
+        // The bucket starts full and refills slowly compared to this loop.
+        assertTrue(captured >= 5 && captured < 20);
+        assertEquals(20 - captured, sampler.getDroppedByRateLimitCount());
+
+    }
+
+    public void testTokenBucketRefills() {
+
+        final CaptureSampler.TokenBucket bucket = new CaptureSampler.TokenBucket(2);
+        final long start = System.nanoTime();
+
+        assertTrue(bucket.tryAcquire(start));
+        assertTrue(bucket.tryAcquire(start));
+        assertFalse(bucket.tryAcquire(start));
+        assertTrue(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(600)));
+        assertFalse(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(600)));
+
+    }
+
+    private static CaptureSampler sampler(final Settings settings) {
+        final ClusterSettings clusterSettings = new ClusterSettings(settings, new HashSet<>(UbiSettings.getSettings()));
+        return new CaptureSampler(settings, clusterSettings);
+    }
+
+    private static UbiParameters parameters(final String queryId, final String clientId) {
+        return new UbiParameters(queryId, "user query", clientId, null, Collections.emptyMap());
+    }
+
+}
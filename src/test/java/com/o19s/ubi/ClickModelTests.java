@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ClickModelTests extends ESTestCase {
+
+    public void testCoecCorrectsForPosition() {
+
+        final ClickModel clickModel = new ClickModel(100);
+
+        // Users click the first result half the time and the second one time in ten, whatever they are.
+        for (int i = 0; i < 1000; i++) {
+
+            final List<String> objectIds = i % 2 == 0 ? List.of("a", "b") : List.of("b", "a");
+            final Set<String> clicked = i % 20 < 2 ? Set.of(objectIds.get(0), objectIds.get(1))
+                    : i % 20 < 10 ? Set.of(objectIds.get(0)) : Set.of();
+
+            clickModel.recordPriors(objectIds, 0, clicked);
+            clickModel.recordPairs("shoes", objectIds, 0, clicked);
+
+        }
+
+        assertEquals(0.5, clickModel.prior(0), 0.01);
+        assertEquals(0.1, clickModel.prior(1), 0.01);
+
+        // Both objects were shown as often at each position, so neither is better than its positions explain.
+        for (final ClickModel.Judgement judgement : clickModel.judgements()) {
+            assertEquals(1000, judgement.impressions());
+            assertEquals(1.0, judgement.coec(), 0.05);
+        }
+
+    }
+
+    public void testCoecRewardsClicksBelowTheFold() {
+
+        final ClickModel clickModel = new ClickModel(100);
+
+        for (int i = 0; i < 100; i++) {
+            clickModel.recordPriors(List.of("a", "b"), 0, i % 2 == 0 ? Set.of("a") : Set.of());
+            clickModel.recordPairs("shoes", List.of("a", "b"), 0, i % 4 == 0 ? Set.of("b") : Set.of());
+        }
+
+        final Map<String, ClickModel.Judgement> judgements = Map.of(
+                clickModel.judgements().get(0).objectId(), clickModel.judgements().get(0),
+                clickModel.judgements().get(1).objectId(), clickModel.judgements().get(1));
+
+        // "b" is clicked less than "a" overall but far more than its second position explains.
+        assertEquals(0, judgements.get("a").clicks());
+        assertEquals(25, judgements.get("b").clicks());
+        assertEquals(0.25, judgements.get("b").ctr(), 0.0);
+        assertTrue(judgements.get("b").coec() > 10);
+
+    }
+
+    public void testMaxPairs() {
+
+        final ClickModel clickModel = new ClickModel(2);
+
+        clickModel.recordPairs("shoes", List.of("a", "b"), 0, Set.of());
+        clickModel.recordPairs("shoes", List.of("a", "b"), 0, Set.of());
+
+        final IllegalStateException e = expectThrows(IllegalStateException.class,
+                () -> clickModel.recordPairs("boots", List.of("a"), 0, Set.of()));
+        assertTrue(e.getMessage().contains("[partitions]"));
+
+        clickModel.clearPairs();
+        clickModel.recordPairs("boots", List.of("a"), 0, Set.of());
+        assertEquals(1, clickModel.judgements().size());
+
+    }
+
+    public void testCapturedQueryFromSource() throws Exception {
+
+        final byte[] packed = ObjectIdCodec.encode(List.of("10", "12"));
+
+        final UbiJudgementsTaskExecutor.CapturedQuery query = UbiJudgementsTaskExecutor.CapturedQuery.fromSource(Map.of(
+                "query_id", "q1",
+                "user_query", "  Red  Shoes ",
+                "query_response_object_ids_packed", Base64.getEncoder().encodeToString(packed),
+                "query_response_offset", 10));
+
+        assertEquals(new UbiJudgementsTaskExecutor.CapturedQuery("q1", "red shoes", List.of("10", "12"), 10), query);
+        assertNull(UbiJudgementsTaskExecutor.CapturedQuery.fromSource(Map.of("query_id", "q2")));
+
+    }
+
+    public void testEveryPageOfAQueryIsCounted() {
+
+        final ClickModel clickModel = new ClickModel(100);
+        final List<UbiJudgementsTaskExecutor.CapturedQuery> pages = List.of(
+                new UbiJudgementsTaskExecutor.CapturedQuery("query-1", "shoes", List.of("a", "b"), 0),
+                new UbiJudgementsTaskExecutor.CapturedQuery("query-1", "shoes", List.of("c", "d"), 2));
+
+        UbiJudgementsTaskExecutor.record(clickModel, pages, Map.of("query-1", Set.of("a", "d")), 0, 1);
+
+        final List<ClickModel.Judgement> judgements = clickModel.judgements();
+        assertEquals(4, judgements.size());
+        assertEquals(2, judgements.stream().mapToLong(ClickModel.Judgement::clicks).sum());
+        assertTrue(judgements.stream().allMatch(judgement -> judgement.impressions() == 1));
+
+    }
+
+    public void testParamsRoundTrip() throws Exception {
+
+        final UbiJudgementsTaskParams params = new UbiJudgementsTaskParams(100, 4, 2, 1000, "add_to_cart");
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+        params.writeTo(out);
+
+        assertEquals(params, new UbiJudgementsTaskParams(out.bytes().streamInput()));
+        expectThrows(IllegalArgumentException.class, () -> new UbiJudgementsTaskParams(0, null, null, null, null));
+
+    }
+
+}
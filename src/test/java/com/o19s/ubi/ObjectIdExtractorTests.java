@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.test.ESTestCase;
+
+public class ObjectIdExtractorTests extends ESTestCase {
+
+    public void testExtractTopLevelField() {
+        final BytesArray source = new BytesArray("{\"name\":\"TV\",\"product_id\":\"P-1\",\"price\":10}");
+        assertEquals("P-1", ObjectIdExtractor.extractFromSource(source, "product_id"));
+    }
+
+    public void testExtractNestedField() {
+        final BytesArray source = new BytesArray("{\"name\":\"TV\",\"sku\":{\"id\":\"S-1\",\"color\":\"black\"}}");
+        assertEquals("S-1", ObjectIdExtractor.extractFromSource(source, "sku.id"));
+    }
+
+    public void testExtractNumericField() {
+        final BytesArray source = new BytesArray("{\"product_id\":42}");
+        assertEquals("42", ObjectIdExtractor.extractFromSource(source, "product_id"));
+    }
+
+    public void testExtractFirstValueOfArray() {
+        final BytesArray source = new BytesArray("{\"product_id\":[\"P-1\",\"P-2\"]}");
+        assertEquals("P-1", ObjectIdExtractor.extractFromSource(source, "product_id"));
+    }
+
+    public void testExtractMissingField() {
+        final BytesArray source = new BytesArray("{\"name\":\"TV\"}");
+        assertNull(ObjectIdExtractor.extractFromSource(source, "product_id"));
+        assertNull(ObjectIdExtractor.extractFromSource(null, "product_id"));
+    }
+
+}
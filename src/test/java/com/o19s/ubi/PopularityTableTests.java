@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.test.ESTestCase;
+
+public class PopularityTableTests extends ESTestCase {
+
+    public void testAddAndGrow() {
+
+        final PopularityTable table = PopularityTable.EMPTY.copy();
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(table.add(PopularityTable.key("object-" + i), i, 2 * i, 1000));
+        }
+        assertTrue(table.add(PopularityTable.key("object-7"), 1, 1, 1000));
+
+        assertEquals(1000, table.size());
+        assertEquals(8, table.clicks(PopularityTable.key("object-7")));
+        assertEquals(15, table.impressions(PopularityTable.key("object-7")));
+        assertEquals(999, table.clicks(PopularityTable.key("object-999")));
+        assertEquals(0, table.clicks(PopularityTable.key("object-1000")));
+
+        // A full table still counts the objects it has, but no new ones.
+        assertFalse(table.add(PopularityTable.key("object-1000"), 1, 1, 1000));
+        assertTrue(table.add(PopularityTable.key("object-1"), 1, 0, 1000));
+        assertEquals(2, table.clicks(PopularityTable.key("object-1")));
+
+    }
+
+    public void testCopyIsIsolated() {
+
+        final PopularityTable table = PopularityTable.EMPTY.copy();
+        table.add(PopularityTable.key("a"), 1, 1, 10);
+
+        final PopularityTable copy = table.copy();
+        copy.add(PopularityTable.key("a"), 1, 1, 10);
+        copy.add(PopularityTable.key("b"), 1, 1, 10);
+
+        assertEquals(1, table.clicks(PopularityTable.key("a")));
+        assertEquals(0, table.clicks(PopularityTable.key("b")));
+        assertEquals(2, copy.clicks(PopularityTable.key("a")));
+        assertEquals(0, PopularityTable.EMPTY.size());
+
+    }
+
+    public void testKeysOfBytesAndStringsMatch() {
+
+        final BytesRef bytes = new BytesRef("xxsku-42");
+
+        assertEquals(PopularityTable.key("sku-42"), PopularityTable.key(bytes.bytes, 2, 6, new MurmurHash3.Hash128()));
+
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import com.o19s.ubi.ext.UbiParametersExtBuilder;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class QueryDocumentTests extends ESTestCase {
+
+    public void testFullQueryIsCompactWithoutExt() throws IOException {
+
+        final IndexRequest indexRequest = write(UbiSettings.QueryCaptureMode.FULL, hash -> true).get(0);
+
+        assertEquals(QueryDocument.UBI_QUERIES_INDEX, indexRequest.index());
+        assertEquals("query-response-id", indexRequest.id());
+        assertEquals(DocWriteRequest.OpType.CREATE, indexRequest.opType());
+
+        final Object query = indexRequest.sourceAsMap().get("query");
+        assertEquals("{\"query\":{\"term\":{\"color\":{\"value\":\"red\"}}}}", query);
+
+    }
+
+    public void testNoQuery() throws IOException {
+        final IndexRequest indexRequest = write(UbiSettings.QueryCaptureMode.NONE, hash -> true).get(0);
+        assertFalse(indexRequest.sourceAsMap().containsKey("query"));
+    }
+
+    public void testHashedQueryIsWrittenOnce() throws IOException {
+
+        final Set<String> written = new HashSet<>();
+        final Predicate<String> isNewQueryHash = hash -> written.contains(hash) == false;
+
+        final QueryDocument firstDocument = document(UbiSettings.QueryCaptureMode.HASH, UbiSettings.ObjectIdStorage.KEYWORDS,
+                List.of("1", "2"), isNewQueryHash, written::add, new UbiStats());
+        final List<IndexRequest> first = requests(firstDocument);
+
+        // Until the first write succeeds, the query DSL is sent again.
+        assertEquals(2, write(UbiSettings.QueryCaptureMode.HASH, isNewQueryHash).size());
+
+        firstDocument.onWritten();
+        final List<IndexRequest> second = write(UbiSettings.QueryCaptureMode.HASH, isNewQueryHash);
+
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+
+        final String queryHash = (String) first.get(0).sourceAsMap().get("query_hash");
+        assertNotNull(queryHash);
+        assertFalse(first.get(0).sourceAsMap().containsKey("query"));
+        assertEquals(queryHash, second.get(0).sourceAsMap().get("query_hash"));
+
+        assertEquals(QueryDocument.UBI_QUERY_DSL_INDEX, first.get(1).index());
+        assertEquals(queryHash, first.get(1).id());
+        assertNotNull(first.get(1).sourceAsMap().get("query"));
+
+    }
+
+    public void testEstimatedSizeIncludesQuery() throws IOException {
+
+        final UbiStats stats = new UbiStats();
+        final long withoutQuery = document(UbiSettings.QueryCaptureMode.NONE, UbiSettings.ObjectIdStorage.KEYWORDS,
+                List.of("1", "2"), hash -> true, hash -> {}, stats).estimatedSizeInBytes();
+
+        // Before any query is rendered, the size of a truncated query is assumed.
+        final QueryDocument first = document(UbiSettings.QueryCaptureMode.FULL, UbiSettings.ObjectIdStorage.KEYWORDS,
+                List.of("1", "2"), hash -> true, hash -> {}, stats);
+        assertEquals(withoutQuery + 1024, first.estimatedSizeInBytes());
+
+        final int querySize = requests(first).get(0).sourceAsMap().get("query").toString().length();
+        final QueryDocument second = document(UbiSettings.QueryCaptureMode.FULL, UbiSettings.ObjectIdStorage.KEYWORDS,
+                List.of("1", "2"), hash -> true, hash -> {}, stats);
+        assertEquals(withoutQuery + querySize, second.estimatedSizeInBytes());
+
+    }
+
+    public void testTruncatedLengthDoesNotSplitCharacters() {
+
+        // "\u00e9" is two bytes in UTF-8.
+        final BytesArray utf8 = new BytesArray("a\u00e9".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(3, QueryDocument.truncatedLength(utf8, 10));
+        assertEquals(3, QueryDocument.truncatedLength(utf8, 3));
+        assertEquals(1, QueryDocument.truncatedLength(utf8, 2));
+        assertEquals(1, QueryDocument.truncatedLength(utf8, 1));
+
+    }
+
+    public void testPackedObjectIds() throws IOException {
+
+        final Map<String, Object> packed = write(UbiSettings.QueryCaptureMode.NONE, UbiSettings.ObjectIdStorage.PACKED,
+                List.of("1042", "17", "1043"), hash -> true).get(0).sourceAsMap();
+
+        assertFalse(packed.containsKey("query_response_object_ids"));
+        final byte[] bytes = Base64.getDecoder().decode((String) packed.get("query_response_object_ids_packed"));
+        assertEquals(List.of("1042", "17", "1043"), ObjectIdCodec.decode(bytes));
+
+        // IDs that are not numbers are stored as keywords.
+        final Map<String, Object> keywords = write(UbiSettings.QueryCaptureMode.NONE, UbiSettings.ObjectIdStorage.PACKED,
+                List.of("1042", "sku-17"), hash -> true).get(0).sourceAsMap();
+
+        assertEquals(List.of("1042", "sku-17"), keywords.get("query_response_object_ids"));
+        assertFalse(keywords.containsKey("query_response_object_ids_packed"));
+
+    }
+
+    public void testHitMetadata() throws IOException {
+
+        final QueryResponse queryResponse = new QueryResponse("query-id", "query-response-id", List.of("a", "b"), 10,
+                new float[] { 2.5f, 1.0f }, new int[] { 3, 0 }, new String[] { "products" }, new int[] { 0, 0 });
+        final QueryRequest queryRequest = new QueryRequest("query-id", "red", "client-id", null, Collections.emptyMap(), queryResponse);
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        new QueryDocument(queryRequest, UbiSettings.QueryCaptureMode.NONE, 1024, UbiSettings.ObjectIdStorage.KEYWORDS,
+                hash -> true, hash -> {}, false, new UbiStats()).addTo(bulkRequest);
+
+        final Map<String, Object> source = ((IndexRequest) bulkRequest.requests().get(0)).sourceAsMap();
+        assertEquals(10, source.get("query_response_offset"));
+        assertEquals(List.of(2.5, 1.0), source.get("query_response_hit_scores"));
+        assertEquals(List.of(3, 0), source.get("query_response_hit_shards"));
+        assertEquals(List.of("products"), source.get("query_response_indexes"));
+        assertEquals(List.of(0, 0), source.get("query_response_hit_indexes"));
+
+    }
+
+    public void testObjectIdCodec() throws IOException {
+
+        assertNull(ObjectIdCodec.encode(List.of("1", "01")));
+        assertNull(ObjectIdCodec.encode(List.of("-1")));
+        assertNull(ObjectIdCodec.encode(List.of("1234567890123456789")));
+
+        final List<String> objectIds = List.of("0", "999999999999999999", "5", "6", "7");
+        assertEquals(objectIds, ObjectIdCodec.decode(ObjectIdCodec.encode(objectIds)));
+
+        // Neighbouring IDs take a byte each.
+        assertEquals(1 + 2 + 3 * 1, ObjectIdCodec.encode(List.of("100", "101", "102", "103")).length);
+
+    }
+
+    private static List<IndexRequest> write(final UbiSettings.QueryCaptureMode mode,
+                                            final Predicate<String> isNewQueryHash) throws IOException {
+        return write(mode, UbiSettings.ObjectIdStorage.KEYWORDS, List.of("1", "2"), isNewQueryHash);
+    }
+
+    private static List<IndexRequest> write(final UbiSettings.QueryCaptureMode mode, final UbiSettings.ObjectIdStorage objectIdStorage,
+                                            final List<String> objectIds, final Predicate<String> isNewQueryHash) throws IOException {
+        return requests(document(mode, objectIdStorage, objectIds, isNewQueryHash, hash -> {}, new UbiStats()));
+    }
+
+    private static List<IndexRequest> requests(final QueryDocument document) throws IOException {
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        document.addTo(bulkRequest);
+
+        return bulkRequest.requests().stream().map(request -> (IndexRequest) request).toList();
+
+    }
+
+    private static QueryDocument document(final UbiSettings.QueryCaptureMode mode, final UbiSettings.ObjectIdStorage objectIdStorage,
+                                          final List<String> objectIds, final Predicate<String> isNewQueryHash,
+                                          final Consumer<String> onQueryHashWritten, final UbiStats stats) {
+
+        final UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
+        extBuilder.setParams(new UbiParameters("query-id", "red", "client-id", null, Collections.emptyMap()));
+
+        final SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.termQuery("color", "red"))
+                .ext(List.of(extBuilder));
+
+        final QueryResponse queryResponse = new QueryResponse("query-id", "query-response-id", objectIds);
+        final QueryRequest queryRequest = new QueryRequest("query-id", "red", "client-id", source,
+                Collections.emptyMap(), queryResponse);
+
+        return new QueryDocument(queryRequest, mode, 1024, objectIdStorage, isNewQueryHash, onQueryHashWritten, false, stats);
+
+    }
+
+}
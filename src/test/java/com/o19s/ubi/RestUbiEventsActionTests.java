@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+public class RestUbiEventsActionTests extends ESTestCase {
+
+    public void testEventIsCopiedAndEnriched() throws IOException {
+
+        final Map<String, Object> event = toEventSource("""
+                {"action_name":"click","query_id":"q1","client_id":"c1","event_attributes":{"object":{"object_id":"42"}}}""");
+
+        assertEquals("click", event.get("action_name"));
+        assertEquals("q1", event.get("query_id"));
+        assertEquals(Map.of("object", Map.of("object_id", "42")), event.get("event_attributes"));
+        assertEquals(1000L, ((Number) event.get("timestamp")).longValue());
+        assertEquals(1000L, ((Number) event.get("server_timestamp")).longValue());
+        assertEquals("ip-hash", event.get("client_ip_hash"));
+
+    }
+
+    public void testEventIsEnrichedWithItsQuery() throws IOException {
+
+        final UbiImpressionCache impressions =
+                new UbiImpressionCache(Settings.builder().put(UbiSettings.EVENTS_IMPRESSION_CACHE_ENABLED.getKey(), true).build());
+        impressions.put(new QueryResponse("q1", "r1", List.of("41", "42", "43"), 10, null, null, null, null));
+
+        final Map<String, Object> event = toEventSource("""
+                {"action_name":"click","query_id":"q1","event_attributes":{"position":{"x":1},"object":{"object_id":"42"}}}""",
+                impressions);
+
+        assertEquals("r1", event.get("query_response_id"));
+        assertEquals(List.of("41", "42", "43"), event.get("query_response_object_ids"));
+        assertEquals(12, event.get("query_response_rank"));
+        assertEquals(Map.of("position", Map.of("x", 1), "object", Map.of("object_id", "42")), event.get("event_attributes"));
+
+        // Events of other queries are not enriched.
+        assertNull(toEventSource("{\"action_name\":\"click\",\"query_id\":\"q2\"}", impressions).get("query_response_id"));
+        assertEquals(1, impressions.getHits());
+        assertEquals(1, impressions.getMisses());
+
+    }
+
+    public void testEventIsEnrichedWithThePageOfItsObject() throws IOException {
+
+        final UbiImpressionCache impressions =
+                new UbiImpressionCache(Settings.builder().put(UbiSettings.EVENTS_IMPRESSION_CACHE_ENABLED.getKey(), true).build());
+        impressions.put(new QueryResponse("q1", "r1", List.of("41", "42"), 0, null, null, null, null));
+        impressions.put(new QueryResponse("q1", "r2", List.of("43", "44"), 2, null, null, null, null));
+
+        final Map<String, Object> firstPageClick = toEventSource("""
+                {"action_name":"click","query_id":"q1","event_attributes":{"object":{"object_id":"41"}}}""", impressions);
+        final Map<String, Object> secondPageClick = toEventSource("""
+                {"action_name":"click","query_id":"q1","event_attributes":{"object":{"object_id":"44"}}}""", impressions);
+
+        assertEquals("r1", firstPageClick.get("query_response_id"));
+        assertEquals(1, firstPageClick.get("query_response_rank"));
+        assertEquals("r2", secondPageClick.get("query_response_id"));
+        assertEquals(4, secondPageClick.get("query_response_rank"));
+
+    }
+
+    public void testClientIpIsOnlyHashedWithASalt() {
+
+        final byte[] salt = "secret".getBytes(StandardCharsets.UTF_8);
+
+        assertNull(RestUbiEventsAction.hashClientIp("10.0.0.1", null));
+        assertNull(RestUbiEventsAction.hashClientIp(null, salt));
+        assertEquals(64, RestUbiEventsAction.hashClientIp("10.0.0.1", salt).length());
+        assertEquals(RestUbiEventsAction.hashClientIp("10.0.0.1", salt), RestUbiEventsAction.hashClientIp("10.0.0.1", salt));
+        assertNotEquals(RestUbiEventsAction.hashClientIp("10.0.0.1", salt),
+                RestUbiEventsAction.hashClientIp("10.0.0.1", "other".getBytes(StandardCharsets.UTF_8)));
+
+    }
+
+    public void testClientTimestampIsKept() throws IOException {
+        final Map<String, Object> event = toEventSource("{\"action_name\":\"click\",\"timestamp\":\"2024-10-01T00:00:00Z\"}");
+        assertEquals("2024-10-01T00:00:00Z", event.get("timestamp"));
+    }
+
+    public void testActionNameIsRequired() {
+        final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> toEventSource("{\"query_id\":\"q1\"}"));
+        assertEquals("[action_name] is required", e.getMessage());
+    }
+
+    public void testUnknownFieldsAreRejected() {
+        final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> toEventSource("{\"action_name\":\"click\",\"client_ip_hash\":\"forged\"}"));
+        assertEquals("unknown field [client_ip_hash]", e.getMessage());
+    }
+
+    public void testFieldTypesAreChecked() {
+        final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> toEventSource("{\"action_name\":\"click\",\"event_attributes\":\"nope\"}"));
+        assertEquals("[event_attributes] must be an object", e.getMessage());
+    }
+
+    public void testEventsAreAuthorizedAsAWriteToTheEventsIndex() throws IOException {
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+        new UbiEventsAction.Request(new BytesArray("{}"), "ip-hash").writeTo(out);
+        final UbiEventsAction.Request request = new UbiEventsAction.Request(out.bytes().streamInput());
+
+        assertTrue(UbiEventsAction.INSTANCE.name().startsWith("indices:data/write/"));
+        assertArrayEquals(new String[] { RestUbiEventsAction.UBI_EVENTS_INDEX }, request.indices());
+        assertEquals(new BytesArray("{}"), request.getContent());
+        assertEquals("ip-hash", request.getClientIpHash());
+
+    }
+
+    public void testResponseIsABadRequestWhenEveryEventIsRejected() throws IOException {
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+        new UbiEventsAction.Response(0, 0, 2, List.of("line 1: nope")).writeTo(out);
+        final UbiEventsAction.Response rejected = new UbiEventsAction.Response(out.bytes().streamInput());
+
+        assertEquals(RestStatus.BAD_REQUEST, rejected.status());
+        assertEquals(2, rejected.getRejected());
+        assertEquals(List.of("line 1: nope"), rejected.getErrors());
+        assertEquals(RestStatus.OK, new UbiEventsAction.Response(1, 0, 2, List.of()).status());
+
+    }
+
+    private static Map<String, Object> toEventSource(final String json) throws IOException {
+        return toEventSource(json, null);
+    }
+
+    private static Map<String, Object> toEventSource(final String json, final UbiImpressionCache impressions) throws IOException {
+        final BytesReference source = RestUbiEventsAction.toEventSource(new BytesArray(json), 1000L, "ip-hash", impressions);
+        return XContentHelper.convertToMap(source, false, XContentType.JSON).v2();
+    }
+
+}
@@ -0,0 +1,485 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.ext.UbiParameters;
+import com.o19s.ubi.ext.UbiParametersExtBuilder;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetadata;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexVersion;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class UbiActionFilterTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+    private ClusterService clusterService;
+    private UbiStats stats;
+    private CaptureSampler sampler;
+    private UbiDocumentWriter writer;
+    private UbiImpressionCache impressions;
+    private UbiIndexDefaults indexDefaults;
+    private UbiActionFilter filter;
+
+    @Override
+    public void setUp() throws Exception {
+
+        super.setUp();
+
+        final Settings settings = Settings.builder().put("node.name", getTestName()).build();
+        final Set<Setting<?>> clusterSettings = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        clusterSettings.addAll(UbiSettings.getSettings());
+
+        threadPool = new TestThreadPool(getTestName(), new UbiPlugin().getExecutorBuilders(settings).toArray(new ExecutorBuilder<?>[0]));
+        clusterService = new ClusterService(settings, new ClusterSettings(settings, clusterSettings), threadPool,
+                new TaskManager(settings, threadPool, Set.of()));
+
+        stats = new UbiStats();
+        sampler = new CaptureSampler(settings, clusterService.getClusterSettings());
+        writer = new UbiDocumentWriter(new NoOpClient(threadPool), threadPool, settings, stats);
+        final UbiQueryRollup rollup = new UbiQueryRollup(writer, threadPool, clusterService, "node-id");
+        final UbiTrending trending = new UbiTrending(threadPool, clusterService);
+        impressions = new UbiImpressionCache(Settings.builder().put(UbiSettings.EVENTS_IMPRESSION_CACHE_ENABLED.getKey(), true).build());
+        indexDefaults = new UbiIndexDefaults(clusterService);
+        filter = new UbiActionFilter(writer, sampler, new CaptureIndexAllowlist(clusterService), indexDefaults, stats, rollup, trending,
+                impressions, clusterService);
+
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        clusterService.close();
+        terminate(threadPool);
+        super.tearDown();
+    }
+
+    public void testMultiSearchCapturesEachItem() throws Exception {
+
+        final MultiSearchRequest multiSearchRequest = new MultiSearchRequest()
+                .add(searchRequest("query-1"))
+                .add(searchRequest(null))
+                .add(searchRequest("query-3"))
+                .add(searchRequest("query-4"));
+
+        final SearchResponse plainResponse = searchResponse();
+        final MultiSearchResponse multiSearchResponse = new MultiSearchResponse(new MultiSearchResponse.Item[] {
+                new MultiSearchResponse.Item(searchResponse(), null),
+                new MultiSearchResponse.Item(plainResponse, null),
+                new MultiSearchResponse.Item(null, new IllegalStateException("failed")),
+                new MultiSearchResponse.Item(searchResponse(), null)
+        }, 10);
+
+        final MultiSearchResponse response = (MultiSearchResponse) filter.handleMultiSearchRequest(multiSearchRequest,
+                filter.prepareMultiSearchRequest(multiSearchRequest), multiSearchResponse);
+        final MultiSearchResponse.Item[] items = response.getResponses();
+
+        assertNotSame(multiSearchResponse, response);
+        assertEquals(4, items.length);
+        assertEquals("query-1", ((UbiSearchResponse) items[0].getResponse()).getQueryId());
+        assertSame(plainResponse, items[1].getResponse());
+        assertTrue(items[2].isFailure());
+        assertEquals("query-4", ((UbiSearchResponse) items[3].getResponse()).getQueryId());
+
+        // The searches of a multi-search are captured on the UBI thread pool.
+        assertBusy(() -> assertEquals(2, writer.getQueueSize()));
+
+        final UbiStats.Snapshot snapshot = stats.snapshot(sampler, writer, impressions);
+        assertEquals(2, snapshot.sampled());
+        assertEquals(0, snapshot.failed());
+        assertEquals(2, snapshot.queueSize());
+        assertEquals(2, snapshot.impressionCacheCount());
+
+        // The objects returned to each captured search are cached for its events.
+        assertEquals(List.of("1", "2"), impressions.get("query-4").objectIds());
+        assertNull(impressions.get("query-3"));
+
+        // The shared item is still usable once the original response is released.
+        multiSearchResponse.decRef();
+        assertTrue(plainResponse.hasReferences());
+        response.decRef();
+
+    }
+
+    public void testAsyncCaptureKeepsTheResponseUntilCaptured() throws Exception {
+
+        clusterService.getClusterSettings().applySettings(Settings.builder().put(UbiSettings.CAPTURE_ASYNC.getKey(), true).build());
+
+        final SearchResponse searchResponse = searchResponse();
+        final SearchRequest searchRequest = searchRequest("query-1");
+        final UbiSearchResponse response = (UbiSearchResponse) filter.handleSearchRequest(searchRequest,
+                filter.prepareSearchRequest(searchRequest), searchResponse);
+
+        assertEquals("query-1", response.getQueryId());
+
+        // The caller is done with the response before the capture has necessarily run.
+        response.decRef();
+        searchResponse.decRef();
+
+        assertBusy(() -> assertEquals(1, writer.getQueueSize()));
+        assertBusy(() -> assertFalse(searchResponse.hasReferences()));
+        assertEquals(0, stats.snapshot(sampler, writer, impressions).failed());
+
+    }
+
+    public void testCapturedSearchResponsesAreReleased() {
+
+        final SearchResponse searchResponse = searchResponse();
+        final List<SearchResponse> received = new ArrayList<>();
+
+        filter.apply(null, "indices:data/read/search", searchRequest("query-1"), ActionListener.wrap(received::add, e -> fail()),
+                respondingWith(searchResponse));
+
+        assertEquals(1, received.size());
+        assertEquals("query-1", ((UbiSearchResponse) received.get(0)).getQueryId());
+        assertFalse(received.get(0).hasReferences());
+        assertFalse(searchResponse.hasReferences());
+
+    }
+
+    public void testCapturedMultiSearchResponsesAreReleased() throws Exception {
+
+        final MultiSearchRequest multiSearchRequest = new MultiSearchRequest()
+                .add(searchRequest("query-1"))
+                .add(searchRequest(null));
+
+        final SearchResponse capturedResponse = searchResponse();
+        final SearchResponse plainResponse = searchResponse();
+        final MultiSearchResponse multiSearchResponse = new MultiSearchResponse(new MultiSearchResponse.Item[] {
+                new MultiSearchResponse.Item(capturedResponse, null),
+                new MultiSearchResponse.Item(plainResponse, null)
+        }, 10);
+        final List<MultiSearchResponse> received = new ArrayList<>();
+        final List<SearchResponse> receivedItems = new ArrayList<>();
+
+        // The released response drops its items, so they are kept as they are received.
+        filter.apply(null, "indices:data/read/msearch", multiSearchRequest, ActionListener.wrap(response -> {
+            received.add(response);
+            receivedItems.add(response.getResponses()[0].getResponse());
+        }, e -> fail()), respondingWith(multiSearchResponse));
+
+        assertEquals(1, received.size());
+        assertEquals("query-1", ((UbiSearchResponse) receivedItems.get(0)).getQueryId());
+        assertFalse(received.get(0).hasReferences());
+        assertFalse(receivedItems.get(0).hasReferences());
+        assertFalse(multiSearchResponse.hasReferences());
+        assertFalse(plainResponse.hasReferences());
+
+        // The captured response is kept until its capture has run.
+        assertBusy(() -> assertFalse(capturedResponse.hasReferences()));
+
+    }
+
+    public void testMultiSearchIsCapturedOffTheCallingThread() throws Exception {
+
+        final Thread callingThread = Thread.currentThread();
+        final List<Thread> capturingThreads = Collections.synchronizedList(new ArrayList<>());
+        final UbiDocumentWriter recordingWriter = new UbiDocumentWriter(new NoOpClient(threadPool), threadPool, Settings.EMPTY, stats) {
+
+            @Override
+            public int addAll(final List<? extends UbiDocument> documents) {
+                capturingThreads.add(Thread.currentThread());
+                return super.addAll(documents);
+            }
+
+        };
+        final UbiActionFilter multiSearchFilter = new UbiActionFilter(recordingWriter, sampler, new CaptureIndexAllowlist(clusterService),
+                indexDefaults, stats, new UbiQueryRollup(recordingWriter, threadPool, clusterService, "node-id"),
+                new UbiTrending(threadPool, clusterService), impressions, clusterService);
+
+        final MultiSearchRequest multiSearchRequest = new MultiSearchRequest().add(searchRequest("query-1"));
+        final MultiSearchResponse multiSearchResponse = new MultiSearchResponse(new MultiSearchResponse.Item[] {
+                new MultiSearchResponse.Item(searchResponse(), null)
+        }, 10);
+
+        // Capture of single searches is synchronous by default, which must not apply to multi-searches.
+        multiSearchFilter.handleMultiSearchRequest(multiSearchRequest, multiSearchFilter.prepareMultiSearchRequest(multiSearchRequest),
+                multiSearchResponse).decRef();
+        multiSearchResponse.decRef();
+
+        assertBusy(() -> assertEquals(1, capturingThreads.size()));
+        assertNotSame(callingThread, capturingThreads.get(0));
+        assertTrue(capturingThreads.get(0).getName().contains("[" + UbiPlugin.UBI_THREAD_POOL_NAME + "]"));
+
+    }
+
+    public void testObjectIdFieldIsNotAddedToTheSearch() {
+
+        final UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
+        extBuilder.setParams(new UbiParameters("query-1", "red shoes", "client-id", "product_id", Collections.emptyMap()));
+        final SearchRequest searchRequest = new SearchRequest("ecommerce").source(new SearchSourceBuilder().ext(List.of(extBuilder)));
+
+        assertNotNull(filter.prepareSearchRequest(searchRequest));
+        // Asking for the field would return it in the caller's hits and in the captured query.
+        assertNull(searchRequest.source().fetchFields());
+
+    }
+
+    public void testMultiSearchWithoutUbiIsReturnedAsIs() {
+
+        final MultiSearchRequest multiSearchRequest = new MultiSearchRequest().add(searchRequest(null));
+        final MultiSearchResponse multiSearchResponse = new MultiSearchResponse(new MultiSearchResponse.Item[] {
+                new MultiSearchResponse.Item(searchResponse(), null)
+        }, 10);
+
+        assertSame(multiSearchResponse, filter.handleMultiSearchRequest(multiSearchRequest,
+                filter.prepareMultiSearchRequest(multiSearchRequest), multiSearchResponse));
+        assertEquals(0, writer.getQueueSize());
+        multiSearchResponse.decRef();
+
+    }
+
+    public void testHitMetadataIsCaptured() {
+
+        final SearchRequest searchRequest = searchRequest("query-1");
+        searchRequest.source().from(20);
+
+        final SearchHit[] hits = new SearchHit[] { SearchHit.unpooled(1, "1"), SearchHit.unpooled(2, "2"), SearchHit.unpooled(3, "3") };
+        hits[0].score(3.5f);
+        hits[1].score(2.0f);
+        hits[2].score(1.0f);
+        hits[0].shard(new SearchShardTarget("node", new ShardId("products-1", "_na_", 0), null));
+        hits[1].shard(new SearchShardTarget("node", new ShardId("products-2", "_na_", 4), null));
+        hits[2].shard(new SearchShardTarget("node", new ShardId("products-1", "_na_", 1), null));
+
+        final SearchHits searchHits = SearchHits.unpooled(hits, new TotalHits(3, TotalHits.Relation.EQUAL_TO), 3.5f);
+        final SearchResponse searchResponse = new SearchResponse(searchHits, null, null, false, null, null, 1, null, 1, 1, 0, 10,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+        final QueryResponse queryResponse = filter.toQueryResponse(searchRequest, searchResponse,
+                UbiParameters.getUbiParameters(searchRequest));
+
+        assertEquals(20, queryResponse.getOffset());
+        assertArrayEquals(new float[] { 3.5f, 2.0f, 1.0f }, queryResponse.getScores(), 0f);
+        assertArrayEquals(new int[] { 0, 4, 1 }, queryResponse.getShards());
+        assertArrayEquals(new String[] { "products-1", "products-2" }, queryResponse.getIndexes());
+        assertArrayEquals(new int[] { 0, 1, 0 }, queryResponse.getIndexOrdinals());
+
+        // Hits without a score or shard do not have them captured.
+        final QueryResponse unscored =
+                filter.toQueryResponse(searchRequest, searchResponse(), UbiParameters.getUbiParameters(searchRequest));
+        assertNull(unscored.getScores());
+        assertNull(unscored.getShards());
+
+        searchResponse.decRef();
+
+    }
+
+    public void testLaterPagesAreWrittenWithoutTheQuery() throws Exception {
+
+        clusterService.getClusterSettings().applySettings(
+                Settings.builder().put(UbiSettings.CAPTURE_COALESCE_WINDOW.getKey(), "5m").build());
+
+        final SearchRequest searchRequest = searchRequest("query-1");
+        searchRequest.source().query(QueryBuilders.termQuery("color", "red"));
+
+        final Map<String, Object> firstPage = write(new QueryRequest("query-1", "red shoes", "client-id", searchRequest.source(),
+                Collections.emptyMap(), new QueryResponse("query-1", "response-1", List.of("1", "2"))));
+        final Map<String, Object> secondPage = write(new QueryRequest("query-1", "red shoes", "client-id", searchRequest.source(),
+                Collections.emptyMap(), new QueryResponse("query-1", "response-2", List.of("3", "4"), 2, null, null, null, null)));
+
+        assertTrue(firstPage.containsKey("query"));
+        assertFalse(firstPage.containsKey("query_continuation"));
+        assertFalse(secondPage.containsKey("query"));
+        assertEquals(true, secondPage.get("query_continuation"));
+        assertEquals(List.of("3", "4"), secondPage.get("query_response_object_ids"));
+        assertEquals(2, secondPage.get("query_response_offset"));
+
+    }
+
+    public void testAllowlistResolvesAliases() {
+
+        final Metadata metadata = Metadata.builder()
+                .put(index("products-v3").putAlias(AliasMetadata.builder("products")))
+                .put(index(".kibana_1").putAlias(AliasMetadata.builder(".kibana")))
+                .put(index("logs-1"))
+                .build();
+
+        assertEquals(Set.of("products-v3", "products"), CaptureIndexAllowlist.resolve(List.of("products-*"), metadata));
+        assertEquals(Set.of("products", "logs-1"), CaptureIndexAllowlist.resolve(List.of("products", "logs-*"), metadata));
+
+    }
+
+    public void testSearchesOfOtherIndexesAreNotWrapped() {
+
+        clusterService.getClusterSettings().applySettings(Settings.builder()
+                .putList(UbiSettings.CAPTURE_INDICES.getKey(), "ecommerce")
+                .build());
+
+        final SearchRequest dashboardSearch = searchRequest("query-1").indices(".kibana");
+        final ActionListener<SearchResponse> listener = ActionListener.noop();
+        final List<ActionListener<?>> proceeded = new ArrayList<>();
+
+        filter.apply(null, "indices:data/read/search", dashboardSearch, listener, new ActionFilterChain<SearchRequest, SearchResponse>() {
+            @Override
+            public void proceed(final Task task, final String action, final SearchRequest request, final ActionListener<SearchResponse> l) {
+                proceeded.add(l);
+            }
+        });
+
+        assertEquals(1, proceeded.size());
+        assertSame(listener, proceeded.get(0));
+
+    }
+
+    public void testSearchesWithoutParametersUseTheIndexDefaults() {
+
+        final Metadata metadata = Metadata.builder()
+                .put(IndexMetadata.builder("products-v3")
+                        .settings(indexSettings(IndexVersion.current(), 1, 0)
+                                .put(UbiSettings.INDEX_ENABLED.getKey(), true)
+                                .put(UbiSettings.INDEX_OBJECT_ID_FIELD.getKey(), "sku"))
+                        .putAlias(AliasMetadata.builder("products")))
+                .put(index("logs-1"))
+                .build();
+        final ClusterState previous = ClusterState.builder(ClusterName.DEFAULT).build();
+        indexDefaults.clusterChanged(new ClusterChangedEvent("test", ClusterState.builder(previous).metadata(metadata).build(), previous));
+
+        final SearchRequest productSearch = new SearchRequest("products");
+        final SearchRequest logSearch = new SearchRequest("logs-1");
+        final List<ActionListener<?>> proceeded = new ArrayList<>();
+        final ActionFilterChain<SearchRequest, SearchResponse> chain = new ActionFilterChain<>() {
+            @Override
+            public void proceed(final Task task, final String action, final SearchRequest request, final ActionListener<SearchResponse> l) {
+                proceeded.add(l);
+            }
+        };
+
+        filter.apply(null, "indices:data/read/search", productSearch, ActionListener.noop(), chain);
+        filter.apply(null, "indices:data/read/search", logSearch, ActionListener.noop(), chain);
+
+        final UbiParameters ubiParameters = UbiParameters.getUbiParameters(productSearch);
+        assertNotNull(ubiParameters);
+        assertTrue(ubiParameters.hasQueryId());
+        assertEquals("sku", ubiParameters.getObjectIdField());
+        assertNull(UbiParameters.getUbiParameters(logSearch));
+        assertSame(ActionListener.noop(), proceeded.get(1));
+
+    }
+
+    public void testIndexDefaultsFollowSettingsChanges() {
+
+        final IndexMetadata products = index("products-v3").putAlias(AliasMetadata.builder("products")).build();
+        final ClusterState empty = ClusterState.builder(ClusterName.DEFAULT).build();
+        final ClusterState unconfigured = ClusterState.builder(empty).metadata(Metadata.builder().put(products, false)).build();
+        indexDefaults.clusterChanged(new ClusterChangedEvent("test", unconfigured, empty));
+
+        assertNull(indexDefaults.get(new String[] { "products" }));
+
+        final IndexMetadata configured = IndexMetadata.builder(products)
+                .settings(Settings.builder().put(products.getSettings()).put(UbiSettings.INDEX_SAMPLE_RATE.getKey(), 0.5))
+                .settingsVersion(products.getSettingsVersion() + 1)
+                .build();
+        final ClusterState updated = ClusterState.builder(unconfigured)
+                .metadata(Metadata.builder(unconfigured.metadata()).put(configured, true))
+                .build();
+        indexDefaults.clusterChanged(new ClusterChangedEvent("test", updated, unconfigured));
+
+        assertEquals(0.5, indexDefaults.get(new String[] { "products" }).sampleRate(), 0.0);
+
+    }
+
+    public void testTimeBasedIdsAreUnique() {
+
+        final Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ids.add(IdGenerator.TIME.newId()));
+        }
+
+    }
+
+    private Map<String, Object> write(final QueryRequest queryRequest) throws IOException {
+        final BulkRequest bulkRequest = new BulkRequest();
+        filter.toQueryDocument(queryRequest).addTo(bulkRequest);
+        return ((IndexRequest) bulkRequest.requests().get(0)).sourceAsMap();
+    }
+
+    private static IndexMetadata.Builder index(final String name) {
+        return IndexMetadata.builder(name).settings(indexSettings(IndexVersion.current(), 1, 0));
+    }
+
+    /**
+     * A chain that answers with a response and then releases it, as the search actions do.
+     */
+    private static <Request extends ActionRequest, Response extends ActionResponse> ActionFilterChain<Request, Response> respondingWith(
+            final Response response) {
+        return (task, action, request, listener) -> ActionListener.respondAndRelease(listener, response);
+    }
+
+    private static SearchRequest searchRequest(final String queryId) {
+
+        final SearchSourceBuilder source = new SearchSourceBuilder();
+
+        if (queryId != null) {
+            final UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
+            extBuilder.setParams(new UbiParameters(queryId, "red shoes", "client-id", null, Collections.emptyMap()));
+            source.ext(List.of(extBuilder));
+        }
+
+        return new SearchRequest("ecommerce").source(source);
+
+    }
+
+    private static SearchResponse searchResponse() {
+
+        final SearchHit[] hits = new SearchHit[] { SearchHit.unpooled(1, "1"), SearchHit.unpooled(2, "2") };
+        final SearchHits searchHits = SearchHits.unpooled(hits, new TotalHits(2, TotalHits.Relation.EQUAL_TO), 1.0f);
+
+        return new SearchResponse(searchHits, null, null, false, null, null, 1, null, 1, 1, 0, 10,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class UbiDocumentWriterTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        threadPool = new TestThreadPool(getTestName());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        terminate(threadPool);
+        super.tearDown();
+    }
+
+    public void testDropNewestWhenQueueIsFull() {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_QUEUE_SIZE.getKey(), 2)
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 10)
+                .build();
+
+        final UbiDocumentWriter writer = new UbiDocumentWriter(new CapturingClient(threadPool), threadPool, settings, new UbiStats());
+
+        assertTrue(writer.add(indexRequest("1")));
+        assertTrue(writer.add(indexRequest("2")));
+        assertFalse(writer.add(indexRequest("3")));
+        assertEquals(2, writer.getQueueSize());
+        assertEquals(1, writer.getDroppedCount());
+
+    }
+
+    public void testDropOldestWhenQueueIsFull() {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_QUEUE_SIZE.getKey(), 2)
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 10)
+                .put(UbiSettings.WRITER_OVERFLOW_POLICY.getKey(), UbiSettings.OverflowPolicy.DROP_OLDEST)
+                .build();
+
+        final CapturingClient client = new CapturingClient(threadPool);
+        final UbiDocumentWriter writer = new UbiDocumentWriter(client, threadPool, settings, new UbiStats());
+
+        assertTrue(writer.add(indexRequest("1")));
+        assertTrue(writer.add(indexRequest("2")));
+        assertTrue(writer.add(indexRequest("3")));
+        assertEquals(2, writer.getQueueSize());
+        assertEquals(1, writer.getDroppedCount());
+
+        writer.flush();
+
+        assertEquals(1, client.bulkRequests.size());
+        assertEquals("2", client.bulkRequests.get(0).requests().get(0).id());
+        assertEquals("3", client.bulkRequests.get(0).requests().get(1).id());
+
+    }
+
+    public void testFlushSplitsIntoBulkRequests() throws Exception {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_QUEUE_SIZE.getKey(), 10)
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 2)
+                .build();
+
+        final CapturingClient client = new CapturingClient(threadPool);
+        final UbiDocumentWriter writer = new UbiDocumentWriter(client, threadPool, settings, new UbiStats());
+
+        for (int i = 0; i < 3; i++) {
+            writer.add(indexRequest(String.valueOf(i)));
+        }
+
+        // Queueing the second document may already have started a flush in the background.
+        assertBusy(() -> {
+            writer.flush();
+            assertEquals(0, writer.getQueueSize());
+        });
+
+        assertEquals(2, client.bulkRequests.size());
+        assertEquals(2, client.bulkRequests.get(0).numberOfActions());
+        assertEquals(1, client.bulkRequests.get(1).numberOfActions());
+
+    }
+
+    public void testDocumentsAreHeldUntilReady() throws Exception {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 10)
+                .build();
+
+        final CapturingClient client = new CapturingClient(threadPool);
+        final UbiDocumentWriter writer = new UbiDocumentWriter(client, threadPool, settings, new UbiStats());
+        writer.setReady(false);
+
+        writer.add(indexRequest("1"));
+        writer.flush();
+
+        assertEquals(0, client.bulkRequests.size());
+        assertEquals(1, writer.getQueueSize());
+
+        // Becoming ready flushes the held documents.
+        writer.setReady(true);
+
+        assertBusy(() -> assertEquals(1, client.bulkRequests.size()));
+        assertEquals(0, writer.getQueueSize());
+
+    }
+
+    public void testOnlyWrittenDocumentsAreNotified() throws Exception {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 10)
+                .build();
+
+        // The first document adds two requests, of which the second already existed.
+        final CapturingClient client = new CapturingClient(threadPool,
+                RestStatus.CREATED, RestStatus.CONFLICT, RestStatus.TOO_MANY_REQUESTS, RestStatus.CREATED);
+        final UbiDocumentWriter writer = new UbiDocumentWriter(client, threadPool, settings, new UbiStats());
+
+        final List<String> written = new CopyOnWriteArrayList<>();
+        writer.add(document("1", written, indexRequest("1"), indexRequest("2")));
+        writer.add(document("2", written, indexRequest("3")));
+        writer.add(document("3", written, indexRequest("4")));
+        writer.flush();
+
+        assertBusy(() -> assertEquals(1, client.bulkRequests.size()));
+        assertEquals(List.of("1", "3"), written);
+
+    }
+
+    private static UbiDocument document(final String name, final List<String> written, final IndexRequest... indexRequests) {
+
+        return new UbiDocument() {
+
+            @Override
+            public long estimatedSizeInBytes() {
+                return 0;
+            }
+
+            @Override
+            public void addTo(final BulkRequest bulkRequest) {
+                for (final IndexRequest indexRequest : indexRequests) {
+                    bulkRequest.add(indexRequest);
+                }
+            }
+
+            @Override
+            public void onWritten() {
+                written.add(name);
+            }
+
+        };
+
+    }
+
+    private static IndexRequest indexRequest(final String id) {
+        return new IndexRequest("ubi_queries").id(id).source(XContentType.JSON, "query_id", id);
+    }
+
+    private static class CapturingClient extends NoOpClient {
+
+        private final List<BulkRequest> bulkRequests = new CopyOnWriteArrayList<>();
+        private final RestStatus[] itemStatuses;
+
+        CapturingClient(ThreadPool threadPool, RestStatus... itemStatuses) {
+            super(threadPool);
+            this.itemStatuses = itemStatuses;
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse> void doExecute(
+                ActionType<Response> action,
+                Request request,
+                ActionListener<Response> listener
+        ) {
+            if (request instanceof BulkRequest) {
+                bulkRequests.add((BulkRequest) request);
+            }
+            if (request instanceof BulkRequest && itemStatuses.length > 0) {
+                @SuppressWarnings("unchecked")
+                final Response response = (Response) bulkResponse((BulkRequest) request);
+                listener.onResponse(response);
+                return;
+            }
+            listener.onFailure(new UnsupportedOperationException("not indexed in tests"));
+        }
+
+        private BulkResponse bulkResponse(final BulkRequest bulkRequest) {
+
+            final BulkItemResponse[] items = new BulkItemResponse[bulkRequest.numberOfActions()];
+
+            for (int i = 0; i < items.length; i++) {
+                final String id = bulkRequest.requests().get(i).id();
+                items[i] = itemStatuses[i] == RestStatus.CREATED
+                        ? BulkItemResponse.success(i, DocWriteRequest.OpType.INDEX,
+                                new IndexResponse(new ShardId("ubi_queries", "_na_", 0), id, 1, 1, 1, true))
+                        : BulkItemResponse.failure(i, DocWriteRequest.OpType.INDEX,
+                                new BulkItemResponse.Failure("ubi_queries", id, new IllegalStateException("not indexed"), itemStatuses[i]));
+            }
+
+            return new BulkResponse(items, 1);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.util.List;
+
+public class UbiExportTaskParamsTests extends ESTestCase {
+
+    public void testParse() throws Exception {
+
+        final String json = """
+                {"path": "lake", "indices": ["ubi_events"], "from": "2024-01-01T00:00:00Z", "to": 1704153600000,
+                 "bucket": "1h", "slices": 4, "max_bytes_per_sec": "20mb"}""";
+
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+
+            final UbiExportTaskParams params = UbiExportTaskParams.fromXContent(parser);
+
+            assertEquals("lake", params.getPath());
+            assertEquals(List.of("ubi_events"), params.getIndices());
+            assertEquals(Long.valueOf(1704067200000L), params.getFrom());
+            assertEquals(1704153600000L, params.getTo());
+            assertEquals(TimeValue.timeValueHours(1), params.getBucket());
+            assertEquals(1000, params.getPageSize());
+            assertEquals(4, params.getSlices());
+            assertEquals(ByteSizeValue.ofMb(20), params.getMaxBytesPerSec());
+
+            // The parameters are kept in the cluster state, on the wire and as XContent.
+            final BytesStreamOutput out = new BytesStreamOutput();
+            params.writeTo(out);
+            assertEquals(params, new UbiExportTaskParams(out.bytes().streamInput()));
+
+            try (XContentParser reparsed = createParser(JsonXContent.jsonXContent, Strings.toString(params))) {
+                assertEquals(params, UbiExportTaskParams.fromXContent(reparsed));
+            }
+
+        }
+
+    }
+
+    public void testOnlyUbiIndexesAreExported() {
+
+        final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> new UbiExportTaskParams("lake", List.of(".security"), null, null, null, null, null, null));
+        assertTrue(e.getMessage().contains("[.security]"));
+
+    }
+
+}
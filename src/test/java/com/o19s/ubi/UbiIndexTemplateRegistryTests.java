@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.cluster.metadata.ComposableIndexTemplate;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.List;
+
+public class UbiIndexTemplateRegistryTests extends ESTestCase {
+
+    private static final BytesReference QUERIES_MAPPING = UbiIndexTemplateRegistry.loadMapping("/queries-mapping.json");
+    private static final BytesReference EVENTS_MAPPING = UbiIndexTemplateRegistry.loadMapping("/events-mapping.json");
+
+    public void testIndexTemplate() throws IOException {
+
+        final ComposableIndexTemplate template = UbiIndexTemplateRegistry.buildTemplate(
+                QueryDocument.UBI_QUERIES_INDEX, QUERIES_MAPPING, false, 3, TimeValue.MINUS_ONE, "");
+
+        assertEquals(List.of(QueryDocument.UBI_QUERIES_INDEX), template.indexPatterns());
+        assertEquals(Long.valueOf(UbiIndexTemplateRegistry.TEMPLATE_VERSION), template.version());
+        assertNull(template.getDataStreamTemplate());
+        assertNull(template.template().lifecycle());
+        assertEquals(3, template.template().settings().getAsInt(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 0).intValue());
+        assertTrue(template.template().mappings().string().contains("query_response_object_ids"));
+
+    }
+
+    public void testDataStreamTemplateWithRetention() throws IOException {
+
+        final ComposableIndexTemplate template = UbiIndexTemplateRegistry.buildTemplate(
+                RestUbiEventsAction.UBI_EVENTS_INDEX, EVENTS_MAPPING, true, 2, TimeValue.timeValueDays(30), "");
+
+        assertNotNull(template.getDataStreamTemplate());
+        assertEquals(TimeValue.timeValueDays(30), template.template().lifecycle().getDataStreamRetention());
+
+    }
+
+    public void testLifecyclePolicyReplacesDataStreamLifecycle() throws IOException {
+
+        final ComposableIndexTemplate template = UbiIndexTemplateRegistry.buildTemplate(
+                RestUbiEventsAction.UBI_EVENTS_INDEX, EVENTS_MAPPING, true, 1, TimeValue.timeValueDays(30), "ubi-policy");
+
+        assertNotNull(template.getDataStreamTemplate());
+        assertNull(template.template().lifecycle());
+        assertEquals("ubi-policy", template.template().settings().get("index.lifecycle.name"));
+
+    }
+
+    public void testIndexesOutsideDataStreamsHaveNoLifecycle() throws IOException {
+
+        for (final String name : List.of(QueryDocument.UBI_QUERY_DSL_INDEX, UbiJudgementsTaskExecutor.UBI_JUDGEMENTS_INDEX)) {
+
+            final ComposableIndexTemplate template = UbiIndexTemplateRegistry.buildTemplate(
+                    name, QUERIES_MAPPING, false, 1, TimeValue.timeValueDays(30), "ubi-policy");
+
+            assertNull(template.getDataStreamTemplate());
+            assertNull(template.template().lifecycle());
+            assertNull(template.template().settings().get("index.lifecycle.name"));
+
+        }
+
+    }
+
+    public void testLifecyclePolicyRequiresDataStreams() {
+
+        final Settings indexMode = Settings.builder().put(UbiSettings.STORAGE_LIFECYCLE_POLICY.getKey(), "ubi-policy").build();
+        final IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> UbiSettings.STORAGE_LIFECYCLE_POLICY.get(indexMode));
+        assertTrue(e.getMessage().contains("[ubi.storage.mode] to be [data_stream]"));
+
+        final Settings dataStreamMode = Settings.builder()
+                .put(UbiSettings.STORAGE_MODE.getKey(), "data_stream")
+                .put(UbiSettings.STORAGE_LIFECYCLE_POLICY.getKey(), "ubi-policy")
+                .build();
+        assertEquals("ubi-policy", UbiSettings.STORAGE_LIFECYCLE_POLICY.get(dataStreamMode));
+
+    }
+
+    public void testTemplateIsCurrentUntilSettingsChange() throws IOException {
+
+        final ComposableIndexTemplate installed = UbiIndexTemplateRegistry.buildTemplate(
+                RestUbiEventsAction.UBI_EVENTS_INDEX, EVENTS_MAPPING, true, 1, TimeValue.MINUS_ONE, "");
+        final ComposableIndexTemplate same = UbiIndexTemplateRegistry.buildTemplate(
+                RestUbiEventsAction.UBI_EVENTS_INDEX, EVENTS_MAPPING, true, 1, TimeValue.MINUS_ONE, "");
+        final ComposableIndexTemplate moreShards = UbiIndexTemplateRegistry.buildTemplate(
+                RestUbiEventsAction.UBI_EVENTS_INDEX, EVENTS_MAPPING, true, 4, TimeValue.MINUS_ONE, "");
+
+        assertFalse(UbiIndexTemplateRegistry.isCurrent(null, same));
+        assertTrue(UbiIndexTemplateRegistry.isCurrent(installed, same));
+        assertFalse(UbiIndexTemplateRegistry.isCurrent(installed, moreShards));
+
+    }
+
+}
@@ -18,6 +18,7 @@ package com.o19s.ubi;
 
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.test.ESTestCase;
 import com.o19s.ubi.ext.UbiParameters;
@@ -26,8 +27,11 @@ import org.elasticsearch.xcontent.XContentParser;
 import org.elasticsearch.xcontent.XContentType;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.mockito.Mockito.mock;
@@ -96,6 +100,39 @@ public class UbiParametersExtBuilderTests extends ESTestCase {
         assertEquals("object_id_field", parameters.getObjectIdField());
     }
 
+    public void testStreamRoundTripWithQueryAttributes() throws IOException {
+        UbiParameters param1 = new UbiParameters("query_id", "user_query", "client_id", "object_id_field", Map.of("brand", "acme"));
+        BytesStreamOutput bso = new BytesStreamOutput();
+        param1.writeTo(bso);
+        UbiParameters deserialized = new UbiParameters(bso.bytes().streamInput());
+        assertEquals(param1, deserialized);
+        assertEquals(Map.of("brand", "acme"), deserialized.getQueryAttributes());
+
+        UbiParameters param2 = new UbiParameters("query_id", "user_query", "client_id", "object_id_field", null);
+        bso = new BytesStreamOutput();
+        param2.writeTo(bso);
+        assertTrue(new UbiParameters(bso.bytes().streamInput()).getQueryAttributes().isEmpty());
+    }
+
+    public void testStreamReadsGenericQueryAttributesOfEarlierVersions() throws IOException {
+        // Generic values write linked maps and other maps with different type bytes.
+        List<Map<String, String>> formats = Arrays.asList(new LinkedHashMap<>(Map.of("brand", "acme")), Map.of("brand", "acme"), null);
+        for (Map<String, String> queryAttributes : formats) {
+            // The format of earlier versions of the plugin.
+            BytesStreamOutput bso = new BytesStreamOutput();
+            bso.writeString("query_id");
+            bso.writeOptionalString("user_query");
+            bso.writeOptionalString(null);
+            bso.writeOptionalString(null);
+            bso.writeGenericValue(queryAttributes);
+            StreamInput input = bso.bytes().streamInput();
+            UbiParameters deserialized = new UbiParameters(input);
+            assertEquals("user_query", deserialized.getUserQuery());
+            assertEquals(queryAttributes == null ? Map.of() : queryAttributes, deserialized.getQueryAttributes());
+            assertEquals(0, input.available());
+        }
+    }
+
     public void testStreamRoundTripAllValues() throws IOException {
         UbiParameters param1 = new UbiParameters("query_id", "user_query", "client_id", "object_id_field", Collections.emptyMap());
         UbiParametersExtBuilder extBuilder = new UbiParametersExtBuilder();
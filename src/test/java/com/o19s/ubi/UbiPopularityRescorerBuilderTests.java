@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class UbiPopularityRescorerBuilderTests extends ESTestCase {
+
+    public void testParse() throws Exception {
+
+        final String json = """
+                {"object_id_field": "sku", "signal": "clicks", "weight": 0.5, "boost_mode": "sum"}""";
+
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+
+            final UbiPopularityRescorerBuilder rescorer = UbiPopularityRescorerBuilder.fromXContent(parser, () -> null);
+
+            assertEquals("sku", rescorer.getObjectIdField());
+            assertEquals(UbiPopularityRescorerBuilder.Signal.CLICKS, rescorer.getSignal());
+            assertEquals(0.5f, rescorer.getWeight(), 0f);
+            assertEquals(UbiPopularityRescorerBuilder.BoostMode.SUM, rescorer.getBoostMode());
+
+            rescorer.windowSize(50);
+            final BytesStreamOutput out = new BytesStreamOutput();
+            rescorer.writeTo(out);
+            assertEquals(rescorer, new UbiPopularityRescorerBuilder(out.bytes().streamInput(), () -> null));
+
+        }
+
+    }
+
+    public void testDefaults() throws Exception {
+
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, "{}")) {
+
+            final UbiPopularityRescorerBuilder rescorer = UbiPopularityRescorerBuilder.fromXContent(parser, () -> null);
+
+            assertEquals("_id", rescorer.getObjectIdField());
+            assertEquals(UbiPopularityRescorerBuilder.Signal.CTR, rescorer.getSignal());
+            assertEquals(1f, rescorer.getWeight(), 0f);
+            assertEquals(UbiPopularityRescorerBuilder.BoostMode.MULTIPLY, rescorer.getBoostMode());
+
+        }
+
+    }
+
+    public void testSignals() {
+
+        assertEquals(0.5f, UbiPopularityRescorerBuilder.Signal.CTR.of(10, 10), 1e-6f);
+        assertEquals(0f, UbiPopularityRescorerBuilder.Signal.CTR.of(0, 0), 0f);
+        assertEquals((float) Math.log1p(9), UbiPopularityRescorerBuilder.Signal.CLICKS.of(9, 100), 1e-6f);
+        assertEquals(3f, UbiPopularityRescorerBuilder.BoostMode.MULTIPLY.combine(2f, 0.5f), 0f);
+        assertEquals(2.5f, UbiPopularityRescorerBuilder.BoostMode.SUM.combine(2f, 0.5f), 0f);
+
+    }
+
+    public void testIdKeys() {
+
+        final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+        final BytesRefBuilder utf8 = new BytesRefBuilder();
+
+        // UTF-8, numeric and base64 IDs are each stored differently.
+        for (final String id : List.of("red shoes", "12345", "AVx9dCjJXaVpH7WfIxnY")) {
+            final BytesRef stored = Uid.encodeId(id);
+            final byte[] value = Arrays.copyOfRange(stored.bytes, stored.offset, stored.offset + stored.length);
+            assertEquals(id, PopularityTable.key(id), UbiPopularityRescorerBuilder.idKey(value, hash, utf8));
+        }
+
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.client.NoOpClient;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class UbiQueryRollupTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+    private ClusterService clusterService;
+
+    @Override
+    public void setUp() throws Exception {
+
+        super.setUp();
+
+        final Settings settings = Settings.builder()
+                .put("node.name", getTestName())
+                .put(UbiSettings.ROLLUP_ENABLED.getKey(), true)
+                .put(UbiSettings.ROLLUP_MAX_QUERIES.getKey(), 2)
+                .build();
+        final Set<Setting<?>> clusterSettings = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        clusterSettings.addAll(UbiSettings.getSettings());
+
+        threadPool = new TestThreadPool(getTestName());
+        clusterService = new ClusterService(settings, new ClusterSettings(settings, clusterSettings), threadPool,
+                new TaskManager(settings, threadPool, Set.of()));
+
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        clusterService.close();
+        terminate(threadPool);
+        super.tearDown();
+    }
+
+    public void testCountsByNormalizedUserQuery() throws Exception {
+
+        final UbiDocumentWriter writer = new UbiDocumentWriter(new NoOpClient(threadPool), threadPool, clusterService.getSettings(),
+                new UbiStats());
+        final UbiQueryRollup rollup = new UbiQueryRollup(writer, threadPool, clusterService, "node-1");
+
+        rollup.record("Red Shoes", searchResponse(0));
+        rollup.record("  red   shoes ", searchResponse(10));
+        rollup.record("red shoes", searchResponse(100));
+        rollup.record("blue shoes", searchResponse(3));
+        rollup.record(null, searchResponse(3));
+        // The maximum of two user queries has been reached.
+        rollup.record("green shoes", searchResponse(3));
+
+        rollup.flush();
+        assertEquals(3, writer.getQueueSize());
+
+        rollup.flush();
+        assertEquals(3, writer.getQueueSize());
+
+    }
+
+    public void testPercentilesAreBucketUpperBounds() {
+
+        final UbiQueryRollup.Counters counters = new UbiQueryRollup.Counters();
+
+        for (int i = 0; i < 90; i++) {
+            counters.add(5);
+        }
+        for (int i = 0; i < 10; i++) {
+            counters.add(1000);
+        }
+
+        assertEquals(100, counters.searches());
+        assertEquals(0, counters.zeroResults());
+        assertEquals(7, counters.percentile(50));
+        assertEquals(7, counters.percentile(90));
+        assertEquals(1000, counters.percentile(99));
+
+    }
+
+    public void testRollupDocument() throws Exception {
+
+        final UbiQueryRollup.Counters counters = new UbiQueryRollup.Counters();
+        counters.add(0);
+        counters.add(4);
+
+        final BulkRequest bulkRequest = new BulkRequest();
+        new UbiQueryRollup.RollupDocument("node-1", 1000, 61000, "red shoes", counters).addTo(bulkRequest);
+
+        final IndexRequest indexRequest = (IndexRequest) bulkRequest.requests().get(0);
+        assertEquals(UbiQueryRollup.UBI_QUERY_ROLLUPS_INDEX, indexRequest.index());
+
+        final Map<String, Object> source = indexRequest.sourceAsMap();
+        assertEquals("red shoes", source.get("user_query"));
+        assertEquals(2, source.get("searches"));
+        assertEquals(1, source.get("zero_results"));
+        assertEquals(4, ((Map<?, ?>) source.get("result_count")).get("max"));
+
+    }
+
+    public void testNormalize() {
+        assertEquals("red shoes", UbiQueryRollup.normalize(" RED\tshoes "));
+        assertNull(UbiQueryRollup.normalize("   "));
+        assertEquals(256, UbiQueryRollup.normalize("a".repeat(300)).length());
+    }
+
+    private static SearchResponse searchResponse(final long totalHits) {
+
+        final SearchHits searchHits = SearchHits.unpooled(new SearchHit[0], new TotalHits(totalHits, TotalHits.Relation.EQUAL_TO), 1.0f);
+
+        return new SearchResponse(searchHits, null, null, false, null, null, 1, null, 1, 1, 0, 10,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.test.ESTestCase;
+
+public class UbiSearchResponseTests extends ESTestCase {
+
+    public void testSharesTheOriginalResponse() {
+
+        final SearchResponse searchResponse = searchResponse();
+        final UbiSearchResponse ubiSearchResponse = new UbiSearchResponse(searchResponse, "query-id");
+
+        assertSame(searchResponse.getHits(), ubiSearchResponse.getHits());
+        assertEquals(searchResponse.getTookInMillis(), ubiSearchResponse.getTookInMillis());
+        assertEquals("query-id", ubiSearchResponse.getQueryId());
+
+        // The original response is kept alive until the UBI response is released.
+        assertFalse(searchResponse.decRef());
+        assertTrue(searchResponse.hasReferences());
+        assertTrue(ubiSearchResponse.decRef());
+        assertFalse(searchResponse.hasReferences());
+
+    }
+
+    public void testWritesHeaderAndQueryId() {
+
+        final SearchResponse searchResponse = searchResponse();
+        final UbiSearchResponse ubiSearchResponse = new UbiSearchResponse(searchResponse, "query-id");
+        searchResponse.decRef();
+
+        final String json = Strings.toString(ubiSearchResponse);
+
+        assertTrue(json, json.contains("\"took\":10"));
+        assertTrue(json, json.contains("\"_shards\":"));
+        assertTrue(json, json.contains("\"ext\":{\"ubi\":{\"query_id\":\"query-id\"}}"));
+        assertTrue(json, json.contains("\"_id\":\"1\""));
+
+        ubiSearchResponse.decRef();
+
+    }
+
+    private static SearchResponse searchResponse() {
+
+        final SearchHit[] hits = new SearchHit[] { SearchHit.unpooled(1, "1") };
+        final SearchHits searchHits = SearchHits.unpooled(hits, new TotalHits(1, TotalHits.Relation.EQUAL_TO), 1.0f);
+
+        return new SearchResponse(searchHits, null, null, false, null, null, 1, null, 1, 1, 0, 10,
+                ShardSearchFailure.EMPTY_ARRAY, SearchResponse.Clusters.EMPTY);
+
+    }
+
+}
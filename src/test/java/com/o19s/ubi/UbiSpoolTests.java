@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.xcontent.XContentType;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+public class UbiSpoolTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        threadPool = new TestThreadPool(getTestName());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        terminate(threadPool);
+        super.tearDown();
+    }
+
+    public void testSpooledDocumentsAreReplayedAfterRestart() throws Exception {
+
+        final Path directory = createTempDir();
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 10)
+                .put(UbiSettings.SPOOL_SEGMENT_SIZE.getKey(), "200b")
+                .build();
+
+        final UbiStats stats = new UbiStats();
+
+        final UbiSpool spool = new UbiSpool(directory, settings, threadPool, writer(settings, stats), stats);
+        spool.start();
+        spool.append(indexRequests(0, 5));
+        spool.stop();
+        spool.close();
+
+        assertEquals(5, stats.snapshot(sampler(), writer(settings, stats), new UbiImpressionCache(Settings.EMPTY)).spooled());
+
+        // The documents are replayed by a new spool over the same directory.
+        final UbiDocumentWriter writer = writer(settings, stats);
+        final UbiSpool restarted = new UbiSpool(directory, settings, threadPool, writer, stats);
+        restarted.start();
+
+        try {
+
+            assertBusy(() -> {
+                restarted.replay();
+                assertEquals(5, stats.snapshot(sampler(), writer, new UbiImpressionCache(Settings.EMPTY)).replayed());
+            });
+
+            assertEquals(5, writer.getQueueSize());
+            assertEquals(0, restarted.sizeInBytes());
+
+        } finally {
+            restarted.stop();
+            restarted.close();
+        }
+
+    }
+
+    public void testReplayResumesFromTheCheckpointAfterRestart() throws Exception {
+
+        final Path directory = createTempDir();
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.WRITER_BULK_ACTIONS.getKey(), 2)
+                .build();
+
+        final UbiStats stats = new UbiStats();
+        final UbiSpool spool = new UbiSpool(directory, settings, threadPool, writer(settings, stats), stats);
+        spool.start();
+        spool.append(indexRequests(0, 5));
+        spool.stop();
+        spool.close();
+
+        // The first batch is taken by the writer before the node restarts.
+        final UbiStats firstStats = new UbiStats();
+        final UbiSpool first = new UbiSpool(directory, settings, threadPool, writer(settings, firstStats), firstStats);
+        first.start();
+        first.replay();
+        first.stop();
+        first.close();
+
+        assertEquals(2, firstStats.snapshot(sampler(), writer(settings, firstStats), new UbiImpressionCache(Settings.EMPTY)).replayed());
+
+        final UbiStats secondStats = new UbiStats();
+        final List<UbiDocument> replayed = new ArrayList<>();
+        final UbiDocumentWriter writer = new UbiDocumentWriter(null, threadPool, settings, secondStats) {
+
+            @Override
+            public int addAll(final List<? extends UbiDocument> documents) {
+                // The documents are taken without queueing them, so the replay is not held back.
+                replayed.addAll(documents);
+                return documents.size();
+            }
+
+        };
+        final UbiSpool second = new UbiSpool(directory, settings, threadPool, writer, secondStats);
+        second.start();
+
+        try {
+
+            assertBusy(() -> {
+                second.replay();
+                assertEquals(0, second.sizeInBytes());
+            });
+
+            assertEquals(3, replayed.size());
+
+        } finally {
+            second.stop();
+            second.close();
+        }
+
+    }
+
+    public void testOldestSegmentsAreDeletedAtMaxSize() throws Exception {
+
+        final Settings settings = Settings.builder()
+                .put(UbiSettings.SPOOL_SEGMENT_SIZE.getKey(), "200b")
+                .put(UbiSettings.SPOOL_MAX_SIZE.getKey(), "600b")
+                .build();
+
+        final UbiStats stats = new UbiStats();
+        final UbiSpool spool = new UbiSpool(createTempDir(), settings, threadPool, writer(settings, stats), stats);
+        spool.start();
+
+        try {
+
+            for (int i = 0; i < 20; i++) {
+                spool.append(indexRequests(i, 1));
+                assertTrue(spool.sizeInBytes() <= 600);
+            }
+
+            assertEquals(20, stats.snapshot(sampler(), writer(settings, stats), new UbiImpressionCache(Settings.EMPTY)).spooled());
+
+        } finally {
+            spool.stop();
+            spool.close();
+        }
+
+    }
+
+    private UbiDocumentWriter writer(final Settings settings, final UbiStats stats) {
+        return new UbiDocumentWriter(null, threadPool, settings, stats);
+    }
+
+    private static CaptureSampler sampler() {
+        return new CaptureSampler(Settings.EMPTY, new ClusterSettings(Settings.EMPTY, new HashSet<>(UbiSettings.getSettings())));
+    }
+
+    private static List<DocWriteRequest<?>> indexRequests(final int from, final int count) {
+        final List<DocWriteRequest<?>> requests = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            requests.add(new IndexRequest(RestUbiEventsAction.UBI_EVENTS_INDEX)
+                    .opType(DocWriteRequest.OpType.CREATE)
+                    .source(XContentType.JSON, "action_name", "click", "query_id", String.valueOf(i)));
+        }
+        return requests;
+    }
+
+}
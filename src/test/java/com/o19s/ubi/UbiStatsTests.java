@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+public class UbiStatsTests extends ESTestCase {
+
+    public void testBulkStats() throws IOException {
+
+        final ThreadPool threadPool = new TestThreadPool(getTestName());
+
+        try {
+
+            final UbiStats stats = new UbiStats();
+            stats.onBulk(10, 2, 1000, 5);
+            stats.onBulkFailure(4, 500, 7);
+            stats.onCaptureFailure();
+            stats.onQueryRendered(128);
+
+            final CaptureSampler sampler = new CaptureSampler(Settings.EMPTY,
+                    new ClusterSettings(Settings.EMPTY, new HashSet<>(UbiSettings.getSettings())));
+            final UbiDocumentWriter writer = new UbiDocumentWriter(null, threadPool, Settings.EMPTY, stats);
+
+            final UbiStats.Snapshot snapshot = stats.snapshot(sampler, writer, new UbiImpressionCache(Settings.EMPTY));
+
+            assertEquals(2, snapshot.bulkRequests());
+            assertEquals(1, snapshot.bulkFailures());
+            assertEquals(8, snapshot.indexed());
+            assertEquals(6, snapshot.indexFailed());
+            assertEquals(1500, snapshot.bulkSizeInBytes());
+            assertEquals(12, snapshot.bulkTimeInMillis());
+            assertEquals(1, snapshot.failed());
+            assertEquals(128, snapshot.querySizeInBytes());
+
+            try (BytesStreamOutput out = new BytesStreamOutput()) {
+                snapshot.writeTo(out);
+                assertEquals(snapshot, new UbiStats.Snapshot(out.bytes().streamInput()));
+            }
+
+        } finally {
+            terminate(threadPool);
+        }
+
+    }
+
+}
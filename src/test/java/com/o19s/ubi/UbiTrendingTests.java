@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.o19s.ubi;
+
+import com.o19s.ubi.sketch.HyperLogLog;
+import com.o19s.ubi.sketch.SpaceSaving;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class UbiTrendingTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+    private ClusterService clusterService;
+
+    @Override
+    public void setUp() throws Exception {
+
+        super.setUp();
+
+        final Settings settings = Settings.builder()
+                .put("node.name", getTestName())
+                .put(UbiSettings.TRENDING_ENABLED.getKey(), true)
+                .put(UbiSettings.TRENDING_CAPACITY.getKey(), 10)
+                .build();
+        final Set<Setting<?>> clusterSettings = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        clusterSettings.addAll(UbiSettings.getSettings());
+
+        threadPool = new TestThreadPool(getTestName());
+        clusterService = new ClusterService(settings, new ClusterSettings(settings, clusterSettings), threadPool,
+                new TaskManager(settings, threadPool, Set.of()));
+
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        clusterService.close();
+        terminate(threadPool);
+        super.tearDown();
+    }
+
+    public void testHeavyHittersSurviveTheLongTail() {
+
+        final UbiTrending trending = new UbiTrending(threadPool, clusterService);
+
+        for (int i = 0; i < 1000; i++) {
+            trending.record(i % 2 == 0 ? "Red Shoes" : "query " + i, "client-" + (i % 50), List.of("object-1"));
+        }
+
+        final UbiTrending.Sketches sketches = trending.snapshot();
+        final List<SpaceSaving.Entry> topQueries = sketches.topQueries(1);
+
+        assertEquals("red shoes", topQueries.get(0).key());
+        assertTrue(topQueries.get(0).count() >= 500);
+        assertEquals(1000, sketches.topObjects(1).get(0).count());
+
+    }
+
+    public void testQueriesOfAllThreadsAreCounted() throws Exception {
+
+        final UbiTrending trending = new UbiTrending(threadPool, clusterService);
+        final Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 250; i++) {
+                    trending.record("red shoes", "client-1", List.of("object-1"));
+                }
+            });
+            threads[t].start();
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        final UbiTrending.Sketches sketches = trending.snapshot();
+
+        assertEquals(new SpaceSaving.Entry("red shoes", 1000, 0), sketches.topQueries(1).get(0));
+        assertEquals(1000, sketches.topObjects(1).get(0).count());
+        assertEquals(1, sketches.distinctClients());
+
+    }
+
+    public void testMergeAcrossNodesAndWindows() throws Exception {
+
+        final UbiTrending node1 = new UbiTrending(threadPool, clusterService);
+        final UbiTrending node2 = new UbiTrending(threadPool, clusterService);
+
+        node1.record("red shoes", "client-1", List.of());
+        node1.rotate();
+        node1.record("red shoes", "client-2", List.of());
+        node2.record("red shoes", "client-2", List.of());
+        node2.record("blue shoes", "client-3", List.of());
+
+        // Sketches are merged after a trip over the wire.
+        final BytesStreamOutput out = new BytesStreamOutput();
+        node2.snapshot().writeTo(out);
+
+        final UbiTrending.Sketches merged = node1.snapshot();
+        merged.merge(new UbiTrending.Sketches(out.bytes().streamInput()));
+
+        assertEquals(new SpaceSaving.Entry("red shoes", 3, 0), merged.topQueries(2).get(0));
+        assertEquals(new SpaceSaving.Entry("blue shoes", 1, 0), merged.topQueries(2).get(1));
+        assertEquals(3, merged.distinctClients());
+
+        // The oldest window is dropped.
+        node1.rotate();
+        node1.rotate();
+        assertTrue(node1.snapshot().topQueries(10).isEmpty());
+
+    }
+
+    public void testHyperLogLogAccuracy() {
+
+        final HyperLogLog hyperLogLog = new HyperLogLog(14);
+
+        for (int i = 0; i < 100_000; i++) {
+            hyperLogLog.add("client-" + i);
+        }
+
+        // The standard error at precision 14 is under 1%.
+        assertEquals(100_000, hyperLogLog.cardinality(), 3_000);
+
+    }
+
+}